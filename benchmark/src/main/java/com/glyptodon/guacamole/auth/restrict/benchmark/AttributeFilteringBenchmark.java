@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks filtering of the attributes of a user through
+ * RestrictedExternalUserContext.filterAttributes(), which occurs each time
+ * the attributes of a user are read or written, followed by a single read
+ * of all filtered attributes, as when the user is serialized by the REST
+ * API. The allocation rate reported by the "gc" profiler (-prof gc) is the
+ * primary measure of interest.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AttributeFilteringBenchmark {
+
+    /**
+     * The number of attributes defined for the user, in addition to a
+     * single restriction attribute.
+     */
+    @Param({"10", "50"})
+    public int attributes;
+
+    /**
+     * Whether the user reading the attributes may view restriction
+     * attributes.
+     */
+    @Param({"false", "true"})
+    public boolean admin;
+
+    /**
+     * The ConnectionManager associated with the restricted UserContext.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * The restricted UserContext filtering the attributes.
+     */
+    private RestrictedExternalUserContext userContext;
+
+    /**
+     * The attributes of the user, prior to filtering.
+     */
+    private Map<String, String> userAttributes;
+
+    /**
+     * Creates the restricted UserContext and the attributes being filtered.
+     */
+    @Setup
+    public void setUp() {
+
+        userAttributes = new HashMap<>();
+        for (int i = 0; i < attributes; i++)
+            userAttributes.put("attribute-" + i, "value-" + i);
+
+        userAttributes.put(Restriction.FORCE_READ_ONLY.getAttributeName(), Restriction.TRUTH_VALUE);
+
+        manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+        userContext = new RestrictedExternalUserContext(manager,
+                Collections.emptyMap(), new SimpleUserContext(
+                new BenchmarkAuthenticationProvider(), "user", Collections.emptyMap()));
+
+    }
+
+    /**
+     * Stops all background threads created for the benchmark.
+     */
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Filters the attributes of the user and reads every filtered attribute.
+     *
+     * @return
+     *     The number of characters within the names of all filtered
+     *     attributes, serving only to prevent dead code elimination.
+     */
+    @Benchmark
+    public long filterAndRead() {
+
+        long length = 0;
+        for (Map.Entry<String, String> entry : userContext.filterAttributes(admin, userAttributes).entrySet())
+            length += entry.getKey().length();
+
+        return length;
+
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import java.util.Set;
+import org.apache.guacamole.net.auth.AbstractAuthenticatedUser;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.apache.guacamole.net.auth.Credentials;
+
+/**
+ * AuthenticatedUser implementation having a fixed set of effective user
+ * groups.
+ */
+public class BenchmarkAuthenticatedUser extends AbstractAuthenticatedUser {
+
+    /**
+     * The AuthenticationProvider which authenticated this user.
+     */
+    private final AuthenticationProvider authProvider;
+
+    /**
+     * The identifiers of all groups of which this user is a member.
+     */
+    private final Set<String> effectiveGroups;
+
+    /**
+     * Creates a new BenchmarkAuthenticatedUser having the given username and
+     * effective user groups.
+     *
+     * @param authProvider
+     *     The AuthenticationProvider which authenticated the user.
+     *
+     * @param username
+     *     The username of the user.
+     *
+     * @param effectiveGroups
+     *     The identifiers of all groups of which the user is a member.
+     */
+    public BenchmarkAuthenticatedUser(AuthenticationProvider authProvider,
+            String username, Set<String> effectiveGroups) {
+        this.authProvider = authProvider;
+        this.effectiveGroups = effectiveGroups;
+        setIdentifier(username);
+    }
+
+    @Override
+    public AuthenticationProvider getAuthenticationProvider() {
+        return authProvider;
+    }
+
+    @Override
+    public Credentials getCredentials() {
+        // Benchmarked code never inspects credentials
+        return null;
+    }
+
+    @Override
+    public Set<String> getEffectiveUserGroups() {
+        return effectiveGroups;
+    }
+
+}
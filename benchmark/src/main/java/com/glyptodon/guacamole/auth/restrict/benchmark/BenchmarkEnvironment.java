@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.net.auth.GuacamoleProxyConfiguration;
+import org.apache.guacamole.properties.GuacamoleProperty;
+import org.apache.guacamole.protocols.ProtocolInfo;
+
+/**
+ * Environment implementation which reads properties from an in-memory map
+ * rather than guacamole.properties, allowing benchmarks to construct
+ * configured objects without a GUACAMOLE_HOME.
+ */
+public class BenchmarkEnvironment implements Environment {
+
+    /**
+     * The values of all defined properties, keyed by property name.
+     */
+    private final Map<String, String> properties = new HashMap<>();
+
+    /**
+     * Sets the value of the property having the given name, as if that
+     * property had been defined within guacamole.properties.
+     *
+     * @param name
+     *     The name of the property to set.
+     *
+     * @param value
+     *     The value to assign to the property.
+     *
+     * @return
+     *     This BenchmarkEnvironment.
+     */
+    public BenchmarkEnvironment set(String name, String value) {
+        properties.put(name, value);
+        return this;
+    }
+
+    @Override
+    public File getGuacamoleHome() {
+        return new File(".");
+    }
+
+    @Override
+    public Map<String, ProtocolInfo> getProtocols() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public ProtocolInfo getProtocol(String name) {
+        return null;
+    }
+
+    @Override
+    public <Type> Type getProperty(GuacamoleProperty<Type> property)
+            throws GuacamoleException {
+        return property.parseValue(properties.get(property.getName()));
+    }
+
+    @Override
+    public <Type> Type getProperty(GuacamoleProperty<Type> property,
+            Type defaultValue) throws GuacamoleException {
+        Type value = getProperty(property);
+        return value != null ? value : defaultValue;
+    }
+
+    @Override
+    public <Type> Type getRequiredProperty(GuacamoleProperty<Type> property)
+            throws GuacamoleException {
+
+        Type value = getProperty(property);
+        if (value == null)
+            throw new GuacamoleServerException("Property \""
+                    + property.getName() + "\" is required.");
+
+        return value;
+
+    }
+
+    @Override
+    public GuacamoleProxyConfiguration getDefaultGuacamoleProxyConfiguration()
+            throws GuacamoleException {
+        return new GuacamoleProxyConfiguration("localhost", 4822,
+                GuacamoleProxyConfiguration.EncryptionMethod.NONE);
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.apache.guacamole.net.auth.Connection;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the cost of acquiring and releasing a connection slot through
+ * ConnectionManager, both when all threads contend for a single hot
+ * connection and when threads are spread across many cold connections. Each
+ * operation is a full connect() and close() of a tunnel backed by a
+ * NullGuacamoleSocket. The number of threads is controlled with the JMH "-t"
+ * option.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionManagerBenchmark {
+
+    /**
+     * The ConnectionManager and connections shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        /**
+         * The number of distinct connections used by the cold benchmark.
+         */
+        @Param({"10000"})
+        public int connectionCount;
+
+        /**
+         * The AuthenticationProvider originating all users and connections.
+         */
+        public final AuthenticationProvider authProvider = new BenchmarkAuthenticationProvider();
+
+        /**
+         * The ConnectionManager being benchmarked.
+         */
+        public ConnectionManager manager;
+
+        /**
+         * The single connection used by the hot benchmark.
+         */
+        public Connection hot;
+
+        /**
+         * The connections used by the cold benchmark.
+         */
+        public Connection[] cold;
+
+        /**
+         * Counter used to assign each benchmark thread a distinct username.
+         */
+        public final AtomicInteger users = new AtomicInteger();
+
+        /**
+         * Creates the ConnectionManager and all connections.
+         */
+        @Setup
+        public void setUp() {
+
+            manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+            hot = new BenchmarkConnection("hot");
+
+            cold = new Connection[connectionCount];
+            for (int i = 0; i < connectionCount; i++)
+                cold[i] = new BenchmarkConnection("cold-" + i);
+
+        }
+
+        /**
+         * Stops the background threads of the ConnectionManager.
+         */
+        @TearDown
+        public void tearDown() {
+            manager.shutdown();
+        }
+
+    }
+
+    /**
+     * The user on whose behalf each benchmark thread connects.
+     */
+    @State(Scope.Thread)
+    public static class User {
+
+        /**
+         * The restricted UserContext of the user.
+         */
+        public RestrictedExternalUserContext userContext;
+
+        /**
+         * Client information sent with every connection attempt.
+         */
+        public final GuacamoleClientInformation info = new GuacamoleClientInformation();
+
+        /**
+         * Parameter tokens sent with every connection attempt.
+         */
+        public final Map<String, String> tokens = Collections.emptyMap();
+
+        /**
+         * Creates an unrestricted UserContext for a user that is distinct
+         * from the users of all other benchmark threads.
+         *
+         * @param shared
+         *     The state shared by all benchmark threads.
+         */
+        @Setup
+        public void setUp(Shared shared) {
+            userContext = new RestrictedExternalUserContext(shared.manager,
+                    Collections.emptyMap(), new SimpleUserContext(shared.authProvider,
+                    "user-" + shared.users.getAndIncrement(), Collections.emptyMap()));
+        }
+
+    }
+
+    /**
+     * Connects to and disconnects from the given connection.
+     *
+     * @param shared
+     *     The state shared by all benchmark threads.
+     *
+     * @param user
+     *     The user connecting.
+     *
+     * @param connection
+     *     The connection to connect to.
+     *
+     * @return
+     *     The tunnel that was opened and closed.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established.
+     */
+    private GuacamoleTunnel connectAndClose(Shared shared, User user,
+            Connection connection) throws GuacamoleException {
+        GuacamoleTunnel tunnel = shared.manager.connect(user.userContext,
+                connection, user.info, user.tokens);
+        tunnel.close();
+        return tunnel;
+    }
+
+    /**
+     * Benchmarks all threads connecting to the same connection.
+     *
+     * @param shared
+     *     The state shared by all benchmark threads.
+     *
+     * @param user
+     *     The user connecting.
+     *
+     * @return
+     *     The tunnel that was opened and closed.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established.
+     */
+    @Benchmark
+    public GuacamoleTunnel hotConnection(Shared shared, User user)
+            throws GuacamoleException {
+        return connectAndClose(shared, user, shared.hot);
+    }
+
+    /**
+     * Benchmarks threads connecting to randomly-chosen connections from a
+     * large pool, such that contention on any one connection is rare.
+     *
+     * @param shared
+     *     The state shared by all benchmark threads.
+     *
+     * @param user
+     *     The user connecting.
+     *
+     * @return
+     *     The tunnel that was opened and closed.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established.
+     */
+    @Benchmark
+    public GuacamoleTunnel coldConnections(Shared shared, User user)
+            throws GuacamoleException {
+        int index = ThreadLocalRandom.current().nextInt(shared.cold.length);
+        return connectAndClose(shared, user, shared.cold[index]);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.Connection;
+import org.apache.guacamole.net.auth.ConnectionGroup;
+import org.apache.guacamole.net.auth.UserContext;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.apache.guacamole.protocol.GuacamoleConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks listing the connection tree of a restricted UserContext, as the
+ * Guacamole REST API does when rendering the home and administration
+ * screens. The allocation rate reported by the "gc" profiler (-prof gc) is
+ * the primary measure of interest. Results are comparable across releases of
+ * the extension, with this benchmark built against each release in turn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryListingBenchmark {
+
+    /**
+     * The number of connections within the root connection group.
+     */
+    @Param({"10000"})
+    public int connections;
+
+    /**
+     * The ConnectionManager associated with the restricted UserContext.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * The restricted UserContext whose connections are listed.
+     */
+    private UserContext userContext;
+
+    /**
+     * Creates a restricted UserContext exposing the given number of
+     * connections, all within the root connection group.
+     */
+    @Setup
+    public void setUp() {
+
+        Map<String, GuacamoleConfiguration> configs = new HashMap<>(connections * 2);
+        for (int i = 0; i < connections; i++) {
+            GuacamoleConfiguration config = new GuacamoleConfiguration();
+            config.setProtocol("vnc");
+            configs.put("connection-" + i, config);
+        }
+
+        manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+        userContext = new RestrictedExternalUserContext(manager,
+                Collections.emptyMap(), new SimpleUserContext(
+                new BenchmarkAuthenticationProvider(), "user", configs));
+
+    }
+
+    /**
+     * Stops all background threads created for the benchmark.
+     */
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Lists the connection tree, retrieving all connections within the root
+     * connection group at once, as the REST API does when building the tree.
+     *
+     * @return
+     *     The number of characters within the names of all connections,
+     *     serving only to prevent dead code elimination.
+     *
+     * @throws GuacamoleException
+     *     If the connection tree cannot be listed.
+     */
+    @Benchmark
+    public long listTree() throws GuacamoleException {
+
+        ConnectionGroup root = userContext.getRootConnectionGroup();
+        Collection<Connection> children = userContext.getConnectionDirectory()
+                .getAll(root.getConnectionIdentifiers());
+
+        long length = 0;
+        for (Connection connection : children)
+            length += connection.getName().length();
+
+        return length;
+
+    }
+
+    /**
+     * Counts the connections within the root connection group using the
+     * collection retrieved in bulk, without otherwise using the retrieved
+     * connections.
+     *
+     * @return
+     *     The number of connections within the root connection group.
+     *
+     * @throws GuacamoleException
+     *     If the connections cannot be retrieved.
+     */
+    @Benchmark
+    public int countTree() throws GuacamoleException {
+        ConnectionGroup root = userContext.getRootConnectionGroup();
+        return userContext.getConnectionDirectory()
+                .getAll(root.getConnectionIdentifiers()).size();
+    }
+
+    /**
+     * Retrieves each connection within the root connection group
+     * individually, retrieving the connection directory for each, as the
+     * REST API does when resolving individual connections.
+     *
+     * @return
+     *     The number of characters within the names of all connections,
+     *     serving only to prevent dead code elimination.
+     *
+     * @throws GuacamoleException
+     *     If any connection cannot be retrieved.
+     */
+    @Benchmark
+    public long resolveEach() throws GuacamoleException {
+
+        long length = 0;
+        for (String identifier : userContext.getRootConnectionGroup().getConnectionIdentifiers())
+            length += userContext.getConnectionDirectory().get(identifier).getName().length();
+
+        return length;
+
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleSocket implementation which discards all data written and never
+ * has data available for reading, allowing tunnels to be benchmarked without
+ * a running guacd.
+ */
+public class NullGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * The number of characters written to this socket.
+     */
+    private long written;
+
+    /**
+     * GuacamoleReader which never has any data.
+     */
+    private final GuacamoleReader reader = new GuacamoleReader() {
+
+        @Override
+        public boolean available() {
+            return false;
+        }
+
+        @Override
+        public char[] read() {
+            return null;
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() {
+            return null;
+        }
+
+    };
+
+    /**
+     * GuacamoleWriter which counts and discards all data.
+     */
+    private final GuacamoleWriter writer = new GuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) {
+            written += len;
+        }
+
+        @Override
+        public void write(char[] chunk) {
+            written += chunk.length;
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction) {
+            written += instruction.toString().length();
+        }
+
+    };
+
+    /**
+     * Returns the number of characters written to this socket. This value is
+     * not synchronized and serves only to ensure that writes have a
+     * side effect.
+     *
+     * @return
+     *     The number of characters written to this socket.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+        // Nothing to close
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionLease;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import com.glyptodon.guacamole.auth.restrict.connection.HashedWheelTimer;
+import com.glyptodon.guacamole.auth.restrict.connection.RestrictedExternalTunnel;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the throughput, in instructions per second, of the writer
+ * returned by RestrictedExternalTunnel, which filters every instruction sent
+ * by the user. Instructions are written in batches resembling typical user
+ * input: mostly mouse movement, with occasional key events, syncs, and
+ * keep-alive pings.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RestrictedTunnelWriterBenchmark {
+
+    /**
+     * The number of instructions within each written batch.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * Whether the user writing is restricted to read-only access, in which
+     * case most instructions are dropped.
+     */
+    @Param({"false", "true"})
+    public boolean readOnly;
+
+    /**
+     * The length of the window within which mouse motion is coalesced, in
+     * milliseconds, or zero if mouse motion is not coalesced.
+     */
+    @Param({"0", "50"})
+    public int mouseCoalesceWindow;
+
+    /**
+     * The timer providing the clock used by the tunnel's lease.
+     */
+    private HashedWheelTimer timer;
+
+    /**
+     * The ConnectionManager associated with the restricted UserContext.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * The socket underlying the benchmarked tunnel.
+     */
+    private NullGuacamoleSocket socket;
+
+    /**
+     * The filtering writer being benchmarked.
+     */
+    private GuacamoleWriter writer;
+
+    /**
+     * A batch of BATCH_SIZE instructions, in encoded form.
+     */
+    private char[] batch;
+
+    /**
+     * Creates the tunnel being benchmarked and the batch of instructions
+     * written to it.
+     */
+    @Setup
+    public void setUp() {
+
+        AuthenticationProvider authProvider = new BenchmarkAuthenticationProvider();
+
+        Map<Restriction, String> restrictions = new EnumMap<>(Restriction.class);
+        if (readOnly)
+            restrictions.put(Restriction.FORCE_READ_ONLY, Restriction.TRUTH_VALUE);
+        if (mouseCoalesceWindow > 0)
+            restrictions.put(Restriction.MOUSE_COALESCE_WINDOW, Integer.toString(mouseCoalesceWindow));
+
+        manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+        RestrictedExternalUserContext userContext = new RestrictedExternalUserContext(
+                manager, restrictions, new SimpleUserContext(authProvider,
+                "user", Collections.emptyMap()));
+
+        timer = new HashedWheelTimer("benchmark-timer", 1000, 64);
+        ConnectionLease lease = new ConnectionLease(GlobalConnectionIdentifier.valueOf(
+                authProvider, GlobalConnectionIdentifier.Type.CONNECTION, "connection"),
+                timer, () -> {});
+
+        socket = new NullGuacamoleSocket();
+        writer = RestrictedExternalTunnel.wrap(userContext,
+                new SimpleGuacamoleTunnel(socket), lease,
+                readOnly ? RestrictedExternalTunnel.OPCODE_WHITELIST : null,
+                null).acquireWriter();
+
+        // Build a batch of representative user input
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+
+            GuacamoleInstruction instruction;
+            if (i % 16 == 0)
+                instruction = new GuacamoleInstruction("sync", "1234567890");
+            else if (i % 16 == 1)
+                instruction = new GuacamoleInstruction("nop");
+            else if (i % 8 == 2)
+                instruction = new GuacamoleInstruction("key", "65307", "1");
+            else
+                instruction = new GuacamoleInstruction("mouse",
+                        Integer.toString(100 + i), Integer.toString(200 + i), "0");
+
+            builder.append(instruction.toString());
+
+        }
+
+        batch = builder.toString().toCharArray();
+
+    }
+
+    /**
+     * Stops all background threads created for the benchmark.
+     */
+    @TearDown
+    public void tearDown() {
+        timer.stop();
+        manager.shutdown();
+    }
+
+    /**
+     * Writes a single batch of instructions through the filtering writer.
+     *
+     * @return
+     *     The number of characters that have passed through the filter,
+     *     serving only to prevent dead code elimination.
+     *
+     * @throws GuacamoleException
+     *     If the batch cannot be written.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long writeInstructions() throws GuacamoleException {
+        writer.write(batch);
+        return socket.getWritten();
+    }
+
+}
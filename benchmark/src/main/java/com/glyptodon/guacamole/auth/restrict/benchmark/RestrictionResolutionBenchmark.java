@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.user.groups.RestrictedUserGroupDirectory;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.AuthenticatedUser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks resolution of the restrictions which apply to a user through
+ * RestrictedUserGroupDirectory.getRestrictions(), which occurs on every
+ * login, for users that are members of large numbers of groups. A quarter of
+ * all configured groups carry each kind of restriction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RestrictionResolutionBenchmark {
+
+    /**
+     * The number of groups defined within guacamole.properties.
+     */
+    @Param({"100", "10000"})
+    public int configuredGroups;
+
+    /**
+     * The number of groups of which the user is a member. Only half of
+     * these groups are configured with restrictions.
+     */
+    @Param({"10", "1000"})
+    public int effectiveGroups;
+
+    /**
+     * The directory being benchmarked.
+     */
+    private RestrictedUserGroupDirectory directory;
+
+    /**
+     * The user whose restrictions are resolved.
+     */
+    private AuthenticatedUser user;
+
+    /**
+     * Creates the directory being benchmarked, configured with
+     * configuredGroups restricted groups, and a user belonging to
+     * effectiveGroups groups.
+     *
+     * @throws GuacamoleException
+     *     If the directory cannot be created.
+     */
+    @Setup
+    public void setUp() throws GuacamoleException {
+
+        StringJoiner readOnly = new StringJoiner(",");
+        StringJoiner disallowConcurrent = new StringJoiner(",");
+        StringJoiner maxConcurrent = new StringJoiner(",");
+        StringJoiner maxSessions = new StringJoiner(",");
+
+        for (int i = 0; i < configuredGroups; i++) {
+            String group = "group-" + i;
+            switch (i % 4) {
+                case 0: readOnly.add(group); break;
+                case 1: disallowConcurrent.add(group); break;
+                case 2: maxConcurrent.add(group + "=" + (2 + i % 8)); break;
+                default: maxSessions.add(group + "=" + (1 + i % 4)); break;
+            }
+        }
+
+        directory = new RestrictedUserGroupDirectory(new BenchmarkEnvironment()
+                .set("read-only-groups", readOnly.toString())
+                .set("disallow-concurrent-groups", disallowConcurrent.toString())
+                .set("max-concurrent-groups", maxConcurrent.toString())
+                .set("max-sessions-groups", maxSessions.toString()));
+
+        // Spread the user's memberships across configured and unconfigured
+        // groups
+        Set<String> groups = new HashSet<>();
+        for (int i = 0; i < effectiveGroups; i++)
+            groups.add(i % 2 == 0 ? "group-" + (i * 7 % configuredGroups) : "other-" + i);
+
+        user = new BenchmarkAuthenticatedUser(new BenchmarkAuthenticationProvider(),
+                "user", groups);
+
+    }
+
+    /**
+     * Resolves the restrictions which apply to the user.
+     *
+     * @return
+     *     The restrictions which apply to the user.
+     *
+     * @throws GuacamoleException
+     *     If the restrictions cannot be resolved.
+     */
+    @Benchmark
+    public Map<Restriction, String> getRestrictions() throws GuacamoleException {
+        return directory.getRestrictions(user);
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.benchmark;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionLease;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import com.glyptodon.guacamole.auth.restrict.connection.HashedWheelTimer;
+import com.glyptodon.guacamole.auth.restrict.connection.RestrictedExternalTunnel;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelCounters;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelStatistics;
+import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the per-message cost of the tunnels returned for restricted and
+ * unrestricted users against a bare DelegatingGuacamoleTunnel. Each operation
+ * acquires the tunnel's writer, writes a single small instruction, and
+ * releases the writer, as the WebSocket tunnel does for each message
+ * received. When not instrumented, the "unrestricted" tunnel should differ
+ * from the "bare" tunnel only by the cost of recording activity, a single
+ * read of the timer's current tick per write.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TunnelOverheadBenchmark {
+
+    /**
+     * The kind of tunnel being benchmarked: "bare" for a
+     * DelegatingGuacamoleTunnel with no additional behavior, "unrestricted"
+     * for the tunnel returned for users with no restrictions, and "readOnly"
+     * for the tunnel returned for users restricted to read-only access.
+     */
+    @Param({"bare", "unrestricted", "readOnly"})
+    public String tunnelType;
+
+    /**
+     * Whether the instructions passing through the tunnel are counted by
+     * opcode, as when tunnel statistics are enabled.
+     */
+    @Param({"false", "true"})
+    public boolean instrumented;
+
+    /**
+     * The timer providing the clock used by the tunnel's lease.
+     */
+    private HashedWheelTimer timer;
+
+    /**
+     * The ConnectionManager associated with the restricted UserContext.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * The socket underlying the benchmarked tunnel.
+     */
+    private NullGuacamoleSocket socket;
+
+    /**
+     * The tunnel being benchmarked.
+     */
+    private GuacamoleTunnel tunnel;
+
+    /**
+     * A single "sync" instruction, in encoded form, which passes through
+     * all kinds of tunnel.
+     */
+    private final char[] message = new GuacamoleInstruction("sync", "1234567890").toString().toCharArray();
+
+    /**
+     * Creates the tunnel being benchmarked.
+     */
+    @Setup
+    public void setUp() {
+
+        AuthenticationProvider authProvider = new BenchmarkAuthenticationProvider();
+        socket = new NullGuacamoleSocket();
+        timer = new HashedWheelTimer("benchmark-timer", 1000, 64);
+        manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+
+        if (tunnelType.equals("bare")) {
+            tunnel = new DelegatingGuacamoleTunnel(new SimpleGuacamoleTunnel(socket));
+            return;
+        }
+
+        Map<Restriction, String> restrictions = tunnelType.equals("readOnly")
+                ? Collections.singletonMap(Restriction.FORCE_READ_ONLY, Restriction.TRUTH_VALUE)
+                : Collections.emptyMap();
+
+        RestrictedExternalUserContext userContext = new RestrictedExternalUserContext(
+                manager, restrictions, new SimpleUserContext(authProvider,
+                "user", Collections.emptyMap()));
+
+        ConnectionLease lease = new ConnectionLease(GlobalConnectionIdentifier.valueOf(
+                authProvider, GlobalConnectionIdentifier.Type.CONNECTION, "connection"),
+                timer, () -> {});
+
+        TunnelCounters counters = instrumented
+                ? new TunnelStatistics(false).getCounters(RestrictedExternalTunnel.getRestrictionClass(userContext))
+                : null;
+
+        tunnel = RestrictedExternalTunnel.wrap(userContext,
+                new SimpleGuacamoleTunnel(socket), lease, tunnelType.equals("readOnly")
+                ? RestrictedExternalTunnel.OPCODE_WHITELIST : null, counters);
+
+    }
+
+    /**
+     * Stops all background threads created for the benchmark.
+     */
+    @TearDown
+    public void tearDown() {
+        timer.stop();
+        manager.shutdown();
+    }
+
+    /**
+     * Writes a single message through the tunnel, acquiring and releasing
+     * its writer.
+     *
+     * @return
+     *     The number of characters that have passed through the tunnel,
+     *     serving only to prevent dead code elimination.
+     *
+     * @throws GuacamoleException
+     *     If the message cannot be written.
+     */
+    @Benchmark
+    public long writeMessage() throws GuacamoleException {
+
+        GuacamoleWriter writer = tunnel.acquireWriter();
+        try {
+            writer.write(message);
+        }
+        finally {
+            tunnel.releaseWriter();
+        }
+
+        return socket.getWritten();
+
+    }
+
+}
@@ -22,6 +22,7 @@
 
 package com.glyptodon.guacamole.auth.restrict;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -40,4 +41,16 @@ public interface Restricted {
      */
     Set<Restriction> getRestrictions();
 
+    /**
+     * Returns the values of all restrictions which currently apply to uses of
+     * this object. The keys of the returned map are exactly the restrictions
+     * returned by getRestrictions(). Restrictions which are simply enabled
+     * have the value Restriction.TRUTH_VALUE.
+     *
+     * @return
+     *     A map of all restrictions which apply to this object to their
+     *     corresponding values.
+     */
+    Map<Restriction, String> getRestrictionValues();
+
 }
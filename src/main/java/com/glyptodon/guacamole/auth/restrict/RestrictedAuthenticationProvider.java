@@ -26,8 +26,7 @@ import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
 import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
 import com.glyptodon.guacamole.auth.restrict.user.RestrictedUserContext;
 import com.glyptodon.guacamole.auth.restrict.user.groups.RestrictedUserGroupDirectory;
-import com.google.common.collect.Sets;
-import java.util.Set;
+import java.util.Map;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.environment.Environment;
 import org.apache.guacamole.environment.LocalEnvironment;
@@ -59,7 +58,7 @@ public class RestrictedAuthenticationProvider extends AbstractAuthenticationProv
      * Singleton instance of ConnectionManager, to be used to track connection
      * usage across all UserContexts simultaneously.
      */
-    private final ConnectionManager manager = new ConnectionManager();
+    private final ConnectionManager manager;
 
     /**
      * Creates a new RestrictedAuthenticationProvider which reads all
@@ -72,6 +71,7 @@ public class RestrictedAuthenticationProvider extends AbstractAuthenticationProv
     public RestrictedAuthenticationProvider() throws GuacamoleException {
         this.environment = new LocalEnvironment();
         this.restrictedUserGroupDirectory = new RestrictedUserGroupDirectory(environment);
+        this.manager = new ConnectionManager(environment);
     }
 
     @Override
@@ -93,7 +93,7 @@ public class RestrictedAuthenticationProvider extends AbstractAuthenticationProv
         // Include restrictions from effective groups (defined by the extension
         // authenticating the user) and from the user object (defined by the
         // extension associated with the UserContext being decorated)
-        Set<Restriction> restrictions = Sets.union(
+        Map<Restriction, String> restrictions = Restriction.combine(
             restrictedUserGroupDirectory.getRestrictions(authenticatedUser),
             Restriction.fromAttributes(context.self())
         );
@@ -102,4 +102,9 @@ public class RestrictedAuthenticationProvider extends AbstractAuthenticationProv
 
     }
 
+    @Override
+    public void shutdown() {
+        manager.shutdown();
+    }
+
 }
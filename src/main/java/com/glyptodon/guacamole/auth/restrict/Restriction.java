@@ -22,19 +22,27 @@
 
 package com.glyptodon.guacamole.auth.restrict;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.EnumSet;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import org.apache.guacamole.form.BooleanField;
 import org.apache.guacamole.form.Field;
+import org.apache.guacamole.form.NumericField;
+import org.apache.guacamole.form.TextField;
 import org.apache.guacamole.net.auth.Attributes;
 
 /**
  * A Restriction enforced by this extension. The association between a
  * restriction and a user group may be exposed through attributes. Each
  * restriction has a corresponding custom attribute that denotes whether the
- * restriction is in effect.
+ * restriction is in effect and, for restrictions which are not simple
+ * on/off switches, the value of that restriction.
  */
 public enum Restriction {
 
@@ -51,7 +59,151 @@ public enum Restriction {
      * connection by affected group members will be dropped. Only the "sync"
      * instruction is allowed through.
      */
-    FORCE_READ_ONLY("addl-restrict-force-read-only");
+    FORCE_READ_ONLY("addl-restrict-force-read-only"),
+
+    /**
+     * Limits the number of users that may concurrently access any one
+     * connection or connection group, regardless of any restrictions enforced
+     * by other extensions. The value of this restriction is the maximum number
+     * of concurrent users, including the user connecting. A value of 1 is
+     * equivalent to DISALLOW_CONCURRENT.
+     */
+    MAX_CONCURRENT("addl-restrict-max-concurrent", Type.NUMERIC),
+
+    /**
+     * Limits the number of connections and connection groups that each member
+     * of the affected user group may have open at once, across all
+     * connections and connection groups. The value of this restriction is the
+     * maximum number of simultaneously open tunnels, including the tunnel
+     * being opened.
+     */
+    MAX_SESSIONS("addl-restrict-max-sessions", Type.NUMERIC),
+
+    /**
+     * Limits the instructions that members of the affected user group may
+     * send to any connection to those having the listed opcodes. All other
+     * instructions are dropped. The value of this restriction is a
+     * space-separated list of opcodes. If FORCE_READ_ONLY also applies, only
+     * opcodes allowed by both restrictions may be sent.
+     */
+    ALLOWED_OPCODES("addl-restrict-allowed-opcodes", Type.LIST),
+
+    /**
+     * Coalesces bursts of "mouse" instructions sent by members of the
+     * affected user group which do not change the state of any mouse button,
+     * forwarding only the latest position within each window. The value of
+     * this restriction is the length of the coalescing window, in
+     * milliseconds.
+     */
+    MOUSE_COALESCE_WINDOW("addl-restrict-mouse-coalesce-window", Type.NUMERIC),
+
+    /**
+     * Limits the rate at which members of the affected user group may send
+     * "key" and "mouse" instructions to any one connection. Once the limit is
+     * exceeded, key presses and mouse motion are dropped. The value of this
+     * restriction is the sustained number of instructions per second.
+     */
+    INPUT_RATE("addl-restrict-input-rate", Type.NUMERIC),
+
+    /**
+     * Limits the number of "key" and "mouse" instructions that members of the
+     * affected user group may send in a single burst before INPUT_RATE takes
+     * effect. The value of this restriction is the number of instructions.
+     * This restriction has no effect unless INPUT_RATE also applies. If
+     * INPUT_RATE applies but this restriction does not, bursts are limited
+     * to one second of input.
+     */
+    INPUT_BURST("addl-restrict-input-burst", Type.NUMERIC),
+
+    /**
+     * Removes all audio streams from the data sent by connections to members
+     * of the affected user group. Members do not declare support for any
+     * audio formats when connecting, and any audio stream still sent is
+     * refused on the member's behalf, as if their client did not support
+     * audio.
+     */
+    DROP_AUDIO("addl-restrict-drop-audio"),
+
+    /**
+     * Closes connections of members of the affected user group which have
+     * received no keyboard, mouse, or other input from the member for a
+     * period of time. The value of this restriction is the length of that
+     * period, in minutes.
+     */
+    IDLE_TIMEOUT("addl-restrict-idle-timeout", Type.NUMERIC),
+
+    /**
+     * Closes connections of members of the affected user group once they
+     * have been open for a fixed amount of time, regardless of activity. The
+     * value of this restriction is that amount of time, in minutes.
+     */
+    MAX_SESSION_DURATION("addl-restrict-max-session-duration", Type.NUMERIC),
+
+    /**
+     * Limits the width of the display requested by members of the affected
+     * user group when connecting. Larger displays are scaled down, preserving
+     * their aspect ratio. The value of this restriction is the maximum width,
+     * in pixels.
+     */
+    MAX_DISPLAY_WIDTH("addl-restrict-max-display-width", Type.NUMERIC),
+
+    /**
+     * Limits the height of the display requested by members of the affected
+     * user group when connecting. Larger displays are scaled down, preserving
+     * their aspect ratio. The value of this restriction is the maximum
+     * height, in pixels.
+     */
+    MAX_DISPLAY_HEIGHT("addl-restrict-max-display-height", Type.NUMERIC),
+
+    /**
+     * Limits the resolution of the display requested by members of the
+     * affected user group when connecting. The value of this restriction is
+     * the maximum resolution, in DPI.
+     */
+    MAX_DISPLAY_DPI("addl-restrict-max-display-dpi", Type.NUMERIC),
+
+    /**
+     * Limits the image formats that members of the affected user group
+     * declare support for when connecting, such that connections encode
+     * graphical updates only with the listed formats or with PNG, which is
+     * always supported. The value of this restriction is a space-separated
+     * list of mimetypes.
+     */
+    ALLOWED_IMAGE_TYPES("addl-restrict-allowed-image-types", Type.LIST),
+
+    /**
+     * Removes all video formats from those that members of the affected user
+     * group declare support for when connecting, such that connections never
+     * send video streams.
+     */
+    DROP_VIDEO("addl-restrict-drop-video");
+
+    /**
+     * The types of values that may be associated with a restriction.
+     */
+    public enum Type {
+
+        /**
+         * A restriction which is either enabled or disabled. Enabled
+         * restrictions have the value TRUTH_VALUE.
+         */
+        BOOLEAN,
+
+        /**
+         * A restriction whose value is a positive integer. Where the same
+         * restriction is defined more than once for a user, the smallest value
+         * takes effect.
+         */
+        NUMERIC,
+
+        /**
+         * A restriction whose value is a space-separated list of words. Where
+         * the same restriction is defined more than once for a user, only the
+         * words present in every value take effect.
+         */
+        LIST
+
+    }
 
     /**
      * The string value used for the attribute associated with a restriction to
@@ -65,16 +217,37 @@ public enum Restriction {
      */
     private final String attributeName;
 
+    /**
+     * The type of value associated with this restriction.
+     */
+    private final Type type;
+
     /**
      * Creates a new Restriction which is exposed using the custom attribute
-     * having the given name.
+     * having the given name and whose value is of the given type.
      *
      * @param attributeName
      *     The name of the attribute which exposes whether the restriction is
      *     enabled.
+     *
+     * @param type
+     *     The type of value associated with the restriction.
      */
-    private Restriction(String attributeName) {
+    private Restriction(String attributeName, Type type) {
         this.attributeName = attributeName;
+        this.type = type;
+    }
+
+    /**
+     * Creates a new Restriction which is exposed using the custom attribute
+     * having the given name and which is simply either enabled or disabled.
+     *
+     * @param attributeName
+     *     The name of the attribute which exposes whether the restriction is
+     *     enabled.
+     */
+    private Restriction(String attributeName) {
+        this(attributeName, Type.BOOLEAN);
     }
 
     /**
@@ -89,6 +262,143 @@ public enum Restriction {
         return attributeName;
     }
 
+    /**
+     * Returns the type of value associated with this restriction.
+     *
+     * @return
+     *     The type of value associated with this restriction.
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Validates the given value for this restriction, returning the canonical
+     * form of that value. If the value does not denote that this restriction
+     * is in effect (it is null, empty, malformed, or otherwise disables the
+     * restriction), null is returned.
+     *
+     * @param value
+     *     The value to validate.
+     *
+     * @return
+     *     The canonical form of the given value, or null if the given value
+     *     does not denote that this restriction is in effect.
+     */
+    public String parseValue(String value) {
+
+        if (value == null)
+            return null;
+
+        switch (type) {
+
+            // Boolean restrictions are in effect only if explicitly enabled
+            case BOOLEAN:
+                return TRUTH_VALUE.equals(value) ? TRUTH_VALUE : null;
+
+            // Numeric restrictions are in effect only for positive integers
+            case NUMERIC:
+                try {
+                    int parsed = Integer.parseInt(value.trim());
+                    return parsed > 0 ? Integer.toString(parsed) : null;
+                }
+                catch (NumberFormatException e) {
+                    return null;
+                }
+
+            // List restrictions are in effect only if at least one word is
+            // listed, and are stored in sorted order without duplicates
+            case LIST:
+                String canonical = String.join(" ", new TreeSet<>(parseList(value)));
+                return canonical.isEmpty() ? null : canonical;
+
+        }
+
+        return null;
+
+    }
+
+    /**
+     * Combines two values of this restriction which apply to the same user,
+     * returning the value that should take effect. The most restrictive of
+     * the two values always wins.
+     *
+     * @param value
+     *     The first value, as would be returned by parseValue(), or null if
+     *     the restriction is not in effect.
+     *
+     * @param otherValue
+     *     The second value, as would be returned by parseValue(), or null if
+     *     the restriction is not in effect.
+     *
+     * @return
+     *     The value that should take effect for a user to which both of the
+     *     given values apply, or null if neither value is in effect.
+     */
+    public String combine(String value, String otherValue) {
+
+        if (value == null)
+            return otherValue;
+
+        if (otherValue == null)
+            return value;
+
+        // The smallest limit is the most restrictive
+        if (type == Type.NUMERIC)
+            return Integer.parseInt(value) <= Integer.parseInt(otherValue) ? value : otherValue;
+
+        // The intersection of two lists is the most restrictive
+        if (type == Type.LIST) {
+            Set<String> intersection = new TreeSet<>(parseList(value));
+            intersection.retainAll(parseList(otherValue));
+            return String.join(" ", intersection);
+        }
+
+        return value;
+
+    }
+
+    /**
+     * Splits the given space-separated list of words into its individual
+     * words. Leading, trailing, and repeated whitespace is ignored.
+     *
+     * @param value
+     *     The space-separated list to split.
+     *
+     * @return
+     *     A list of all words within the given value, in order.
+     */
+    public static List<String> parseList(String value) {
+
+        String trimmed = value.trim();
+        if (trimmed.isEmpty())
+            return Collections.emptyList();
+
+        return Arrays.asList(trimmed.split("\\s+"));
+
+    }
+
+    /**
+     * Returns the numeric value of this restriction for the given object, as
+     * dictated by the values of the restrictions applying to that object. If
+     * this restriction does not apply, the given default value is returned.
+     *
+     * @param object
+     *     The object whose restrictions should be checked.
+     *
+     * @param defaultValue
+     *     The value to return if this restriction does not apply to the given
+     *     object.
+     *
+     * @return
+     *     The numeric value of this restriction for the given object, or the
+     *     given default value if the restriction does not apply.
+     */
+    public int getNumericValue(Restricted object, int defaultValue) {
+        String value = object.getRestrictionValues().get(this);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
     /**
      * Creates a new map of attribute name/value pairs which exposes that the
      * restrictions in the given collection apply.
@@ -111,6 +421,27 @@ public enum Restriction {
 
     }
 
+    /**
+     * Creates a new map of attribute name/value pairs which exposes that the
+     * restrictions in the given map apply with the associated values.
+     *
+     * @param restrictions
+     *     A map of the restrictions to convert into a new map of attribute
+     *     name/value pairs to their corresponding values.
+     *
+     * @return
+     *     A new map of attribute name/value pairs which exposes that the given
+     *     restrictions apply with the given values.
+     */
+    public static Map<String, String> asAttributeMap(Map<Restriction, String> restrictions) {
+
+        Map<String, String> attributes = new HashMap<>();
+        restrictions.forEach((restriction, value) -> attributes.put(restriction.getAttributeName(), value));
+
+        return attributes;
+
+    }
+
     /**
      * Returns a Field which represents the attribute controlling whether this
      * restriction is enabled for a user or user group.
@@ -120,7 +451,15 @@ public enum Restriction {
      *     restriction is enabled.
      */
     public Field asField() {
+
+        if (type == Type.NUMERIC)
+            return new NumericField(attributeName);
+
+        if (type == Type.LIST)
+            return new TextField(attributeName);
+
         return new BooleanField(attributeName, TRUTH_VALUE);
+
     }
 
     /**
@@ -137,31 +476,63 @@ public enum Restriction {
      */
     public boolean isSet(Attributes object) {
         Map<String, String> attributes = object.getAttributes();
-        return TRUTH_VALUE.equals(attributes.get(attributeName));
+        return parseValue(attributes.get(attributeName)) != null;
     }
 
     /**
-     * Returns the set of restrictions which apply to the given object, as
-     * dictated by associated attributes.
+     * Returns the restrictions which apply to the given object, as dictated
+     * by associated attributes, along with the values of those restrictions.
      *
      * @param object
      *     The object whose attributes should be used to determine the
      *     restrictions that apply.
      *
      * @return
-     *     The set of restrictions which apply to the object according to its
-     *     associated attributes.
+     *     A map of all restrictions which apply to the object according to its
+     *     associated attributes to the values of those restrictions.
      */
-    public static EnumSet<Restriction> fromAttributes(Attributes object) {
+    public static Map<Restriction, String> fromAttributes(Attributes object) {
 
-        EnumSet<Restriction> restrictions = EnumSet.allOf(Restriction.class);
+        Map<String, String> attributes = object.getAttributes();
+        Map<Restriction, String> restrictions = new EnumMap<>(Restriction.class);
 
-        // Remove all restrictions which are not enabled according to the
+        // Include only restrictions which are enabled according to the
         // attributes associated with the given object
-        restrictions.removeIf(restriction -> !restriction.isSet(object));
+        for (Restriction restriction : values()) {
+            String value = restriction.parseValue(attributes.get(restriction.getAttributeName()));
+            if (value != null)
+                restrictions.put(restriction, value);
+        }
 
         return restrictions;
 
     }
 
+    /**
+     * Combines the given maps of restrictions and their values, producing a
+     * new map containing all restrictions from each. Where the same
+     * restriction is present in both maps, the most restrictive value takes
+     * effect.
+     *
+     * @param restrictions
+     *     The first map of restrictions to their values.
+     *
+     * @param otherRestrictions
+     *     The second map of restrictions to their values.
+     *
+     * @return
+     *     A new map containing the combination of all restrictions within
+     *     both of the given maps.
+     */
+    public static Map<Restriction, String> combine(Map<Restriction, String> restrictions,
+            Map<Restriction, String> otherRestrictions) {
+
+        Map<Restriction, String> combined = new EnumMap<>(Restriction.class);
+        combined.putAll(restrictions);
+        otherRestrictions.forEach((restriction, value) -> combined.merge(restriction, value, restriction::combine));
+
+        return combined;
+
+    }
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleReader implementation which records the activity of a connection
+ * within its ConnectionLease each time data is read. All data counts as
+ * activity, including the "nop" instructions which keep an otherwise quiet
+ * tunnel open.
+ */
+public class ActivityTrackingGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * The wrapped GuacamoleReader.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The lease of the connection being read.
+     */
+    private final ConnectionLease lease;
+
+    /**
+     * Creates a new ActivityTrackingGuacamoleReader which wraps the given
+     * reader, recording activity within the given lease.
+     *
+     * @param reader
+     *     The GuacamoleReader to wrap.
+     *
+     * @param lease
+     *     The lease of the connection being read.
+     */
+    public ActivityTrackingGuacamoleReader(GuacamoleReader reader,
+            ConnectionLease lease) {
+        this.reader = reader;
+        this.lease = lease;
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return reader.available();
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+        char[] data = reader.read();
+        lease.touch();
+        return data;
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+        GuacamoleInstruction instruction = reader.readInstruction();
+        lease.touch();
+        return instruction;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter implementation which records the activity of a connection
+ * within its ConnectionLease each time data is written. All data counts as
+ * activity, including the "nop" instructions which keep an otherwise quiet
+ * tunnel open.
+ */
+public class ActivityTrackingGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The wrapped GuacamoleWriter.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The lease of the connection being written.
+     */
+    private final ConnectionLease lease;
+
+    /**
+     * Creates a new ActivityTrackingGuacamoleWriter which wraps the given
+     * writer, recording activity within the given lease.
+     *
+     * @param writer
+     *     The GuacamoleWriter to wrap.
+     *
+     * @param lease
+     *     The lease of the connection being written.
+     */
+    public ActivityTrackingGuacamoleWriter(GuacamoleWriter writer,
+            ConnectionLease lease) {
+        this.writer = writer;
+        this.lease = lease;
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+        lease.touch();
+        writer.write(chunk, off, len);
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        lease.touch();
+        writer.write(chunk);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+        lease.touch();
+        writer.writeInstruction(instruction);
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.BitSet;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.apache.guacamole.protocol.GuacamoleStatus;
+
+/**
+ * GuacamoleReader implementation which removes audio streams from the data
+ * read from a connection. Each "audio" instruction opening a stream is
+ * dropped and the index of that stream is tracked until the stream is closed
+ * with "end", dropping all "blob" and "end" instructions for that stream
+ * along the way. As the client never learns of dropped streams, each is
+ * acknowledged on the client's behalf with the same "ack" that a client
+ * lacking audio support would send, such that the server's view of the
+ * stream handshake is unaffected. Chunks which contain no audio are returned
+ * as-is without copying.
+ */
+public class AudioFilteringGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * The largest stream index which will be tracked. Streams having larger
+     * indexes are passed through untouched.
+     */
+    private static final int MAX_STREAM_INDEX = 0xFFFF;
+
+    /**
+     * Stream index returned by parseStreamIndex() for instructions whose
+     * first argument is absent or not a valid stream index.
+     */
+    private static final int NO_STREAM = -1;
+
+    /**
+     * The human-readable message sent with the "ack" refusing each dropped
+     * audio stream.
+     */
+    private static final String REFUSAL_MESSAGE = "Audio is disabled.";
+
+    /**
+     * The wrapped GuacamoleReader.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The tunnel through which each refusal "ack" should be sent to the
+     * server.
+     */
+    private final GuacamoleTunnel tunnel;
+
+    /**
+     * The indexes of all audio streams which are currently open and being
+     * dropped.
+     */
+    private final BitSet audioStreams = new BitSet();
+
+    /**
+     * Creates a new AudioFilteringGuacamoleReader which removes audio streams
+     * from the data read from the given reader, acknowledging dropped
+     * streams through the given tunnel.
+     *
+     * @param reader
+     *     The GuacamoleReader to read instructions from.
+     *
+     * @param tunnel
+     *     The tunnel through which each refusal "ack" should be sent. The
+     *     writer of this tunnel is acquired only for as long as needed to
+     *     send each "ack".
+     */
+    public AudioFilteringGuacamoleReader(GuacamoleReader reader,
+            GuacamoleTunnel tunnel) {
+        this.reader = reader;
+        this.tunnel = tunnel;
+    }
+
+    /**
+     * Returns whether the opcode of the instruction at the given offset
+     * equals the given opcode.
+     *
+     * @param chunk
+     *     The array containing the instruction.
+     *
+     * @param valueStart
+     *     The offset of the first character of the opcode value.
+     *
+     * @param length
+     *     The length of the opcode value.
+     *
+     * @param opcode
+     *     The opcode to compare against.
+     *
+     * @return
+     *     true if the opcode of the instruction equals the given opcode,
+     *     false otherwise.
+     */
+    private static boolean opcodeEquals(char[] chunk, int valueStart,
+            int length, String opcode) {
+
+        if (length != opcode.length())
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (chunk[valueStart + i] != opcode.charAt(i))
+                return false;
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Parses the length prefix of the element beginning at the given offset.
+     *
+     * @param chunk
+     *     The array containing the element.
+     *
+     * @param offset
+     *     The offset of the first character of the length prefix.
+     *
+     * @param end
+     *     The offset just past the last character of valid data.
+     *
+     * @return
+     *     The offset of the '.' terminating the length prefix.
+     *
+     * @throws GuacamoleException
+     *     If the length prefix is malformed.
+     */
+    private static int findLengthEnd(char[] chunk, int offset, int end)
+            throws GuacamoleException {
+
+        int i = offset;
+        while (i < end && chunk[i] >= '0' && chunk[i] <= '9')
+            i++;
+
+        if (i == offset || i >= end || chunk[i] != '.' || i - offset > 9)
+            throw new GuacamoleServerException("Malformed instruction "
+                    + "received from connection.");
+
+        return i;
+
+    }
+
+    /**
+     * Parses the given range of characters as a decimal number.
+     *
+     * @param chunk
+     *     The array containing the characters to parse.
+     *
+     * @param start
+     *     The offset of the first character.
+     *
+     * @param end
+     *     The offset just past the last character.
+     *
+     * @return
+     *     The parsed value.
+     */
+    private static int parseDecimal(char[] chunk, int start, int end) {
+
+        int value = 0;
+        for (int i = start; i < end; i++)
+            value = value * 10 + (chunk[i] - '0');
+
+        return value;
+
+    }
+
+    /**
+     * Returns the stream index given by the element having the given value
+     * range, if that element is a valid stream index.
+     *
+     * @param chunk
+     *     The array containing the element.
+     *
+     * @param valueStart
+     *     The offset of the first character of the element value.
+     *
+     * @param length
+     *     The length of the element value.
+     *
+     * @return
+     *     The stream index, or NO_STREAM if the element is not a valid
+     *     stream index.
+     */
+    private static int parseStreamIndex(char[] chunk, int valueStart,
+            int length) {
+
+        if (length == 0 || length > 5)
+            return NO_STREAM;
+
+        for (int i = valueStart; i < valueStart + length; i++) {
+            if (chunk[i] < '0' || chunk[i] > '9')
+                return NO_STREAM;
+        }
+
+        int index = parseDecimal(chunk, valueStart, valueStart + length);
+        return index <= MAX_STREAM_INDEX ? index : NO_STREAM;
+
+    }
+
+    /**
+     * Sends an "ack" refusing the audio stream having the given index, as a
+     * client lacking audio support would.
+     *
+     * @param stream
+     *     The index of the audio stream being refused.
+     *
+     * @throws GuacamoleException
+     *     If the "ack" cannot be sent.
+     */
+    private void refuse(int stream) throws GuacamoleException {
+
+        GuacamoleWriter writer = tunnel.acquireWriter();
+        try {
+            writer.writeInstruction(new GuacamoleInstruction("ack",
+                    Integer.toString(stream), REFUSAL_MESSAGE,
+                    Integer.toString(GuacamoleStatus.CLIENT_BAD_TYPE.getGuacamoleStatusCode())));
+        }
+        finally {
+            tunnel.releaseWriter();
+        }
+
+    }
+
+    /**
+     * Determines whether the instruction having the given opcode and stream
+     * index belongs to an audio stream, updating the set of tracked streams
+     * and refusing newly-opened audio streams as necessary.
+     *
+     * @param isAudio
+     *     Whether the instruction is an "audio" instruction.
+     *
+     * @param isBlob
+     *     Whether the instruction is a "blob" instruction.
+     *
+     * @param isEnd
+     *     Whether the instruction is an "end" instruction.
+     *
+     * @param stream
+     *     The stream index given by the first argument of the instruction,
+     *     or NO_STREAM if there is no such index.
+     *
+     * @return
+     *     true if the instruction should be dropped, false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If a newly-opened audio stream cannot be refused.
+     */
+    private boolean drop(boolean isAudio, boolean isBlob, boolean isEnd,
+            int stream) throws GuacamoleException {
+
+        if (stream == NO_STREAM)
+            return false;
+
+        // Track and refuse all newly-opened audio streams
+        if (isAudio) {
+            audioStreams.set(stream);
+            refuse(stream);
+            return true;
+        }
+
+        // Drop data for tracked streams, forgetting each stream once it
+        // ends such that its index may be reused
+        if ((isBlob || isEnd) && audioStreams.get(stream)) {
+            if (isEnd)
+                audioStreams.clear(stream);
+            return true;
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Removes all audio stream instructions from the given chunk of complete
+     * instructions.
+     *
+     * @param chunk
+     *     The chunk of complete instructions to filter.
+     *
+     * @return
+     *     The given chunk if no instructions were removed, or a new array
+     *     containing only the instructions which were not removed.
+     *
+     * @throws GuacamoleException
+     *     If the chunk is malformed, or a dropped audio stream cannot be
+     *     refused.
+     */
+    private char[] filter(char[] chunk) throws GuacamoleException {
+
+        char[] filtered = null;
+        int filteredLength = 0;
+
+        // Start of the pending run of instructions being kept
+        int runStart = 0;
+
+        int i = 0;
+        while (i < chunk.length) {
+
+            int instructionStart = i;
+
+            // Parse opcode
+            int lengthEnd = findLengthEnd(chunk, i, chunk.length);
+            int opcodeStart = lengthEnd + 1;
+            int opcodeLength = parseDecimal(chunk, i, lengthEnd);
+            i = opcodeStart + opcodeLength;
+
+            boolean isAudio = opcodeEquals(chunk, opcodeStart, opcodeLength, "audio");
+            boolean isBlob = opcodeEquals(chunk, opcodeStart, opcodeLength, "blob");
+            boolean isEnd = opcodeEquals(chunk, opcodeStart, opcodeLength, "end");
+            int stream = NO_STREAM;
+
+            // Skip remaining elements, parsing the stream index of stream
+            // instructions
+            int element = 0;
+            while (i < chunk.length && chunk[i] == ',') {
+
+                lengthEnd = findLengthEnd(chunk, i + 1, chunk.length);
+                int valueStart = lengthEnd + 1;
+                int valueLength = parseDecimal(chunk, i + 1, lengthEnd);
+
+                if (element++ == 0 && (isAudio || isBlob || isEnd))
+                    stream = parseStreamIndex(chunk, valueStart, valueLength);
+
+                i = valueStart + valueLength;
+
+            }
+
+            if (i >= chunk.length || chunk[i] != ';')
+                throw new GuacamoleServerException("Malformed instruction "
+                        + "received from connection.");
+
+            i++;
+
+            // Copy the run of kept instructions preceding each dropped
+            // instruction
+            if (drop(isAudio, isBlob, isEnd, stream)) {
+
+                if (filtered == null)
+                    filtered = new char[chunk.length];
+
+                int runLength = instructionStart - runStart;
+                System.arraycopy(chunk, runStart, filtered, filteredLength, runLength);
+                filteredLength += runLength;
+                runStart = i;
+
+            }
+
+        }
+
+        // Avoid copying chunks that contain no audio
+        if (filtered == null)
+            return chunk;
+
+        int runLength = chunk.length - runStart;
+        System.arraycopy(chunk, runStart, filtered, filteredLength, runLength);
+        filteredLength += runLength;
+
+        char[] result = new char[filteredLength];
+        System.arraycopy(filtered, 0, result, 0, filteredLength);
+        return result;
+
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return reader.available();
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        // Continue reading past chunks consisting entirely of audio, as
+        // callers expect at least one complete instruction
+        char[] chunk;
+        do {
+
+            chunk = reader.read();
+            if (chunk == null)
+                return null;
+
+            chunk = filter(chunk);
+
+        } while (chunk.length == 0);
+
+        return chunk;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstruction instruction;
+        do {
+
+            instruction = reader.readInstruction();
+            if (instruction == null)
+                return null;
+
+        } while (dropInstruction(instruction));
+
+        return instruction;
+
+    }
+
+    /**
+     * Determines whether the given parsed instruction belongs to an audio
+     * stream, updating the set of tracked streams and refusing newly-opened
+     * audio streams as necessary.
+     *
+     * @param instruction
+     *     The instruction to check.
+     *
+     * @return
+     *     true if the instruction should be dropped, false otherwise.
+     *
+     * @throws GuacamoleException
+     *     If a newly-opened audio stream cannot be refused.
+     */
+    private boolean dropInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+
+        String opcode = instruction.getOpcode();
+        if (instruction.getArgs().isEmpty())
+            return false;
+
+        char[] index = instruction.getArgs().get(0).toCharArray();
+        return drop(opcode.equals("audio"), opcode.equals("blob"),
+                opcode.equals("end"), parseStreamIndex(index, 0, index.length));
+
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single user's use of a connection or connection group, as tracked by
+ * ConnectionManager. Each lease is created when a connection is established,
+ * records when the connection was last active, and releases the associated
+ * slot exactly once, regardless of how many times release() is invoked.
+ */
+public class ConnectionLease {
+
+    /**
+     * The identifier of the object leased.
+     */
+    private final GlobalConnectionIdentifier identifier;
+
+    /**
+     * The timer providing the clock used to record activity.
+     */
+    private final HashedWheelTimer timer;
+
+    /**
+     * The task to run when this lease is released.
+     */
+    private final Runnable releaseTask;
+
+    /**
+     * Whether this lease has been released.
+     */
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * The time that the leased connection was last active, in milliseconds,
+     * as dictated by the monotonic clock of the timer.
+     */
+    private volatile long lastActivity;
+
+    /**
+     * The time that the user of the leased connection last sent input, in
+     * milliseconds, as dictated by the monotonic clock of the timer.
+     */
+    private volatile long lastInput;
+
+    /**
+     * The Timeout which checks this lease for inactivity, if any.
+     */
+    private volatile HashedWheelTimer.Timeout reaperTimeout;
+
+    /**
+     * The Timeout which enforces the expiry of this lease, if any.
+     */
+    private volatile HashedWheelTimer.Timeout expiryTimeout;
+
+    /**
+     * Creates a new ConnectionLease on the object having the given
+     * identifier. The lease is considered active as of its creation.
+     *
+     * @param identifier
+     *     The identifier of the object leased.
+     *
+     * @param timer
+     *     The timer providing the clock used to record activity.
+     *
+     * @param releaseTask
+     *     The task to run when the lease is released. This task will run at
+     *     most once.
+     */
+    public ConnectionLease(GlobalConnectionIdentifier identifier,
+            HashedWheelTimer timer, Runnable releaseTask) {
+        this.identifier = identifier;
+        this.timer = timer;
+        this.releaseTask = releaseTask;
+        this.lastActivity = timer.monotonicTimeMillis();
+        this.lastInput = lastActivity;
+    }
+
+    /**
+     * Returns the identifier of the object leased.
+     *
+     * @return
+     *     The identifier of the object leased.
+     */
+    public GlobalConnectionIdentifier getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Records that the leased connection is currently active. This function
+     * is invoked each time the tunnel of the connection is read or written
+     * and is therefore kept as cheap as possible, reading the coarse clock of
+     * the timer and writing only if that clock has advanced.
+     */
+    public void touch() {
+        long now = timer.monotonicTimeMillis();
+        if (lastActivity != now)
+            lastActivity = now;
+    }
+
+    /**
+     * Returns the time that the leased connection was last active.
+     *
+     * @return
+     *     The time that the leased connection was last active, in
+     *     milliseconds, as dictated by the monotonic clock of the timer and
+     *     accurate to within one tick of that timer.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Records that the user of the leased connection has just sent input.
+     * As with touch(), this function is invoked for each instruction of
+     * input and writes only if the coarse clock of the timer has advanced.
+     */
+    public void touchInput() {
+        long now = timer.monotonicTimeMillis();
+        if (lastInput != now)
+            lastInput = now;
+    }
+
+    /**
+     * Returns the time that the user of the leased connection last sent
+     * input. If no input has been sent, this is the time the lease was
+     * created.
+     *
+     * @return
+     *     The time that the user of the leased connection last sent input,
+     *     in milliseconds, as dictated by the monotonic clock of the timer
+     *     and accurate to within one tick of that timer.
+     */
+    public long getLastInput() {
+        return lastInput;
+    }
+
+    /**
+     * Sets the Timeout which checks this lease for inactivity, replacing any
+     * previous such Timeout. The Timeout is cancelled when this lease is
+     * released.
+     *
+     * @param reaperTimeout
+     *     The Timeout which checks this lease for inactivity.
+     */
+    void setReaperTimeout(HashedWheelTimer.Timeout reaperTimeout) {
+        this.reaperTimeout = reaperTimeout;
+    }
+
+    /**
+     * Sets the Timeout which enforces the expiry of this lease, replacing any
+     * previous such Timeout. The Timeout is cancelled when this lease is
+     * released.
+     *
+     * @param expiryTimeout
+     *     The Timeout which enforces the expiry of this lease.
+     */
+    void setExpiryTimeout(HashedWheelTimer.Timeout expiryTimeout) {
+        this.expiryTimeout = expiryTimeout;
+    }
+
+    /**
+     * Returns the timer providing the clock used to record activity. Tasks
+     * concerning the tunnel associated with this lease may also be scheduled
+     * on this timer.
+     *
+     * @return
+     *     The timer providing the clock used to record activity.
+     */
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Returns whether this lease has been released.
+     *
+     * @return
+     *     true if this lease has been released, false otherwise.
+     */
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /**
+     * Releases this lease, running the associated release task if this lease
+     * has not already been released.
+     *
+     * @return
+     *     true if this call released the lease, false if the lease had
+     *     already been released.
+     */
+    public boolean release() {
+
+        if (!released.compareAndSet(false, true))
+            return false;
+
+        HashedWheelTimer.Timeout timeout = reaperTimeout;
+        if (timeout != null)
+            timeout.cancel();
+
+        timeout = expiryTimeout;
+        if (timeout != null)
+            timeout.cancel();
+
+        releaseTask.run();
+        return true;
+
+    }
+
+}
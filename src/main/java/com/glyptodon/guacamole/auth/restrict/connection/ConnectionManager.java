@@ -23,95 +23,1601 @@
 package com.glyptodon.guacamole.auth.restrict.connection;
 
 import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.ActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.ConnectionLeaseStore;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.MappedActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.SharedActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.metrics.Histogram;
+import com.glyptodon.guacamole.auth.restrict.metrics.InputStatistics;
+import com.glyptodon.guacamole.auth.restrict.metrics.PermissionCacheStatistics;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelCounters;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelStatistics;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelUsage;
 import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
-import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.util.concurrent.Striped;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.apache.guacamole.GuacamoleSecurityException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.environment.Environment;
+import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.FileGuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
+import org.apache.guacamole.properties.StringGuacamoleProperty;
 import org.apache.guacamole.net.GuacamoleTunnel;
 import org.apache.guacamole.net.auth.Connectable;
 import org.apache.guacamole.net.auth.Connection;
 import org.apache.guacamole.net.auth.ConnectionGroup;
 import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Tracks active connections, automatically enforcing concurrent access
  * restrictions. Connections and connection groups may both be tracked. Tracked
  * objects need not come from the same UserContext nor from the same
- * AuthenticationProvider.
+ * AuthenticationProvider. The number of active connections to each object is
+ * stored within an ActiveConnectionRegistry, which may be local to this JVM or
+ * shared by multiple Guacamole instances.
+ *
+ * If configured to do so, users whose connection attempts are blocked by
+ * concurrent access restrictions wait in a first-come, first-served queue
+ * for the connection to become available, rather than being rejected
+ * immediately. Waiting users are parked until a slot is handed to them or
+ * until the configured timeout elapses. Slots freed through this
+ * ConnectionManager pass directly to the longest-waiting user that may take
+ * them, and new attempts join the queue while anyone is waiting. Slots freed
+ * by other Guacamole instances are found by the longest-waiting user, which
+ * polls the registry while parked.
+ *
+ * The number of connections open by each user is also tracked, such that
+ * users may be limited in the number of connections they hold at once. The
+ * per-user limit and the per-connection limit are checked and claimed
+ * together, under a lock specific to the user.
+ *
+ * Snapshots of the connections established through this instance may be
+ * retrieved at any time without blocking connection attempts, and are
+ * published via JMX under the ObjectName given by MBEAN_NAME.
+ *
+ * Each established connection is tracked by a ConnectionLease recording when
+ * that connection last passed data. Leases of connections which pass no data
+ * for longer than the configured lease timeout are reclaimed in bulk by a
+ * single background timer, such that tunnels which are never closed cannot
+ * permanently consume slots. The same timer closes the connections of users
+ * subject to an idle timeout once those users stop sending input, and the
+ * connections of users subject to a maximum session duration once that
+ * duration has elapsed.
  */
-public class ConnectionManager {
+public class ConnectionManager implements ConnectionManagerMXBean {
+
+    /**
+     * The Guacamole property controlling the maximum number of seconds that
+     * a user may wait for a connection blocked by concurrent access
+     * restrictions to become available. If zero (the default), connection
+     * attempts that are blocked by concurrent access restrictions fail
+     * immediately.
+     */
+    private static final IntegerGuacamoleProperty CONCURRENT_ACCESS_WAIT_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "concurrent-access-wait-timeout";
+        }
+
+    };
+
+    /**
+     * The Guacamole property selecting where connection usage is tracked.
+     * This may be "local" (the default) to track usage within the current
+     * JVM only, "mapped" to track usage within a memory-mapped file shared
+     * by all Guacamole instances on the same host, or "shared" to track usage
+     * within a ConnectionLeaseStore shared by all Guacamole instances.
+     */
+    private static final StringGuacamoleProperty ACTIVE_CONNECTION_REGISTRY = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "active-connection-registry";
+        }
+
+    };
+
+    /**
+     * The Guacamole property specifying the fully-qualified name of the
+     * ConnectionLeaseStore implementation to use if connection usage is
+     * tracked within a shared store.
+     */
+    private static final StringGuacamoleProperty ACTIVE_CONNECTION_LEASE_STORE = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "active-connection-lease-store";
+        }
+
+    };
+
+    /**
+     * The Guacamole property specifying the file that should be mapped if
+     * connection usage is tracked within a memory-mapped file.
+     */
+    private static final FileGuacamoleProperty ACTIVE_CONNECTION_TABLE_FILE = new FileGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "active-connection-table-file";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the number of entries within the
+     * memory-mapped file if connection usage is tracked within a
+     * memory-mapped file. This limits the number of distinct connections and
+     * connection groups that may be in use simultaneously, and must be the
+     * same for all Guacamole instances sharing the file. By default, the
+     * table contains 4096 entries.
+     */
+    private static final IntegerGuacamoleProperty ACTIVE_CONNECTION_TABLE_SIZE = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "active-connection-table-size";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the number of seconds that each
+     * lease within a shared store remains valid without being renewed, or
+     * that usage recorded within a memory-mapped file by an unresponsive
+     * Guacamole instance remains counted. By default, this is 30 seconds.
+     */
+    private static final IntegerGuacamoleProperty ACTIVE_CONNECTION_LEASE_DURATION = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "active-connection-lease-duration";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the number of seconds that a
+     * connection may pass no data in either direction before it is considered
+     * dead, its tunnel closed, and its slot reclaimed. This protects against
+     * slots that would otherwise be leaked by tunnels which are never closed.
+     * If zero, slots are never reclaimed. By default, this is zero.
+     */
+    private static final IntegerGuacamoleProperty CONNECTION_LEASE_TIMEOUT = new IntegerGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "connection-lease-timeout";
+        }
+
+    };
+
+    /**
+     * The Guacamole property overriding the opcodes of the instructions that
+     * users restricted to read-only access may send, as a space-separated
+     * list. By default, only "ack", "disconnect", "nop", and "sync" are
+     * allowed.
+     */
+    private static final StringGuacamoleProperty READ_ONLY_ALLOWED_OPCODES = new StringGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "read-only-allowed-opcodes";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling whether the instructions passing
+     * through each tunnel should be counted by opcode. By default, tunnel
+     * statistics are not collected.
+     */
+    private static final BooleanGuacamoleProperty ENABLE_TUNNEL_STATISTICS = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "enable-tunnel-statistics";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling whether the amount of time taken by
+     * each write to a connection should be recorded, in addition to the
+     * per-opcode counts collected when tunnel statistics are enabled. By
+     * default, write latency is not recorded.
+     */
+    private static final BooleanGuacamoleProperty ENABLE_TUNNEL_WRITE_LATENCY = new BooleanGuacamoleProperty() {
+
+        @Override
+        public String getName() {
+            return "enable-tunnel-write-latency";
+        }
+
+    };
+
+    /**
+     * The duration of each tick of the timer used to track connection
+     * leases, in milliseconds.
+     */
+    private static final long TIMER_TICK_DURATION = 1000;
+
+    /**
+     * The interval at which the longest-waiting user rechecks the registry
+     * for slots freed by other Guacamole instances, in nanoseconds. Slots
+     * freed by this instance are handed over immediately and do not rely on
+     * this interval.
+     */
+    private static final long WAIT_POLL_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The opcode of the instruction that every opcode policy must allow.
+     * Clients acknowledge each frame with a "sync" instruction, and the
+     * server stops sending frames if those acknowledgements stop arriving.
+     */
+    private static final String ESSENTIAL_OPCODE = "sync";
+
+    /**
+     * The number of buckets within the wheel of the timer used to track
+     * connection leases.
+     */
+    private static final int TIMER_BUCKETS = 512;
+
+    /**
+     * The number of locks used to serialize admission of connections by
+     * users that are subject to session limits.
+     */
+    private static final int SESSION_LOCK_STRIPES = 64;
+
+    /**
+     * The ObjectName under which the ConnectionManager is registered with the
+     * platform MBeanServer.
+     */
+    public static final String MBEAN_NAME = "com.glyptodon.guacamole.auth.restrict:type=ConnectionManager";
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
+
+    /**
+     * The state of a Waiter which is still waiting for a slot.
+     */
+    private static final int WAITING = 0;
+
+    /**
+     * The state of a Waiter which has been handed a slot by release().
+     */
+    private static final int GRANTED = 1;
+
+    /**
+     * The state of a Waiter which has stopped waiting without being handed a
+     * slot.
+     */
+    private static final int CANCELLED = 2;
+
+    /**
+     * A user waiting for a slot to become available. The state of each
+     * Waiter transitions exactly once, from WAITING to either GRANTED (by the
+     * thread handing over a slot) or CANCELLED (by the waiting thread
+     * itself).
+     */
+    private static class Waiter extends AtomicInteger {
+
+        /**
+         * Arbitrary identifier for serialization purposes, required by
+         * AtomicInteger.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The thread which is waiting.
+         */
+        private final Thread thread = Thread.currentThread();
+
+        /**
+         * The maximum number of concurrent users that the waiting user will
+         * tolerate, including that user.
+         */
+        private final int limit;
+
+        /**
+         * Creates a new Waiter representing the current thread.
+         *
+         * @param limit
+         *     The maximum number of concurrent users that the waiting user
+         *     will tolerate, including that user.
+         */
+        public Waiter(int limit) {
+            super(WAITING);
+            this.limit = limit;
+        }
+
+    }
+
+    /**
+     * The registry tracking the number of active connections to each
+     * connectable object.
+     */
+    private final ActiveConnectionRegistry registry;
+
+    /**
+     * The maximum amount of time that a user may wait for a slot, in
+     * nanoseconds. If zero, users never wait.
+     */
+    private final long waitTimeout;
+
+    /**
+     * All users currently waiting for a slot, grouped by the identifier of
+     * the object they are waiting for. Queues are added and removed
+     * atomically via compute() and related functions, which also serve to
+     * guard access to each queue.
+     */
+    private final ConcurrentMap<GlobalConnectionIdentifier, Queue<Waiter>> waitQueues = new ConcurrentHashMap<>();
+
+    /**
+     * The total number of users currently waiting for a slot.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * The number of waiting users that gave up waiting due to timeout or
+     * interruption.
+     */
+    private final LongAdder waitTimeouts = new LongAdder();
+
+    /**
+     * The amount of time that users which successfully acquired a slot after
+     * waiting spent waiting, in nanoseconds.
+     */
+    private final Histogram waitTimes = new Histogram();
+
+    /**
+     * The number of milliseconds that a connection may pass no data before
+     * its slot is reclaimed. If zero, slots are never reclaimed.
+     */
+    private final long leaseTimeout;
+
+    /**
+     * The opcodes of all instructions that users restricted to read-only
+     * access may send.
+     */
+    private final OpcodeSet readOnlyOpcodes;
+
+    /**
+     * The counters describing the instructions passing through all tunnels
+     * established by this ConnectionManager, or null if tunnel statistics
+     * are not being collected.
+     */
+    private final TunnelStatistics tunnelStatistics;
+
+    /**
+     * The timer which tracks the activity of all connection leases, and which
+     * provides the clock used to record that activity.
+     */
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            "addl-restrict-lease-reaper", TIMER_TICK_DURATION, TIMER_BUCKETS);
+
+    /**
+     * The number of slots that were reclaimed from connections which passed
+     * no data for longer than the lease timeout.
+     */
+    private final LongAdder reclaimed = new LongAdder();
+
+    /**
+     * The number of connections that were closed because their users sent no
+     * input for longer than the applicable idle timeout.
+     */
+    private final LongAdder idleClosed = new LongAdder();
+
+    /**
+     * The number of connections that were closed because they reached the
+     * end of the applicable maximum session duration.
+     */
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Statistics describing how the input sent through tunnels established
+     * by this ConnectionManager has been altered.
+     */
+    private final InputStatistics inputStatistics = new InputStatistics();
+
+    /**
+     * Statistics describing the effectiveness of the caches of
+     * administrative permissions of all users whose connections are managed
+     * by this ConnectionManager.
+     */
+    private final PermissionCacheStatistics permissionCacheStatistics = new PermissionCacheStatistics();
+
+    /**
+     * The number of connections and connection groups that each user
+     * currently has open, keyed by username. Users with no open connections
+     * are absent. Counts are updated atomically via merge() and
+     * computeIfPresent().
+     */
+    private final ConcurrentMap<String, Integer> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The ObjectName under which this ConnectionManager was registered with
+     * the platform MBeanServer, or null if it was not registered.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * Locks which serialize admission of connections for users that are
+     * subject to session limits, such that the session limit and concurrent
+     * access restrictions are checked and claimed together. Each user maps to
+     * exactly one lock.
+     */
+    private final Striped<Lock> sessionLocks = Striped.lock(SESSION_LOCK_STRIPES);
+
+    /**
+     * Creates a new ConnectionManager which reads its configuration from the
+     * given Environment.
+     *
+     * @param environment
+     *     The Environment to retrieve configuration information from.
+     *
+     * @throws GuacamoleException
+     *     If guacamole.properties cannot be read, or an error occurs parsing
+     *     configuration options within guacamole.properties.
+     */
+    public ConnectionManager(Environment environment) throws GuacamoleException {
+        this(createRegistry(environment),
+                environment.getProperty(CONCURRENT_ACCESS_WAIT_TIMEOUT, 0),
+                environment.getProperty(CONNECTION_LEASE_TIMEOUT, 0),
+                getReadOnlyOpcodes(environment),
+                getTunnelStatistics(environment));
+        registerMBean();
+    }
+
+    /**
+     * Creates a new ConnectionManager which tracks connection usage within
+     * the given registry.
+     *
+     * @param registry
+     *     The registry that should be used to track connection usage.
+     *
+     * @param waitTimeout
+     *     The maximum number of seconds that a user may wait for a connection
+     *     blocked by concurrent access restrictions to become available, or
+     *     zero if such connection attempts should fail immediately.
+     *
+     * @param leaseTimeout
+     *     The number of seconds that a connection may pass no data before its
+     *     tunnel is closed and its slot reclaimed, or zero if slots should
+     *     never be reclaimed.
+     *
+     * @param readOnlyOpcodes
+     *     The opcodes of all instructions that users restricted to read-only
+     *     access may send.
+     *
+     * @param tunnelStatistics
+     *     The counters that the instructions passing through all tunnels
+     *     should be recorded against, or null if tunnel statistics should
+     *     not be collected.
+     */
+    public ConnectionManager(ActiveConnectionRegistry registry, int waitTimeout,
+            int leaseTimeout, OpcodeSet readOnlyOpcodes,
+            TunnelStatistics tunnelStatistics) {
+        this.registry = registry;
+        this.waitTimeout = TimeUnit.SECONDS.toNanos(Math.max(0, waitTimeout));
+        this.leaseTimeout = TimeUnit.SECONDS.toMillis(Math.max(0, leaseTimeout));
+        this.readOnlyOpcodes = readOnlyOpcodes;
+        this.tunnelStatistics = tunnelStatistics;
+    }
+
+    /**
+     * Creates a new ConnectionManager which tracks connection usage within
+     * the given registry, allowing users restricted to read-only access to
+     * send only the instructions within
+     * RestrictedExternalTunnel.OPCODE_WHITELIST. Tunnel statistics are not
+     * collected.
+     *
+     * @param registry
+     *     The registry that should be used to track connection usage.
+     *
+     * @param waitTimeout
+     *     The maximum number of seconds that a user may wait for a connection
+     *     blocked by concurrent access restrictions to become available, or
+     *     zero if such connection attempts should fail immediately.
+     *
+     * @param leaseTimeout
+     *     The number of seconds that a connection may pass no data before its
+     *     tunnel is closed and its slot reclaimed, or zero if slots should
+     *     never be reclaimed.
+     */
+    public ConnectionManager(ActiveConnectionRegistry registry, int waitTimeout,
+            int leaseTimeout) {
+        this(registry, waitTimeout, leaseTimeout,
+                RestrictedExternalTunnel.OPCODE_WHITELIST, null);
+    }
+
+    /**
+     * Returns the TunnelStatistics that the instructions passing through all
+     * tunnels should be recorded against, as dictated by the given
+     * Environment.
+     *
+     * @param environment
+     *     The Environment to retrieve configuration information from.
+     *
+     * @return
+     *     A new TunnelStatistics, or null if tunnel statistics should not be
+     *     collected.
+     *
+     * @throws GuacamoleException
+     *     If guacamole.properties cannot be read.
+     */
+    private static TunnelStatistics getTunnelStatistics(Environment environment)
+            throws GuacamoleException {
+
+        if (!environment.getProperty(ENABLE_TUNNEL_STATISTICS, false))
+            return null;
+
+        return new TunnelStatistics(environment.getProperty(ENABLE_TUNNEL_WRITE_LATENCY, false));
+
+    }
+
+    /**
+     * Returns the opcodes of all instructions that users restricted to
+     * read-only access may send, as dictated by the given Environment.
+     *
+     * @param environment
+     *     The Environment to retrieve configuration information from.
+     *
+     * @return
+     *     The opcodes of all instructions that users restricted to read-only
+     *     access may send.
+     *
+     * @throws GuacamoleException
+     *     If guacamole.properties cannot be read, or the configured list of
+     *     opcodes is invalid.
+     */
+    private static OpcodeSet getReadOnlyOpcodes(Environment environment)
+            throws GuacamoleException {
+
+        String opcodes = environment.getProperty(READ_ONLY_ALLOWED_OPCODES);
+        if (opcodes == null)
+            return RestrictedExternalTunnel.OPCODE_WHITELIST;
+
+        try {
+            return OpcodeSet.precompile(opcodes);
+        }
+        catch (IllegalArgumentException e) {
+            throw new GuacamoleServerException("Property \""
+                    + READ_ONLY_ALLOWED_OPCODES.getName() + "\" may list no "
+                    + "more than " + OpcodeSet.MAX_SIZE + " opcodes.", e);
+        }
+
+    }
+
+    /**
+     * Creates the ActiveConnectionRegistry dictated by the given Environment.
+     * Unless configured otherwise, connection usage is tracked only within
+     * the current JVM.
+     *
+     * @param environment
+     *     The Environment to retrieve configuration information from.
+     *
+     * @return
+     *     A new ActiveConnectionRegistry, as dictated by guacamole.properties.
+     *
+     * @throws GuacamoleException
+     *     If guacamole.properties cannot be read, an error occurs parsing
+     *     configuration options within guacamole.properties, or the
+     *     configured registry cannot be created.
+     */
+    private static ActiveConnectionRegistry createRegistry(Environment environment)
+            throws GuacamoleException {
+
+        String type = environment.getProperty(ACTIVE_CONNECTION_REGISTRY, "local");
+        switch (type) {
+
+            // Track usage within this JVM only (default)
+            case "local":
+                return new InMemoryActiveConnectionRegistry();
+
+            // Track usage within a file shared by all Guacamole instances on
+            // the same host
+            case "mapped":
+                return new MappedActiveConnectionRegistry(
+                        environment.getRequiredProperty(ACTIVE_CONNECTION_TABLE_FILE),
+                        environment.getProperty(ACTIVE_CONNECTION_TABLE_SIZE, 4096),
+                        TimeUnit.SECONDS.toMillis(environment.getProperty(ACTIVE_CONNECTION_LEASE_DURATION, 30)));
+
+            // Track usage within a store shared by all Guacamole instances
+            case "shared":
+                String storeClass = environment.getRequiredProperty(ACTIVE_CONNECTION_LEASE_STORE);
+                try {
+                    ConnectionLeaseStore store = Class.forName(storeClass)
+                            .asSubclass(ConnectionLeaseStore.class)
+                            .getConstructor().newInstance();
+                    return new SharedActiveConnectionRegistry(store,
+                            TimeUnit.SECONDS.toMillis(environment.getProperty(ACTIVE_CONNECTION_LEASE_DURATION, 30)));
+                }
+                catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new GuacamoleServerException("Connection lease store \""
+                            + storeClass + "\" cannot be created.", e);
+                }
+
+        }
+
+        throw new GuacamoleServerException("Property \""
+                + ACTIVE_CONNECTION_REGISTRY.getName() + "\" must be "
+                + "\"local\", \"mapped\", or \"shared\".");
+
+    }
+
+    /**
+     * Registers this ConnectionManager with the platform MBeanServer under
+     * MBEAN_NAME. Failure to register, including due to another
+     * ConnectionManager already having been registered, is logged and does
+     * not otherwise affect the operation of this ConnectionManager.
+     */
+    private void registerMBean() {
+
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mbeanName = name;
+        }
+        catch (JMException | RuntimeException e) {
+            logger.warn("Connection usage will not be available via JMX: {}", e.getMessage());
+            logger.debug("Registration of ConnectionManager MBean failed.", e);
+        }
+
+    }
+
+    /**
+     * Releases any resources held by this ConnectionManager, such as
+     * background threads and its JMX registration. The ConnectionManager must
+     * not be used after this function has been invoked.
+     */
+    public void shutdown() {
+
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }
+            catch (JMException | RuntimeException e) {
+                logger.debug("Unregistration of ConnectionManager MBean failed.", e);
+            }
+        }
+
+        timer.stop();
+        registry.shutdown();
+
+    }
+
+    /**
+     * Attempts to marks the connectable object associated with the given
+     * identifier as in use, without waiting. If the object is already in use
+     * by the maximum number of concurrent users allowed, this operation will
+     * fail. If successful, the object must eventually be unmarked as in use
+     * through a call to release() or releaseSlot(). Errors preventing usage
+     * from being determined are logged and result in failure.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being connected
+     *     to.
+     *
+     * @param limit
+     *     The maximum number of concurrent users of the object having the
+     *     given identifier, including the user attempting to connect.
+     *
+     * @return
+     *     true if the object having the given identifier was successfully
+     *     marked as in use, false if the operation failed due to concurrent
+     *     access restrictions or an error.
+     */
+    private boolean tryAcquire(GlobalConnectionIdentifier identifier, int limit) {
+
+        try {
+            return registry.acquire(identifier, limit);
+        }
+        catch (GuacamoleException | RuntimeException e) {
+            logger.warn("Unable to determine whether connectable object "
+                    + "\"{}\" is available: {}", identifier.getKey(),
+                    e.getMessage());
+            logger.debug("Acquisition of connection slot failed.", e);
+            return false;
+        }
+
+    }
+
+    /**
+     * Unmarks the connectable object associated with the given identifier as
+     * in use, without handing the freed slot to any waiting user. This
+     * function MUST be called exactly once for every successful call to
+     * tryAcquire() that is not otherwise released, and MUST NOT be called for
+     * any tryAcquire() call that failed. Errors preventing usage from being
+     * updated are logged.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object which is no
+     *     longer in use.
+     */
+    private void releaseSlot(GlobalConnectionIdentifier identifier) {
+
+        try {
+            registry.release(identifier);
+        }
+        catch (GuacamoleException | RuntimeException e) {
+            logger.warn("Unable to release connectable object \"{}\": {}",
+                    identifier.getKey(), e.getMessage());
+            logger.debug("Release of connection slot failed.", e);
+        }
+
+    }
+
+    /**
+     * Removes the given Waiter from the queue of users waiting for the object
+     * having the given identifier, if still present. The queue itself is
+     * removed once empty.
+     *
+     * @param identifier
+     *     The identifier of the object that the given Waiter was waiting for.
+     *
+     * @param waiter
+     *     The Waiter to remove.
+     */
+    private void dequeue(GlobalConnectionIdentifier identifier, Waiter waiter) {
+        waitQueues.computeIfPresent(identifier, (key, queue) -> {
+            if (queue.remove(waiter))
+                waiting.decrementAndGet();
+            return queue.isEmpty() ? null : queue;
+        });
+    }
+
+    /**
+     * Returns whether any users are waiting for the connectable object
+     * associated with the given identifier. While users are waiting, new
+     * connection attempts must join the queue rather than claim slots
+     * directly, such that slots are never taken ahead of users already
+     * waiting.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being connected
+     *     to.
+     *
+     * @return
+     *     true if any users are waiting for the given object, false
+     *     otherwise.
+     */
+    private boolean hasWaiters(GlobalConnectionIdentifier identifier) {
+        return waitQueues.containsKey(identifier);
+    }
+
+    /**
+     * Marks the connectable object associated with the given identifier as in
+     * use, waiting for that object to become available if necessary and if
+     * waiting is enabled. If other users are already waiting for the object,
+     * the attempt joins the end of their queue. If successful, the object
+     * must eventually be unmarked as in use through a call to release().
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being connected
+     *     to.
+     *
+     * @param limit
+     *     The maximum number of concurrent users of the object having the
+     *     given identifier, including the user attempting to connect.
+     *
+     * @return
+     *     true if the object having the given identifier was successfully
+     *     marked as in use, false if the operation failed due to concurrent
+     *     access restrictions.
+     */
+    private boolean acquire(GlobalConnectionIdentifier identifier, int limit) {
+
+        if (!hasWaiters(identifier) && tryAcquire(identifier, limit))
+            return true;
+
+        return await(identifier, limit);
+
+    }
 
     /**
-     * All active connections.
+     * Waits for the connectable object associated with the given identifier to
+     * become available, marking that object as in use once available. Users
+     * are served in the order they began waiting, skipping only users whose
+     * own concurrent access restrictions do not yet allow them to connect.
+     * If waiting is disabled, this function fails immediately. If successful,
+     * the object must eventually be unmarked as in use through a call to
+     * release().
+     *
+     * Slots freed through this ConnectionManager are handed directly to
+     * waiting users by release(). Slots freed by other Guacamole instances
+     * sharing the same registry are found by the longest-waiting user, which
+     * rechecks the registry every WAIT_POLL_INTERVAL nanoseconds.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being connected
+     *     to.
+     *
+     * @param limit
+     *     The maximum number of concurrent users of the object having the
+     *     given identifier, including the user attempting to connect.
+     *
+     * @return
+     *     true if the object having the given identifier was successfully
+     *     marked as in use, false if the operation failed due to concurrent
+     *     access restrictions.
+     */
+    private boolean await(GlobalConnectionIdentifier identifier, int limit) {
+
+        // Fail outright if waiting is disabled
+        if (waitTimeout == 0)
+            return false;
+
+        long start = System.nanoTime();
+        Waiter waiter = new Waiter(limit);
+
+        waitQueues.compute(identifier, (key, queue) -> {
+            if (queue == null)
+                queue = new ArrayDeque<>();
+            queue.add(waiter);
+            waiting.incrementAndGet();
+            return queue;
+        });
+
+        // Slots may have been freed before we were queued, in which case no
+        // release() call will hand those slots to anyone
+        dispatch(identifier);
+
+        // Park until a slot is handed to us or we give up
+        long deadline = start + waitTimeout;
+        while (waiter.get() == WAITING) {
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+
+                // Give up only if a slot was not handed to us in the meantime
+                if (waiter.compareAndSet(WAITING, CANCELLED)) {
+                    dequeue(identifier, waiter);
+                    waitTimeouts.increment();
+                    return false;
+                }
+
+                break;
+
+            }
+
+            LockSupport.parkNanos(this, Math.min(remaining, WAIT_POLL_INTERVAL));
+
+            // Look for slots freed by other instances only while at the head
+            // of the queue, such that the registry is polled once per
+            // interval regardless of the number of users waiting
+            if (waiter.get() == WAITING && isFirstWaiter(identifier, waiter))
+                dispatch(identifier);
+
+        }
+
+        waitTimes.record(System.nanoTime() - start);
+        return true;
+
+    }
+
+    /**
+     * Returns whether the given Waiter is the longest-waiting user still
+     * waiting for the object having the given identifier.
+     *
+     * @param identifier
+     *     The identifier of the object being waited for.
+     *
+     * @param waiter
+     *     The Waiter to check.
+     *
+     * @return
+     *     true if the given Waiter is at the head of the queue of users
+     *     waiting for the given object, false otherwise.
+     */
+    private boolean isFirstWaiter(GlobalConnectionIdentifier identifier,
+            Waiter waiter) {
+        List<Waiter> waiters = getWaiters(identifier);
+        return !waiters.isEmpty() && waiters.get(0) == waiter;
+    }
+
+    /**
+     * Returns all users which are still waiting for the object having the
+     * given identifier, in the order they began waiting. The returned list
+     * is a copy which will not change as users begin or stop waiting.
+     *
+     * @param identifier
+     *     The identifier of the object being waited for.
+     *
+     * @return
+     *     A new list of all users still waiting for the given object.
      */
-    private final ConcurrentHashMultiset<GlobalConnectionIdentifier> activeConnections = ConcurrentHashMultiset.create();
+    private List<Waiter> getWaiters(GlobalConnectionIdentifier identifier) {
+
+        List<Waiter> waiters = new ArrayList<>();
+        waitQueues.computeIfPresent(identifier, (key, queue) -> {
+            for (Waiter waiter : queue) {
+                if (waiter.get() == WAITING)
+                    waiters.add(waiter);
+            }
+            return queue;
+        });
+
+        return waiters;
+
+    }
 
     /**
-     * Attempts to marks the connectable object associated with the given
-     * identifier as in use. If the object is already in use and concurrent use
-     * of the object is prohibited, this operation will fail. If successful,
-     * the object must eventually be unmarked as in use through a call to
-     * release().
+     * Hands a slot already claimed within the registry to the given Waiter,
+     * waking that Waiter. If the Waiter has already given up, the slot is
+     * not handed over.
      *
      * @param identifier
-     *     The identifier which uniquely identifies the object being connected
-     *     to.
+     *     The identifier of the object that the given Waiter is waiting for.
      *
-     * @param concurrent
-     *     Whether concurrent access to the object having the given identifier
-     *     should be allowed.
+     * @param waiter
+     *     The Waiter to hand the slot to.
      *
      * @return
-     *     true if the object having the given identifier was successfully
-     *     marked as in use, false if the operation failed due to concurrent
-     *     access restrictions.
+     *     true if the slot now belongs to the given Waiter, false if the
+     *     Waiter had already given up and the slot still belongs to the
+     *     caller.
      */
-    private boolean acquire(GlobalConnectionIdentifier identifier, boolean concurrent) {
-
-        // Increase connection usage by one
-        activeConnections.add(identifier);
+    private boolean grant(GlobalConnectionIdentifier identifier, Waiter waiter) {
 
-        // Fail acquisition if concurrent access is prohibited and we are not
-        // the only user of this connection
-        if (!concurrent && activeConnections.count(identifier) != 1) {
-            activeConnections.remove(identifier);
+        if (!waiter.compareAndSet(WAITING, GRANTED))
             return false;
-        }
 
-        // Acquisition succeeded - connection is allowed
+        dequeue(identifier, waiter);
+        LockSupport.unpark(waiter.thread);
         return true;
 
     }
 
+    /**
+     * Claims any available slots of the connectable object associated with
+     * the given identifier on behalf of waiting users, in the order those
+     * users began waiting. Each slot is claimed using the waiting user's own
+     * concurrent access restrictions, such that those restrictions are still
+     * strictly enforced. The registry may block (file locks, network round
+     * trips), so waiters are chosen from a copy of the queue rather than
+     * while holding the queue.
+     *
+     * @param identifier
+     *     The identifier of the object being waited for.
+     */
+    private void dispatch(GlobalConnectionIdentifier identifier) {
+
+        for (Waiter waiter : getWaiters(identifier)) {
+
+            // Skip any users that have since given up or that may not yet
+            // connect
+            if (waiter.get() != WAITING || !tryAcquire(identifier, waiter.limit))
+                continue;
+
+            // Return the slot if the user gave up in the meantime
+            if (!grant(identifier, waiter))
+                releaseSlot(identifier);
+
+        }
+
+    }
+
     /**
      * Unmarks the connectable object associated with the given identifier as
-     * in use. This function MUST be called exactly once for every successful
-     * call to acquire() and MUST NOT be called for any acquire() call that
-     * failed.
+     * in use, handing the freed slot directly to the longest-waiting user
+     * that may use it, if any. A slot which is handed over is never returned
+     * to the registry, such that neither new connection attempts nor other
+     * Guacamole instances can claim it first. This function MUST be called
+     * exactly once for every successful call to acquire() or tryAcquire()
+     * and MUST NOT be called for any such call that failed.
      *
      * @param identifier
      *     The identifier which uniquely identifies the object which is no
      *     longer in use.
      */
     private void release(GlobalConnectionIdentifier identifier) {
-        activeConnections.remove(identifier);
+
+        for (Waiter waiter : getWaiters(identifier)) {
+
+            // The slot being released is still counted, so a waiting user
+            // may take it over if the object would still be within their
+            // limit were that slot counted as theirs. This is checked by
+            // claiming an additional slot with a limit one higher than the
+            // user's own, and then releasing the slot being handed over.
+            int limit = waiter.limit == Integer.MAX_VALUE ? waiter.limit : waiter.limit + 1;
+            if (waiter.get() != WAITING || !tryAcquire(identifier, limit))
+                continue;
+
+            // Give back the additional slot if the user gave up in the
+            // meantime, and keep looking
+            if (!grant(identifier, waiter)) {
+                releaseSlot(identifier);
+                continue;
+            }
+
+            releaseSlot(identifier);
+            return;
+
+        }
+
+        // No waiting user could take the slot
+        releaseSlot(identifier);
+
+        // Any user that began waiting while the slot was held may have found
+        // the object unavailable
+        dispatch(identifier);
+
+    }
+
+    /**
+     * Returns the number of connections and connection groups that the user
+     * having the given username currently has open.
+     *
+     * @param username
+     *     The username of the user to check.
+     *
+     * @return
+     *     The number of connections and connection groups that the given user
+     *     currently has open.
+     */
+    public int getSessionCount(String username) {
+        return sessions.getOrDefault(username, 0);
+    }
+
+    /**
+     * Records that the user having the given username has closed one of their
+     * open connections or connection groups.
+     *
+     * @param username
+     *     The username of the user that closed a connection.
+     */
+    private void releaseSession(String username) {
+        sessions.computeIfPresent(username, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Marks the connectable object associated with the given identifier as in
+     * use by the given user, enforcing both the concurrent access
+     * restrictions of that object and the session limit of that user. Either
+     * both the object and the session are claimed or neither is. If
+     * successful, the object must eventually be unmarked as in use through a
+     * call to release(), and the session through a call to releaseSession().
+     *
+     * @param username
+     *     The username of the user connecting.
+     *
+     * @param sessionLimit
+     *     The maximum number of connections and connection groups that the
+     *     user may have open at once, including the connection being opened.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being connected
+     *     to.
+     *
+     * @param limit
+     *     The maximum number of concurrent users of the object having the
+     *     given identifier, including the user attempting to connect.
+     *
+     * @throws GuacamoleException
+     *     If the connection is not allowed due to concurrent access
+     *     restrictions or the user's session limit.
+     */
+    private void acquireSession(String username, int sessionLimit,
+            GlobalConnectionIdentifier identifier, int limit)
+            throws GuacamoleException {
+
+        // Users without a session limit need only be counted
+        if (sessionLimit == Integer.MAX_VALUE) {
+
+            if (!acquire(identifier, limit))
+                throw new GuacamoleResourceConflictException("Concurrent "
+                        + "access to this connection is not allowed for the "
+                        + "current user.");
+
+            sessions.merge(username, 1, Integer::sum);
+            return;
+
+        }
+
+        // Check and claim both the session and the object while holding the
+        // user's lock, such that a rejection by either never leaves the other
+        // claimed
+        Lock lock = sessionLocks.get(username);
+        lock.lock();
+        try {
+
+            if (getSessionCount(username) >= sessionLimit)
+                throw new GuacamoleResourceConflictException("The current "
+                        + "user has too many connections open.");
+
+            if (!hasWaiters(identifier) && tryAcquire(identifier, limit)) {
+                sessions.merge(username, 1, Integer::sum);
+                return;
+            }
+
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // If the object is unavailable, wait for it without holding the
+        // user's lock, and verify the session limit again once a slot has
+        // been obtained
+        if (!await(identifier, limit))
+            throw new GuacamoleResourceConflictException("Concurrent access "
+                    + "to this connection is not allowed for the current "
+                    + "user.");
+
+        lock.lock();
+        try {
+            if (getSessionCount(username) < sessionLimit) {
+                sessions.merge(username, 1, Integer::sum);
+                return;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // The user opened other connections while waiting
+        release(identifier);
+        throw new GuacamoleResourceConflictException("The current user has "
+                + "too many connections open.");
+
+    }
+
+    @Override
+    public ConnectionUsageSnapshot getSnapshot() {
+        return new ConnectionUsageSnapshot(registry.getActiveConnections(), sessions);
+    }
+
+    @Override
+    public Map<String, Integer> getConnectionCounts() {
+        return ConnectionUsageSnapshot.getConnectionCounts(registry.getActiveConnections());
+    }
+
+    @Override
+    public Map<String, Integer> getSessionCounts() {
+        return Collections.unmodifiableMap(new HashMap<>(sessions));
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return ConnectionUsageSnapshot.getTotal(registry.getActiveConnections());
+    }
+
+    @Override
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * Returns the number of users currently waiting for the connection or
+     * connection group having the given identifier.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being waited
+     *     for.
+     *
+     * @return
+     *     The number of users currently waiting for the given object.
+     */
+    public int getWaitingCount(GlobalConnectionIdentifier identifier) {
+        Queue<Waiter> queue = waitQueues.get(identifier);
+        return queue != null ? queue.size() : 0;
+    }
+
+    @Override
+    public long getWaitTimeoutCount() {
+        return waitTimeouts.sum();
+    }
+
+    @Override
+    public long[] getWaitTimes() {
+        return waitTimes.getCounts();
+    }
+
+    @Override
+    public long getTotalWaitTime() {
+        return waitTimes.getSum();
+    }
+
+    @Override
+    public long getReclaimedCount() {
+        return reclaimed.sum();
+    }
+
+    @Override
+    public long getIdleClosedCount() {
+        return idleClosed.sum();
+    }
+
+    @Override
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Returns the statistics which should be updated as the input sent
+     * through tunnels established by this ConnectionManager is altered.
+     *
+     * @return
+     *     The statistics describing input sent through tunnels established by
+     *     this ConnectionManager.
+     */
+    public InputStatistics getInputStatistics() {
+        return inputStatistics;
+    }
+
+    @Override
+    public long getForwardedMouseEvents() {
+        return inputStatistics.getForwardedMouseEvents();
+    }
+
+    @Override
+    public long getCoalescedMouseEvents() {
+        return inputStatistics.getCoalescedMouseEvents();
+    }
+
+    @Override
+    public long getThrottledInputEvents() {
+        return inputStatistics.getThrottledInputEvents();
     }
 
     /**
-     * Returns whether the user associated with the given UserContext is
-     * allowed to establish concurrent connections to a connectable object that
-     * is already in use.
+     * Returns the statistics which should be updated as the administrative
+     * permissions of users whose connections are managed by this
+     * ConnectionManager are checked.
+     *
+     * @return
+     *     The statistics describing checks of administrative permissions.
+     */
+    public PermissionCacheStatistics getPermissionCacheStatistics() {
+        return permissionCacheStatistics;
+    }
+
+    @Override
+    public long getPermissionCacheHits() {
+        return permissionCacheStatistics.getHits();
+    }
+
+    @Override
+    public long getPermissionCacheMisses() {
+        return permissionCacheStatistics.getMisses();
+    }
+
+    @Override
+    public TunnelUsage getTunnelUsage() {
+
+        if (tunnelStatistics == null)
+            return TunnelUsage.sum(Collections.emptyList());
+
+        return tunnelStatistics.getUsage();
+
+    }
+
+    @Override
+    public Map<String, TunnelUsage> getTunnelUsageByRestrictionClass() {
+
+        if (tunnelStatistics == null)
+            return Collections.emptyMap();
+
+        return tunnelStatistics.getUsageByRestrictionClass();
+
+    }
+
+    /**
+     * Closes the given tunnel due to inactivity or expiry, releasing the
+     * given lease even if closure fails.
+     *
+     * @param lease
+     *     The lease associated with the given tunnel.
+     *
+     * @param tunnel
+     *     The tunnel to close.
+     */
+    private void forceClose(ConnectionLease lease, GuacamoleTunnel tunnel) {
+        try {
+            tunnel.close();
+        }
+        catch (GuacamoleException | RuntimeException e) {
+            logger.warn("Unable to forcibly close connection: {}", e.getMessage());
+            logger.debug("Forced closure of tunnel failed.", e);
+        }
+        finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Schedules a check of the given lease for inactivity, to occur after the
+     * given delay. If the lease has not been touched within the lease timeout,
+     * or its user has sent no input within the given idle timeout, when the
+     * check occurs, the given tunnel is closed and the lease released.
+     * Otherwise, the check is rescheduled relative to the most recent
+     * activity. Checks of released leases are ignored.
+     *
+     * @param lease
+     *     The lease to check.
+     *
+     * @param tunnel
+     *     The tunnel associated with the given lease.
+     *
+     * @param idleTimeout
+     *     The number of milliseconds that the user of the tunnel may send no
+     *     input before the tunnel is closed, or zero if the tunnel should not
+     *     be closed due to lack of input.
+     *
+     * @param delay
+     *     The number of milliseconds to wait before checking the lease.
+     */
+    private void scheduleReaper(ConnectionLease lease, GuacamoleTunnel tunnel,
+            long idleTimeout, long delay) {
+
+        lease.setReaperTimeout(timer.schedule(() -> {
+
+            if (lease.isReleased())
+                return;
+
+            long now = timer.monotonicTimeMillis();
+            long nextCheck = Long.MAX_VALUE;
+
+            // Reclaim the slots of connections which pass no data at all
+            if (leaseTimeout > 0) {
+
+                long idle = now - lease.getLastActivity();
+                if (idle >= leaseTimeout) {
+
+                    logger.info("Reclaiming connection slot of connectable object "
+                            + "\"{}\" which has passed no data for {} seconds.",
+                            lease.getIdentifier().getKey(),
+                            TimeUnit.MILLISECONDS.toSeconds(idle));
+
+                    reclaimed.increment();
+                    forceClose(lease, tunnel);
+                    return;
+
+                }
+
+                nextCheck = leaseTimeout - idle;
+
+            }
+
+            // Close connections whose users have stopped sending input
+            if (idleTimeout > 0) {
+
+                long idle = now - lease.getLastInput();
+                if (idle >= idleTimeout) {
+
+                    logger.info("Closing connection to connectable object "
+                            + "\"{}\" which has received no input for {} "
+                            + "minutes.", lease.getIdentifier().getKey(),
+                            TimeUnit.MILLISECONDS.toMinutes(idle));
+
+                    idleClosed.increment();
+                    forceClose(lease, tunnel);
+                    return;
+
+                }
+
+                nextCheck = Math.min(nextCheck, idleTimeout - idle);
+
+            }
+
+            // Check again once the earliest timeout could next expire
+            scheduleReaper(lease, tunnel, idleTimeout, nextCheck);
+
+        }, delay));
+
+    }
+
+    /**
+     * Schedules the given tunnel to be closed once the given maximum session
+     * duration has elapsed. The closure is scheduled on the shared timer, and
+     * so is processed in batches alongside all other expiring leases. It does
+     * not occur if the lease is released first.
+     *
+     * @param lease
+     *     The lease associated with the given tunnel.
+     *
+     * @param tunnel
+     *     The tunnel to close.
+     *
+     * @param duration
+     *     The number of milliseconds that the tunnel may remain open.
+     */
+    private void scheduleExpiry(ConnectionLease lease,
+            LeasedGuacamoleTunnel tunnel, long duration) {
+
+        lease.setExpiryTimeout(timer.schedule(() -> {
+
+            if (lease.isReleased())
+                return;
+
+            logger.info("Closing connection to connectable object "
+                    + "\"{}\" which has reached its maximum duration of "
+                    + "{} minutes.", lease.getIdentifier().getKey(),
+                    TimeUnit.MILLISECONDS.toMinutes(duration));
+
+            expired.increment();
+            forceClose(lease, tunnel);
+
+        }, duration));
+
+    }
+
+    /**
+     * Returns the maximum number of concurrent users of a connectable object
+     * that the user associated with the given UserContext will tolerate,
+     * including that user. Unrestricted users may connect regardless of the
+     * number of existing users.
+     *
+     * @param userContext
+     *     The UserContext associated with the user to check.
+     *
+     * @return
+     *     The maximum number of concurrent users of any connectable object
+     *     that the user associated with the given UserContext may connect to.
+     */
+    private int getConcurrencyLimit(RestrictedExternalUserContext userContext) {
+
+        // Concurrent access entirely disallowed
+        if (userContext.getRestrictions().contains(Restriction.DISALLOW_CONCURRENT))
+            return 1;
+
+        return Restriction.MAX_CONCURRENT.getNumericValue(userContext, Integer.MAX_VALUE);
+
+    }
+
+    /**
+     * Returns the opcodes of all instructions that the user associated with
+     * the given UserContext may send, as dictated by the ALLOWED_OPCODES and
+     * FORCE_READ_ONLY restrictions. Where both restrictions apply, only
+     * opcodes allowed by both may be sent. The returned OpcodeSet is shared
+     * by all users having the same policy. Policies which do not allow the
+     * "sync" instruction are rejected, as no connection can function without
+     * it.
      *
      * @param userContext
      *     The UserContext associated with the user to check.
      *
      * @return
-     *     true if the user associated with the given UserContext is allowed to
-     *     establish concurrent connections, false otherwise.
+     *     The opcodes of all instructions that the user may send, or null if
+     *     the user may send any instruction.
+     *
+     * @throws GuacamoleException
+     *     If the user's opcode policy lists too many opcodes, or does not
+     *     allow the "sync" instruction.
+     */
+    private OpcodeSet getAllowedOpcodes(RestrictedExternalUserContext userContext)
+            throws GuacamoleException {
+
+        boolean readOnly = userContext.getRestrictions().contains(Restriction.FORCE_READ_ONLY);
+
+        String allowed = userContext.getRestrictionValues().get(Restriction.ALLOWED_OPCODES);
+        if (allowed == null && !readOnly)
+            return null;
+
+        OpcodeSet opcodes = readOnlyOpcodes;
+        if (allowed != null) {
+
+            try {
+                opcodes = OpcodeSet.parse(allowed);
+            }
+            catch (IllegalArgumentException e) {
+                throw new GuacamoleServerException("Opcode policies may list no "
+                        + "more than " + OpcodeSet.MAX_SIZE + " opcodes.", e);
+            }
+
+            if (readOnly)
+                opcodes = opcodes.intersect(readOnlyOpcodes);
+
+        }
+
+        // Without "sync", the client cannot acknowledge frames and the
+        // connection would stall rather than fail
+        if (!opcodes.contains(ESSENTIAL_OPCODE))
+            throw new GuacamoleSecurityException("The instructions allowed "
+                    + "for this user (" + opcodes + ") do not include \""
+                    + ESSENTIAL_OPCODE + "\", which every connection "
+                    + "requires. Check the opcode policies that apply to "
+                    + "this user for lists which share no opcodes.");
+
+        return opcodes;
+
+    }
+
+    /**
+     * Returns the GuacamoleClientInformation that should be used to connect
+     * on behalf of the user associated with the given UserContext, downgrading
+     * the capabilities of the given client as dictated by the display, image
+     * format, audio, and video restrictions that apply to that user. The
+     * requested display is scaled down to fit within any size limits,
+     * preserving its aspect ratio. The given GuacamoleClientInformation is
+     * never modified.
+     *
+     * @param userContext
+     *     The UserContext associated with the user connecting.
+     *
+     * @param info
+     *     The GuacamoleClientInformation describing the connecting client.
+     *
+     * @return
+     *     The given GuacamoleClientInformation if no such restrictions apply,
+     *     or a restricted copy otherwise.
      */
-    private boolean canConnectConcurrently(RestrictedExternalUserContext userContext) {
-        return !userContext.getRestrictions().contains(Restriction.DISALLOW_CONCURRENT);
+    private static GuacamoleClientInformation getClientInformation(
+            RestrictedExternalUserContext userContext,
+            GuacamoleClientInformation info) {
+
+        Set<Restriction> restrictions = userContext.getRestrictions();
+        if (!restrictions.contains(Restriction.MAX_DISPLAY_WIDTH)
+                && !restrictions.contains(Restriction.MAX_DISPLAY_HEIGHT)
+                && !restrictions.contains(Restriction.MAX_DISPLAY_DPI)
+                && !restrictions.contains(Restriction.ALLOWED_IMAGE_TYPES)
+                && !restrictions.contains(Restriction.DROP_AUDIO)
+                && !restrictions.contains(Restriction.DROP_VIDEO))
+            return info;
+
+        GuacamoleClientInformation restricted = new GuacamoleClientInformation();
+        restricted.setTimezone(info.getTimezone());
+
+        // Scale the display down to fit within both size limits
+        int width = info.getOptimalScreenWidth();
+        int height = info.getOptimalScreenHeight();
+        double scale = Math.min(1.0, Math.min(
+                (double) Restriction.MAX_DISPLAY_WIDTH.getNumericValue(userContext, Integer.MAX_VALUE) / width,
+                (double) Restriction.MAX_DISPLAY_HEIGHT.getNumericValue(userContext, Integer.MAX_VALUE) / height));
+
+        restricted.setOptimalScreenWidth((int) (width * scale));
+        restricted.setOptimalScreenHeight((int) (height * scale));
+        restricted.setOptimalResolution(Math.min(info.getOptimalResolution(),
+                Restriction.MAX_DISPLAY_DPI.getNumericValue(userContext, Integer.MAX_VALUE)));
+
+        // Declare only the image formats allowed, if limited
+        String allowedImageTypes = userContext.getRestrictionValues().get(Restriction.ALLOWED_IMAGE_TYPES);
+        List<String> imageMimetypes = info.getImageMimetypes();
+        if (allowedImageTypes != null) {
+            Set<String> allowed = new HashSet<>(Restriction.parseList(allowedImageTypes));
+            imageMimetypes = imageMimetypes.stream().filter(allowed::contains).collect(Collectors.toList());
+        }
+
+        restricted.getImageMimetypes().addAll(imageMimetypes);
+
+        // Declare no support for audio or video, if dropped, such that the
+        // connection never encodes them at all
+        if (!restrictions.contains(Restriction.DROP_AUDIO))
+            restricted.getAudioMimetypes().addAll(info.getAudioMimetypes());
+
+        if (!restrictions.contains(Restriction.DROP_VIDEO))
+            restricted.getVideoMimetypes().addAll(info.getVideoMimetypes());
+
+        return restricted;
+
     }
 
     /**
@@ -147,34 +1653,58 @@ public class ConnectionManager {
             GuacamoleClientInformation info, Map<String, String> tokens)
             throws GuacamoleException {
 
+        // Determine which instructions the user may send before tracking the
+        // connection, such that an invalid policy claims nothing
+        OpcodeSet allowedOpcodes = getAllowedOpcodes(userContext);
+        long idleTimeout = TimeUnit.MINUTES.toMillis(
+                Restriction.IDLE_TIMEOUT.getNumericValue(userContext, 0));
+        long maxDuration = TimeUnit.MINUTES.toMillis(
+                Restriction.MAX_SESSION_DURATION.getNumericValue(userContext, 0));
+        TunnelCounters counters = tunnelStatistics != null
+                ? tunnelStatistics.getCounters(RestrictedExternalTunnel.getRestrictionClass(userContext))
+                : null;
+
         // Track new connection, disallowing access if concurrent access
-        // restrictions dictate that the connection should not be allowed
-        if (!acquire(identifier, canConnectConcurrently(userContext)))
-            throw new GuacamoleResourceConflictException("Concurrent access "
-                    + "to this connection is not allowed for the current "
-                    + "user.");
+        // restrictions or session limits dictate that the connection should
+        // not be allowed (possibly after waiting for the connection to become
+        // available)
+        String username = userContext.self().getIdentifier();
+        acquireSession(username,
+                Restriction.MAX_SESSIONS.getNumericValue(userContext, Integer.MAX_VALUE),
+                identifier, getConcurrencyLimit(userContext));
+
+        // Release tracked connection exactly once, whether the tunnel is
+        // closed normally or reclaimed due to inactivity
+        ConnectionLease lease = new ConnectionLease(identifier, timer, () -> {
+            release(identifier);
+            releaseSession(username);
+        });
 
         try {
-            return new RestrictedExternalTunnel(userContext, connectable.connect(info, tokens)) {
 
-                @Override
-                public void close() throws GuacamoleException {
+            LeasedGuacamoleTunnel tunnel = RestrictedExternalTunnel.wrap(userContext,
+                    connectable.connect(getClientInformation(userContext, info), tokens),
+                    lease, allowedOpcodes, counters);
 
-                    super.close();
+            // Check for inactivity once the earliest applicable timeout
+            // could expire
+            if (leaseTimeout > 0 && idleTimeout > 0)
+                scheduleReaper(lease, tunnel, idleTimeout, Math.min(leaseTimeout, idleTimeout));
+            else if (leaseTimeout > 0 || idleTimeout > 0)
+                scheduleReaper(lease, tunnel, idleTimeout, Math.max(leaseTimeout, idleTimeout));
 
-                    // Automatically release tracked connection when connection
-                    // is closed
-                    release(identifier);
+            // Close the connection once its time is up
+            if (maxDuration > 0)
+                scheduleExpiry(lease, tunnel, maxDuration);
 
-                }
+            return tunnel;
 
-            };
         }
         catch (GuacamoleException | RuntimeException | Error e) {
 
             // Automatically release tracked connection if an error prevents
             // the connection from starting
-            release(identifier);
+            lease.release();
             throw e;
 
         }
@@ -209,7 +1739,7 @@ public class ConnectionManager {
             Connection connection, GuacamoleClientInformation info,
             Map<String, String> tokens) throws GuacamoleException {
 
-        GlobalConnectionIdentifier identifier = new GlobalConnectionIdentifier(userContext, connection);
+        GlobalConnectionIdentifier identifier = GlobalConnectionIdentifier.valueOf(userContext, connection);
         return connect(userContext, identifier, connection, info, tokens);
 
     }
@@ -242,7 +1772,7 @@ public class ConnectionManager {
             ConnectionGroup connectionGroup, GuacamoleClientInformation info,
             Map<String, String> tokens) throws GuacamoleException {
 
-        GlobalConnectionIdentifier identifier = new GlobalConnectionIdentifier(userContext, connectionGroup);
+        GlobalConnectionIdentifier identifier = GlobalConnectionIdentifier.valueOf(userContext, connectionGroup);
         return connect(userContext, identifier, connectionGroup, info, tokens);
 
     }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelUsage;
+import java.util.Map;
+
+/**
+ * Management interface through which the state of a ConnectionManager is
+ * published via JMX. All attributes are read without blocking connection
+ * attempts and may therefore be polled frequently.
+ */
+public interface ConnectionManagerMXBean {
+
+    /**
+     * Returns a snapshot of the number of active connections to each
+     * connectable object and the number of connections open by each user
+     * through this Guacamole instance, along with the total number of active
+     * connections. Monitoring which needs more than one of these figures
+     * should read this attribute once per poll, such that all figures are
+     * taken from the same snapshot.
+     *
+     * @return
+     *     A new snapshot of the connections established through this
+     *     Guacamole instance.
+     */
+    ConnectionUsageSnapshot getSnapshot();
+
+    /**
+     * Returns the number of active connections to each connectable object
+     * established through this Guacamole instance.
+     *
+     * @return
+     *     A map of connectable object keys, as returned by
+     *     GlobalConnectionIdentifier.getKey(), to the number of active
+     *     connections to each object.
+     */
+    Map<String, Integer> getConnectionCounts();
+
+    /**
+     * Returns the number of connections and connection groups that each user
+     * has open through this Guacamole instance.
+     *
+     * @return
+     *     A map of usernames to the number of connections and connection
+     *     groups each user has open.
+     */
+    Map<String, Integer> getSessionCounts();
+
+    /**
+     * Returns the total number of active connections established through
+     * this Guacamole instance.
+     *
+     * @return
+     *     The total number of active connections.
+     */
+    int getTotalConnections();
+
+    /**
+     * Returns the total number of users currently waiting for a connection
+     * or connection group blocked by concurrent access restrictions.
+     *
+     * @return
+     *     The total number of users currently waiting.
+     */
+    int getWaitingCount();
+
+    /**
+     * Returns the number of users that gave up waiting for a connection or
+     * connection group, either due to timeout or interruption.
+     *
+     * @return
+     *     The number of users that gave up waiting.
+     */
+    long getWaitTimeoutCount();
+
+    /**
+     * Returns the number of users which waited for a connection or connection
+     * group and then successfully connected, grouped by the amount of time
+     * spent waiting. The bounds of each bucket are as defined by
+     * Histogram.getUpperBound(), in nanoseconds.
+     *
+     * @return
+     *     A new array containing the number of users whose wait fell within
+     *     each bucket, indexed by bucket.
+     */
+    long[] getWaitTimes();
+
+    /**
+     * Returns the total amount of time spent waiting by all users which
+     * waited for a connection or connection group and then successfully
+     * connected, in nanoseconds.
+     *
+     * @return
+     *     The total time spent waiting by users which successfully
+     *     connected after waiting, in nanoseconds.
+     */
+    long getTotalWaitTime();
+
+    /**
+     * Returns the number of slots that were reclaimed from connections which
+     * passed no data for longer than the configured lease timeout.
+     *
+     * @return
+     *     The number of slots reclaimed from dead connections.
+     */
+    long getReclaimedCount();
+
+    /**
+     * Returns the number of connections which were closed because their
+     * users sent no input for longer than the applicable idle timeout.
+     *
+     * @return
+     *     The number of idle connections closed.
+     */
+    long getIdleClosedCount();
+
+    /**
+     * Returns the number of connections which were closed because they
+     * reached the end of the applicable maximum session duration.
+     *
+     * @return
+     *     The number of expired connections closed.
+     */
+    long getExpiredCount();
+
+    /**
+     * Returns the number of "mouse" instructions sent by users subject to
+     * mouse coalescing which were forwarded to their connections.
+     *
+     * @return
+     *     The number of "mouse" instructions forwarded.
+     */
+    long getForwardedMouseEvents();
+
+    /**
+     * Returns the number of "mouse" instructions sent by users subject to
+     * mouse coalescing which were dropped because a later instruction having
+     * the same button state superseded them.
+     *
+     * @return
+     *     The number of "mouse" instructions dropped.
+     */
+    long getCoalescedMouseEvents();
+
+    /**
+     * Returns the number of "key" and "mouse" instructions which were dropped
+     * because the sending user exceeded their input rate limit.
+     *
+     * @return
+     *     The number of "key" and "mouse" instructions dropped due to rate
+     *     limiting.
+     */
+    long getThrottledInputEvents();
+
+    /**
+     * Returns the number of checks of administrative permissions which were
+     * answered from the per-user permission cache.
+     *
+     * @return
+     *     The number of permission checks answered from cache.
+     */
+    long getPermissionCacheHits();
+
+    /**
+     * Returns the number of checks of administrative permissions which
+     * required the permissions of a user to be loaded.
+     *
+     * @return
+     *     The number of permission checks which loaded permissions.
+     */
+    long getPermissionCacheMisses();
+
+    /**
+     * Returns per-opcode counts of the instructions passing through all
+     * tunnels established through this Guacamole instance. If tunnel
+     * statistics are not enabled, all counts are empty.
+     *
+     * @return
+     *     A snapshot of the counts describing all tunnels.
+     */
+    TunnelUsage getTunnelUsage();
+
+    /**
+     * Returns per-opcode counts of the instructions passing through the
+     * tunnels established through this Guacamole instance, grouped by
+     * restriction class. The restriction class of a tunnel lists each
+     * restriction altering the data passing through that tunnel, separated
+     * by "+", or is "none" if no such restrictions apply. If tunnel
+     * statistics are not enabled, the returned map is empty.
+     *
+     * @return
+     *     A map of restriction class to a snapshot of the counts describing
+     *     the tunnels of that class.
+     */
+    Map<String, TunnelUsage> getTunnelUsageByRestrictionClass();
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Point-in-time view of the connections established through a
+ * ConnectionManager. The number of active connections to each connectable
+ * object is read directly from the counters of the ActiveConnectionRegistry
+ * enforcing concurrent access restrictions, and so costs nothing while no
+ * snapshot is being taken. Snapshots are built without blocking connection
+ * attempts. Each count is exact as of the moment it was read, and the total
+ * number of connections is always the sum of the per-object counts of the
+ * same snapshot, but counts of different objects and users are read one
+ * after another rather than at a single instant. Snapshots are immutable,
+ * and all attributes of a snapshot should be read from the same snapshot
+ * rather than from separate snapshots.
+ */
+public class ConnectionUsageSnapshot {
+
+    /**
+     * The time that this snapshot was taken, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * The number of active connections to each connectable object, keyed by
+     * the unique key of each object's GlobalConnectionIdentifier.
+     */
+    private final Map<String, Integer> connectionCounts;
+
+    /**
+     * The total number of active connections to all connectable objects.
+     */
+    private final int totalConnections;
+
+    /**
+     * The number of connections and connection groups that each user has
+     * open, keyed by username.
+     */
+    private final Map<String, Integer> sessionCounts;
+
+    /**
+     * Creates a new ConnectionUsageSnapshot containing copies of the given
+     * per-object and per-user counts.
+     *
+     * @param connectionCounts
+     *     The number of active connections to each connectable object,
+     *     keyed by GlobalConnectionIdentifier.
+     *
+     * @param sessionCounts
+     *     The number of connections and connection groups that each user has
+     *     open, keyed by username.
+     */
+    public ConnectionUsageSnapshot(
+            Map<GlobalConnectionIdentifier, Integer> connectionCounts,
+            Map<String, Integer> sessionCounts) {
+
+        this.timestamp = System.currentTimeMillis();
+        this.connectionCounts = getConnectionCounts(connectionCounts);
+        this.totalConnections = getTotal(connectionCounts);
+        this.sessionCounts = Collections.unmodifiableMap(new HashMap<>(sessionCounts));
+
+    }
+
+    /**
+     * Returns the given per-object counts keyed by the value returned by
+     * GlobalConnectionIdentifier.getKey().
+     *
+     * @param connectionCounts
+     *     The number of active connections to each connectable object,
+     *     keyed by GlobalConnectionIdentifier.
+     *
+     * @return
+     *     A new, unmodifiable map of connectable object keys to the number of
+     *     active connections to each object.
+     */
+    static Map<String, Integer> getConnectionCounts(
+            Map<GlobalConnectionIdentifier, Integer> connectionCounts) {
+
+        Map<String, Integer> connections = new HashMap<>(connectionCounts.size());
+        connectionCounts.forEach((identifier, count) -> connections.put(identifier.getKey(), count));
+
+        return Collections.unmodifiableMap(connections);
+
+    }
+
+    /**
+     * Returns the sum of the given per-object counts.
+     *
+     * @param connectionCounts
+     *     The number of active connections to each connectable object.
+     *
+     * @return
+     *     The total number of active connections.
+     */
+    static int getTotal(Map<GlobalConnectionIdentifier, Integer> connectionCounts) {
+
+        int total = 0;
+        for (int count : connectionCounts.values())
+            total += count;
+
+        return total;
+
+    }
+
+    /**
+     * Returns the time that this snapshot was taken.
+     *
+     * @return
+     *     The time that this snapshot was taken, in milliseconds since the
+     *     epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the number of active connections to each connectable object
+     * that was in use when this snapshot was taken. Each object is keyed by
+     * the value returned by GlobalConnectionIdentifier.getKey().
+     *
+     * @return
+     *     An unmodifiable map of connectable object keys to the number of
+     *     active connections to each object.
+     */
+    public Map<String, Integer> getConnectionCounts() {
+        return connectionCounts;
+    }
+
+    /**
+     * Returns the number of connections and connection groups that each user
+     * had open when this snapshot was taken.
+     *
+     * @return
+     *     An unmodifiable map of usernames to the number of connections and
+     *     connection groups each user had open.
+     */
+    public Map<String, Integer> getSessionCounts() {
+        return sessionCounts;
+    }
+
+    /**
+     * Returns the total number of active connections when this snapshot was
+     * taken, equal to the sum of all counts returned by
+     * getConnectionCounts().
+     *
+     * @return
+     *     The total number of active connections.
+     */
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+}
@@ -22,7 +22,12 @@
 
 package com.glyptodon.guacamole.auth.restrict.connection;
 
-import java.util.Objects;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 import org.apache.guacamole.net.auth.AuthenticationProvider;
 import org.apache.guacamole.net.auth.Connection;
 import org.apache.guacamole.net.auth.ConnectionGroup;
@@ -34,8 +39,14 @@ import org.apache.guacamole.net.auth.UserContext;
  * group from another object of the same type within the same UserContext, this
  * class uniquely identifies both connections and connection groups across
  * multiple AuthenticationProviders and UserContexts.
+ *
+ * GlobalConnectionIdentifiers are canonical: for as long as any reference to
+ * the GlobalConnectionIdentifier of an object exists, that same instance is
+ * returned for that object. Instances are therefore compared by reference,
+ * and their hash codes are computed only once. Retrieving the identifier of
+ * an object which is already in use does not allocate.
  */
-public class GlobalConnectionIdentifier {
+public final class GlobalConnectionIdentifier {
 
     /**
      * The types of objects that may be represented by a
@@ -55,79 +66,192 @@ public class GlobalConnectionIdentifier {
 
     }
 
+    /**
+     * All canonical GlobalConnectionIdentifiers, grouped by originating
+     * AuthenticationProvider and type, and keyed by the string identifier of
+     * the represented object. AuthenticationProviders are compared by
+     * reference and weakly referenced, as are the GlobalConnectionIdentifiers
+     * themselves, such that entries are discarded once no longer in use.
+     */
+    private static final ConcurrentMap<AuthenticationProvider, Map<Type, ConcurrentMap<String, GlobalConnectionIdentifier>>> CANONICAL =
+            new MapMaker().weakKeys().makeMap();
+
     /**
      * The AuthenticationProvider that originated the object represented by
      * this GlobalConnectionIdentifier.
      */
-    private AuthenticationProvider authProvider;
+    private final AuthenticationProvider authProvider;
 
     /**
      * The type of object represented by this GlobalConnectionIdentifier.
      */
-    private Type type;
+    private final Type type;
 
     /**
      * The string identifier which uniquely identifies this object within the
      * UserContext from which it was retrieved.
      */
-    private String identifier;
+    private final String identifier;
+
+    /**
+     * The value returned by getKey(), computed once upon creation.
+     */
+    private final String key;
+
+    /**
+     * The value returned by getHash(), computed once upon creation.
+     */
+    private final long hash;
+
+    /**
+     * Creates a new GlobalConnectionIdentifier which represents the object
+     * of the given type having the given identifier. This constructor must
+     * only be invoked when creating the canonical instance for that object.
+     *
+     * @param authProvider
+     *     The AuthenticationProvider that originated the object.
+     *
+     * @param type
+     *     The type of the object.
+     *
+     * @param identifier
+     *     The identifier of the object within its UserContext.
+     */
+    private GlobalConnectionIdentifier(AuthenticationProvider authProvider,
+            Type type, String identifier) {
+        this.authProvider = authProvider;
+        this.type = type;
+        this.identifier = identifier;
+        this.key = authProvider.getIdentifier() + ":" + type + ":" + identifier;
+        this.hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Returns the canonical GlobalConnectionIdentifier which represents the
+     * object of the given type having the given identifier, creating that
+     * GlobalConnectionIdentifier if it does not yet exist.
+     *
+     * @param authProvider
+     *     The AuthenticationProvider that originated the object.
+     *
+     * @param type
+     *     The type of the object.
+     *
+     * @param identifier
+     *     The identifier of the object within its UserContext.
+     *
+     * @return
+     *     The canonical GlobalConnectionIdentifier representing the given
+     *     object.
+     */
+    public static GlobalConnectionIdentifier valueOf(
+            AuthenticationProvider authProvider, Type type, String identifier) {
+
+        Map<Type, ConcurrentMap<String, GlobalConnectionIdentifier>> byType = CANONICAL.get(authProvider);
+        if (byType == null)
+            byType = CANONICAL.computeIfAbsent(authProvider, provider -> {
+                Map<Type, ConcurrentMap<String, GlobalConnectionIdentifier>> maps = new EnumMap<>(Type.class);
+                for (Type possibleType : Type.values())
+                    maps.put(possibleType, new MapMaker().weakValues().makeMap());
+                return maps;
+            });
+
+        // Avoid allocating a lambda unless the identifier must be created
+        ConcurrentMap<String, GlobalConnectionIdentifier> byIdentifier = byType.get(type);
+        GlobalConnectionIdentifier canonical = byIdentifier.get(identifier);
+        if (canonical != null)
+            return canonical;
+
+        return byIdentifier.computeIfAbsent(identifier,
+                id -> new GlobalConnectionIdentifier(authProvider, type, id));
+
+    }
 
     /**
-     * Creates a new GlobalConnectionIdentifier which uniquely represents the
+     * Returns the canonical GlobalConnectionIdentifier which represents the
      * given ConnectionGroup.
      *
      * @param context
      *     The UserContext from which the given ConnectionGroup was retrieved.
      *
      * @param connectionGroup
-     *     The ConnectionGroup that this GlobalConnectionIdentifier should
+     *     The ConnectionGroup that the GlobalConnectionIdentifier should
      *     represent.
+     *
+     * @return
+     *     The canonical GlobalConnectionIdentifier representing the given
+     *     ConnectionGroup.
      */
-    public GlobalConnectionIdentifier(UserContext context, ConnectionGroup connectionGroup) {
-        this.authProvider = context.getAuthenticationProvider();
-        this.type = Type.CONNECTION_GROUP;
-        this.identifier = connectionGroup.getIdentifier();
+    public static GlobalConnectionIdentifier valueOf(UserContext context,
+            ConnectionGroup connectionGroup) {
+        return valueOf(context.getAuthenticationProvider(),
+                Type.CONNECTION_GROUP, connectionGroup.getIdentifier());
     }
 
     /**
-     * Creates a new GlobalConnectionIdentifier which uniquely represents the
+     * Returns the canonical GlobalConnectionIdentifier which represents the
      * given Connection.
      *
      * @param context
      *     The UserContext from which the given Connection was retrieved.
      *
      * @param connection
-     *     The Connection that this GlobalConnectionIdentifier should
+     *     The Connection that the GlobalConnectionIdentifier should
      *     represent.
+     *
+     * @return
+     *     The canonical GlobalConnectionIdentifier representing the given
+     *     Connection.
+     */
+    public static GlobalConnectionIdentifier valueOf(UserContext context,
+            Connection connection) {
+        return valueOf(context.getAuthenticationProvider(),
+                Type.CONNECTION, connection.getIdentifier());
+    }
+
+    /**
+     * Returns a string which uniquely identifies the object represented by
+     * this GlobalConnectionIdentifier, suitable for use as a key within
+     * storage shared with other Guacamole instances. The key is composed of
+     * the identifier of the originating AuthenticationProvider, the type of
+     * object, and the object's own identifier, separated by colons.
+     *
+     * @return
+     *     A string which uniquely identifies the object represented by this
+     *     GlobalConnectionIdentifier.
      */
-    public GlobalConnectionIdentifier(UserContext context, Connection connection) {
-        this.authProvider = context.getAuthenticationProvider();
-        this.type = Type.CONNECTION;
-        this.identifier = connection.getIdentifier();
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns a 64-bit hash of the key of this GlobalConnectionIdentifier.
+     * As the hash is derived only from the key, it is stable across
+     * Guacamole instances and JVMs.
+     *
+     * @return
+     *     A 64-bit hash of the value returned by getKey().
+     */
+    public long getHash() {
+        return hash;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(authProvider.getIdentifier(), type, identifier);
+        return (int) (hash ^ (hash >>> 32));
     }
 
     @Override
     public boolean equals(Object obj) {
 
-        // This object is equal to itself
-        if (this == obj)
-            return true;
-
-        // Compare only non-null objects of the same type (all others are
-        // guaranteed to be not equal)
-        if (obj == null || getClass() != obj.getClass())
-            return false;
+        // Instances are canonical, and thus are equal only to themselves
+        return this == obj;
 
-        GlobalConnectionIdentifier other = (GlobalConnectionIdentifier) obj;
-        return authProvider == other.authProvider
-            && type == other.type
-            && identifier.equals(other.identifier);
+    }
 
+    @Override
+    public String toString() {
+        return key;
     }
 
 }
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer which runs scheduled tasks using a single background thread and a
+ * hashed wheel of buckets. Scheduling and cancelling a task are both O(1),
+ * and all tasks which expire within the same tick are run together as a
+ * batch, making this timer suitable for tracking timeouts of very large
+ * numbers of connections. Tasks are run with a precision of one tick and
+ * must not block for long, as they delay all other expired tasks.
+ *
+ * This timer also maintains a coarse monotonic clock, updated once per tick,
+ * which may be read more cheaply than System.nanoTime(). Like
+ * System.nanoTime(), this clock is unaffected by changes to the system clock,
+ * but its origin is arbitrary, and so it is meaningful only for measuring
+ * elapsed time.
+ */
+public class HashedWheelTimer {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * A task that has been scheduled with this timer. Each Timeout is stored
+     * within a doubly-linked list of the Timeouts in the same bucket, allowing
+     * removal in constant time.
+     */
+    public class Timeout {
+
+        /**
+         * The task to run when this Timeout expires.
+         */
+        private final Runnable task;
+
+        /**
+         * The number of additional full rotations of the wheel which must
+         * pass before this Timeout expires.
+         */
+        private long rounds;
+
+        /**
+         * The index of the bucket containing this Timeout, or -1 if this
+         * Timeout has expired or been cancelled.
+         */
+        private int bucket;
+
+        /**
+         * The previous Timeout within the same bucket, if any.
+         */
+        private Timeout previous;
+
+        /**
+         * The next Timeout within the same bucket, if any.
+         */
+        private Timeout next;
+
+        /**
+         * Creates a new Timeout which runs the given task when it expires.
+         *
+         * @param task
+         *     The task to run upon expiration.
+         */
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels this Timeout, such that its task will not be run. If the
+         * task has already been run or is running, this function has no
+         * effect.
+         *
+         * @return
+         *     true if this Timeout was cancelled, false if it had already
+         *     expired or been cancelled.
+         */
+        public boolean cancel() {
+            synchronized (HashedWheelTimer.this) {
+
+                if (bucket == -1)
+                    return false;
+
+                unlink(this);
+                return true;
+
+            }
+        }
+
+    }
+
+    /**
+     * The first Timeout within each bucket of the wheel.
+     */
+    private final Timeout[] wheel;
+
+    /**
+     * The duration of each tick, in milliseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * The number of ticks that have elapsed since this timer was created.
+     */
+    private long tick;
+
+    /**
+     * The current time of the monotonic clock, in milliseconds, as of the
+     * most recent tick.
+     */
+    private volatile long time = readClock();
+
+    /**
+     * Executor service which advances the wheel once per tick.
+     */
+    private final ScheduledExecutorService tickService;
+
+    /**
+     * Creates a new HashedWheelTimer having the given tick duration and
+     * number of buckets, starting the background thread that runs expired
+     * tasks.
+     *
+     * @param name
+     *     The name to assign to the background thread.
+     *
+     * @param tickDuration
+     *     The duration of each tick, in milliseconds.
+     *
+     * @param buckets
+     *     The number of buckets in the wheel. Timeouts which are further than
+     *     this many ticks in the future are stored alongside nearer Timeouts,
+     *     and so more buckets reduce the number of Timeouts visited per tick.
+     */
+    public HashedWheelTimer(String name, long tickDuration, int buckets) {
+
+        this.tickDuration = tickDuration;
+        this.wheel = new Timeout[buckets];
+
+        this.tickService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        tickService.scheduleAtFixedRate(this::tick, tickDuration,
+                tickDuration, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Removes the given Timeout from its bucket. The caller must hold the
+     * monitor of this timer.
+     *
+     * @param timeout
+     *     The Timeout to remove.
+     */
+    private void unlink(Timeout timeout) {
+
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            wheel[timeout.bucket] = timeout.next;
+
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+
+    }
+
+    /**
+     * Advances the wheel by one tick, running all tasks which have expired.
+     */
+    private void tick() {
+
+        List<Runnable> expired = new ArrayList<>();
+
+        // Collect all expired tasks within the current bucket
+        synchronized (this) {
+
+            time = readClock();
+            tick++;
+
+            Timeout timeout = wheel[(int) (tick % wheel.length)];
+            while (timeout != null) {
+
+                Timeout next = timeout.next;
+
+                if (timeout.rounds <= 0) {
+                    unlink(timeout);
+                    expired.add(timeout.task);
+                }
+                else
+                    timeout.rounds--;
+
+                timeout = next;
+
+            }
+
+        }
+
+        // Run expired tasks outside the lock, such that they may schedule
+        // further tasks
+        for (Runnable task : expired) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                logger.warn("Scheduled task failed: {}", e.getMessage());
+                logger.debug("Scheduled task threw an exception.", e);
+            }
+        }
+
+    }
+
+    /**
+     * Schedules the given task to run after the given delay. The task will
+     * run no earlier than the given delay, rounded up to the next tick.
+     *
+     * @param task
+     *     The task to run.
+     *
+     * @param delay
+     *     The number of milliseconds to wait before running the task.
+     *
+     * @return
+     *     A Timeout which may be used to cancel the task.
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+
+        long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+        long target = tick + ticks;
+
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = (ticks - 1) / wheel.length;
+        timeout.bucket = (int) (target % wheel.length);
+
+        // Insert at head of bucket
+        timeout.next = wheel[timeout.bucket];
+        if (timeout.next != null)
+            timeout.next.previous = timeout;
+        wheel[timeout.bucket] = timeout;
+
+        return timeout;
+
+    }
+
+    /**
+     * Reads the monotonic clock underlying the coarse clock of this timer.
+     *
+     * @return
+     *     The current time of the monotonic clock, in milliseconds.
+     */
+    private static long readClock() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Returns the current time of the monotonic clock of this timer, in
+     * milliseconds, as of the most recent tick. This value is accurate only
+     * to within one tick, but may be read far more cheaply than
+     * System.nanoTime(). As the origin of this clock is arbitrary, values are
+     * meaningful only when compared with other values from the same clock.
+     *
+     * @return
+     *     The current time of the monotonic clock, in milliseconds, to within
+     *     one tick.
+     */
+    public long monotonicTimeMillis() {
+        return time;
+    }
+
+    /**
+     * Stops the background thread of this timer. Any pending tasks will not
+     * be run.
+     */
+    public void stop() {
+        tickService.shutdownNow();
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.OpcodeCounter;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter implementation which records each instruction of user
+ * input written through it against a ConnectionLease, forwarding all data
+ * untouched. Instructions are located using an OpcodeScanner, and so are
+ * neither parsed nor copied.
+ */
+public class InputTrackingGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The opcodes of all instructions which represent input from the user,
+     * as opposed to instructions sent automatically by the client.
+     */
+    private static final List<String> INPUT_OPCODES = Arrays.asList(
+        "argv", "blob", "clipboard", "file", "key", "mouse", "pipe", "size"
+    );
+
+    /**
+     * The mask of all input opcodes, with the bit of each opcode being its
+     * index within OpcodeCounter.OPCODES.
+     */
+    private static final long INPUT_MASK = getMask(INPUT_OPCODES);
+
+    /**
+     * The wrapped GuacamoleWriter.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The lease to record input against.
+     */
+    private final ConnectionLease lease;
+
+    /**
+     * The scanner which locates each instruction written, recording those
+     * which are input.
+     */
+    private final OpcodeScanner scanner = new OpcodeScanner() {
+
+        @Override
+        public void record(int opcode, long length) {
+            if ((INPUT_MASK & (1L << opcode)) != 0)
+                lease.touchInput();
+        }
+
+        @Override
+        public void flush() {
+            // Nothing is counted
+        }
+
+    };
+
+    /**
+     * Creates a new InputTrackingGuacamoleWriter which forwards all data to
+     * the given writer, recording each instruction of input against the
+     * given lease.
+     *
+     * @param writer
+     *     The GuacamoleWriter to forward all data to.
+     *
+     * @param lease
+     *     The lease to record input against.
+     */
+    public InputTrackingGuacamoleWriter(GuacamoleWriter writer,
+            ConnectionLease lease) {
+        this.writer = writer;
+        this.lease = lease;
+    }
+
+    /**
+     * Returns a mask having the bit of each of the given opcodes set, where
+     * the bit of each opcode is its index within OpcodeCounter.OPCODES.
+     *
+     * @param opcodes
+     *     The opcodes to include within the mask.
+     *
+     * @return
+     *     A mask having the bit of each of the given opcodes set.
+     */
+    private static long getMask(List<String> opcodes) {
+
+        long mask = 0;
+        for (String opcode : opcodes)
+            mask |= 1L << OpcodeCounter.indexOf(opcode);
+
+        return mask;
+
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+        scanner.scan(chunk, off, len);
+        writer.write(chunk, off, len);
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+
+        if (INPUT_OPCODES.contains(instruction.getOpcode()))
+            lease.touchInput();
+
+        writer.writeInstruction(instruction);
+
+    }
+
+}
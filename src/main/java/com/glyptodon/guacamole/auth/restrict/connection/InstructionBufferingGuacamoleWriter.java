@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.Arrays;
+import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter implementation which buffers complete instructions of
+ * interest so that they may be forwarded, held, or dropped, while forwarding
+ * all other instructions untouched. As with OpcodeFilteringGuacamoleWriter,
+ * written data is scanned in place rather than parsed into
+ * GuacamoleInstruction objects, and contiguous runs of untouched instructions
+ * are forwarded with a single write. Only instructions of interest, and the
+ * leading portion of instructions whose opcode has not yet been fully
+ * received, are ever copied. Instructions of interest which are unusually
+ * large are forwarded untouched rather than buffered.
+ */
+public abstract class InstructionBufferingGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The value returned by classify() for instructions which are not of
+     * interest.
+     */
+    protected static final int NOT_BUFFERED = -1;
+
+    /**
+     * The value returned by getNumericElement() for elements which are
+     * absent, non-numeric, or larger than MAX_NUMERIC_VALUE.
+     */
+    protected static final int NOT_NUMERIC = -1;
+
+    /**
+     * The largest value of any element that getNumericElement() will parse.
+     */
+    private static final int MAX_NUMERIC_VALUE = 99999999;
+
+    /**
+     * The length of the longest opcode that may be of interest. Instructions
+     * having longer opcodes are always forwarded untouched.
+     */
+    private static final int MAX_OPCODE_LENGTH = 16;
+
+    /**
+     * The largest number of elements, including the opcode, that an
+     * instruction may have and still be buffered.
+     */
+    private static final int MAX_BUFFERED_ELEMENTS = 8;
+
+    /**
+     * The largest length of any element of an instruction that may be
+     * buffered.
+     */
+    private static final long MAX_BUFFERED_ELEMENT_LENGTH = 32;
+
+    /**
+     * The largest element length that will be accepted. Instructions
+     * declaring longer elements are rejected as malformed.
+     */
+    private static final long MAX_ELEMENT_LENGTH = Integer.MAX_VALUE;
+
+    /**
+     * Parser state in which the length prefix of an element is being read.
+     */
+    private static final int LENGTH = 0;
+
+    /**
+     * Parser state in which the value of an element is being read.
+     */
+    private static final int VALUE = 1;
+
+    /**
+     * Parser state in which the terminator of an element (either ',' or ';')
+     * is expected.
+     */
+    private static final int TERMINATOR = 2;
+
+    /**
+     * Mode of an instruction whose opcode has not yet been fully received.
+     */
+    private static final int UNDECIDED = 0;
+
+    /**
+     * Mode of an instruction which is forwarded untouched.
+     */
+    private static final int FORWARD = 1;
+
+    /**
+     * Mode of an instruction of interest which is being buffered.
+     */
+    private static final int BUFFER = 2;
+
+    /**
+     * The wrapped GuacamoleWriter.
+     */
+    protected final GuacamoleWriter writer;
+
+    /**
+     * The current parser state: LENGTH, VALUE, or TERMINATOR.
+     */
+    private int state = LENGTH;
+
+    /**
+     * How the current instruction is being handled: UNDECIDED, FORWARD, or
+     * BUFFER.
+     */
+    private int mode = UNDECIDED;
+
+    /**
+     * The type of the instruction being buffered, as returned by classify().
+     */
+    private int type;
+
+    /**
+     * The index of the element currently being read within the current
+     * instruction. The opcode is element 0.
+     */
+    private int element;
+
+    /**
+     * The length of the element currently being read, as parsed so far from
+     * its length prefix, in UTF-16 code units.
+     */
+    private long length;
+
+    /**
+     * The number of characters remaining in the value of the element
+     * currently being read.
+     */
+    private long remaining;
+
+    /**
+     * The opcode of the current instruction, as received so far.
+     */
+    private final char[] opcode = new char[MAX_OPCODE_LENGTH];
+
+    /**
+     * The number of characters of the opcode received so far.
+     */
+    private int opcodeLength;
+
+    /**
+     * The numeric values of each element of the buffered instruction, or
+     * NOT_NUMERIC for elements which are not numeric.
+     */
+    private final int[] numericElements = new int[MAX_BUFFERED_ELEMENTS];
+
+    /**
+     * The number of elements within the buffered instruction, including the
+     * opcode.
+     */
+    private int elementCount;
+
+    /**
+     * The portion of the current instruction which has been received in
+     * previous writes while its opcode was undecided, or all of the current
+     * instruction received so far if it is being buffered.
+     */
+    private char[] buffer = new char[64];
+
+    /**
+     * The number of characters within the buffer.
+     */
+    private int bufferLength;
+
+    /**
+     * Creates a new InstructionBufferingGuacamoleWriter which forwards
+     * instructions to the given writer.
+     *
+     * @param writer
+     *     The GuacamoleWriter to forward instructions to.
+     */
+    public InstructionBufferingGuacamoleWriter(GuacamoleWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Returns whether instructions having the given opcode are of interest
+     * and, if so, an arbitrary non-negative value identifying the type of
+     * instruction, to be passed to handleInstruction() once the instruction
+     * has been fully buffered.
+     *
+     * @param opcode
+     *     A buffer containing the opcode of the instruction.
+     *
+     * @param length
+     *     The length of the opcode.
+     *
+     * @return
+     *     A non-negative value identifying the type of instruction if
+     *     instructions having the given opcode should be buffered,
+     *     NOT_BUFFERED otherwise.
+     */
+    protected abstract int classify(char[] opcode, int length);
+
+    /**
+     * Handles a complete instruction of interest. The instruction is
+     * forwarded only if this function writes it to the wrapped writer. The
+     * given buffer is reused once this function returns.
+     *
+     * @param type
+     *     The type of the instruction, as returned by classify().
+     *
+     * @param instruction
+     *     A buffer containing the complete instruction, in encoded form.
+     *
+     * @param length
+     *     The length of the instruction.
+     *
+     * @throws GuacamoleException
+     *     If the instruction cannot be written.
+     */
+    protected abstract void handleInstruction(int type, char[] instruction,
+            int length) throws GuacamoleException;
+
+    /**
+     * Returns whether any instructions are being held which must be written
+     * before the next instruction is forwarded.
+     *
+     * @return
+     *     true if flushPending() would write any held instructions, false
+     *     otherwise.
+     */
+    protected boolean hasPending() {
+        return false;
+    }
+
+    /**
+     * Writes any instructions being held. This function is invoked before
+     * forwarding any instruction which is not of interest, such that held
+     * instructions retain their relative order.
+     *
+     * @throws GuacamoleException
+     *     If the held instructions cannot be written.
+     */
+    protected void flushPending() throws GuacamoleException {
+    }
+
+    /**
+     * Returns the numeric value of the given element of the instruction
+     * currently being handled by handleInstruction().
+     *
+     * @param index
+     *     The index of the element to return. The opcode is element 0.
+     *
+     * @return
+     *     The numeric value of the given element, or NOT_NUMERIC if the
+     *     element is absent, not numeric, or unusually large.
+     */
+    protected int getNumericElement(int index) {
+        return index > 0 && index < elementCount ? numericElements[index] : NOT_NUMERIC;
+    }
+
+    /**
+     * Appends the given characters to the buffer, growing the buffer if
+     * necessary.
+     *
+     * @param chunk
+     *     The array containing the characters to append.
+     *
+     * @param off
+     *     The offset of the first character to append.
+     *
+     * @param len
+     *     The number of characters to append.
+     */
+    private void append(char[] chunk, int off, int len) {
+
+        if (bufferLength + len > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + len));
+
+        System.arraycopy(chunk, off, buffer, bufferLength, len);
+        bufferLength += len;
+
+    }
+
+    /**
+     * Switches the current instruction to being forwarded untouched. Any
+     * held instructions are written first, followed by the buffered portion
+     * of the current instruction.
+     *
+     * @throws GuacamoleException
+     *     If the held instructions or buffered data cannot be written.
+     */
+    private void forward() throws GuacamoleException {
+
+        mode = FORWARD;
+        flushPending();
+
+        if (bufferLength > 0)
+            writer.write(buffer, 0, bufferLength);
+
+        bufferLength = 0;
+
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        int end = off + len;
+
+        // Start of the unbuffered portion of the current instruction within
+        // this chunk
+        int segmentStart = off;
+
+        // Start of the pending run of forwarded characters, or -1 if no
+        // characters are pending
+        int runStart = mode == FORWARD ? off : -1;
+
+        for (int i = off; i < end; i++) {
+
+            char c = chunk[i];
+            switch (state) {
+
+                // Read digits of element length prefix
+                case LENGTH:
+
+                    if (c >= '0' && c <= '9') {
+                        length = length * 10 + (c - '0');
+                        if (length > MAX_ELEMENT_LENGTH)
+                            throw new GuacamoleClientException("Instruction "
+                                    + "element length is too large.");
+                        break;
+                    }
+
+                    if (c != '.')
+                        throw new GuacamoleClientException("Non-numeric "
+                                + "character in element length.");
+
+                    remaining = length;
+                    state = remaining > 0 ? VALUE : TERMINATOR;
+
+                    if (element == 0)
+                        opcodeLength = 0;
+
+                    else if (mode == BUFFER) {
+
+                        // Unusually large instructions are not buffered
+                        if (length > MAX_BUFFERED_ELEMENT_LENGTH) {
+                            append(chunk, segmentStart, i + 1 - segmentStart);
+                            forward();
+                            runStart = i + 1;
+                        }
+
+                        else
+                            numericElements[element] = length > 0 ? 0 : NOT_NUMERIC;
+
+                    }
+
+                    break;
+
+                // Read element value
+                case VALUE:
+
+                    // Record opcode until it is known to be too long
+                    if (element == 0) {
+                        if (length <= MAX_OPCODE_LENGTH)
+                            opcode[opcodeLength++] = c;
+                    }
+
+                    // Parse numeric values of buffered elements
+                    else if (mode == BUFFER) {
+                        int value = numericElements[element];
+                        if (value != NOT_NUMERIC) {
+                            if (c >= '0' && c <= '9' && value <= MAX_NUMERIC_VALUE / 10)
+                                numericElements[element] = value * 10 + (c - '0');
+                            else
+                                numericElements[element] = NOT_NUMERIC;
+                        }
+                    }
+
+                    if (--remaining == 0)
+                        state = TERMINATOR;
+
+                    break;
+
+                // Read element terminator
+                case TERMINATOR:
+
+                    if (c == ',') {
+                        element++;
+                        length = 0;
+                        state = LENGTH;
+
+                        // Instructions with unusually many elements are not
+                        // buffered
+                        if (mode == BUFFER && element >= MAX_BUFFERED_ELEMENTS) {
+                            append(chunk, segmentStart, i + 1 - segmentStart);
+                            forward();
+                            runStart = i + 1;
+                        }
+
+                        break;
+                    }
+
+                    if (c != ';')
+                        throw new GuacamoleClientException("Element "
+                                + "terminator of instruction was not ',' "
+                                + "nor ';'.");
+
+                    // Handle completed instructions of interest
+                    if (mode == BUFFER) {
+                        append(chunk, segmentStart, i + 1 - segmentStart);
+                        elementCount = element + 1;
+                        handleInstruction(type, buffer, bufferLength);
+                        bufferLength = 0;
+                    }
+
+                    // Instruction is complete; prepare for the next
+                    element = 0;
+                    length = 0;
+                    state = LENGTH;
+                    mode = UNDECIDED;
+                    segmentStart = i + 1;
+                    continue;
+
+            }
+
+            // Decide how the current instruction is handled once its opcode
+            // is complete
+            if (mode == UNDECIDED && element == 0 && state == TERMINATOR) {
+
+                type = length <= MAX_OPCODE_LENGTH
+                        ? classify(opcode, opcodeLength) : NOT_BUFFERED;
+
+                // Forward everything preceding an instruction of interest
+                if (type != NOT_BUFFERED) {
+                    mode = BUFFER;
+                    if (runStart != -1 && segmentStart > runStart)
+                        writer.write(chunk, runStart, segmentStart - runStart);
+                    runStart = -1;
+                }
+
+                // Resume or begin forwarding, writing any held instructions
+                // or buffered data first
+                else if (bufferLength > 0 || hasPending()) {
+                    if (runStart != -1 && segmentStart > runStart)
+                        writer.write(chunk, runStart, segmentStart - runStart);
+                    forward();
+                    runStart = segmentStart;
+                }
+
+                else {
+                    mode = FORWARD;
+                    if (runStart == -1)
+                        runStart = segmentStart;
+                }
+
+            }
+
+        }
+
+        // Flush forwarded data, buffering any portion of an instruction
+        // which is undecided or of interest
+        if (mode == FORWARD) {
+            if (runStart != -1 && end > runStart)
+                writer.write(chunk, runStart, end - runStart);
+        }
+        else {
+
+            if (runStart != -1 && segmentStart > runStart)
+                writer.write(chunk, runStart, segmentStart - runStart);
+
+            append(chunk, segmentStart, end - segmentStart);
+
+        }
+
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+        write(instruction.toString().toCharArray());
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.OpcodeCounter;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleReader implementation which records each instruction read against
+ * an OpcodeCounter before returning it untouched. Counts are added to the
+ * shared counter in batches, as described by OpcodeScanner.
+ */
+public class InstrumentedGuacamoleReader implements GuacamoleReader {
+
+    /**
+     * The wrapped GuacamoleReader.
+     */
+    private final GuacamoleReader reader;
+
+    /**
+     * The scanner recording each instruction read.
+     */
+    private final OpcodeScanner scanner;
+
+    /**
+     * Creates a new InstrumentedGuacamoleReader which records all
+     * instructions read from the given reader against the given counter.
+     *
+     * @param reader
+     *     The GuacamoleReader to read instructions from.
+     *
+     * @param counter
+     *     The counter to record each instruction against.
+     */
+    public InstrumentedGuacamoleReader(GuacamoleReader reader,
+            OpcodeCounter counter) {
+        this.reader = reader;
+        this.scanner = new OpcodeScanner(counter, null);
+    }
+
+    /**
+     * Adds all instructions recorded by this reader which have not yet been
+     * added to the shared counter.
+     */
+    public void flush() {
+        scanner.flush();
+    }
+
+    @Override
+    public boolean available() throws GuacamoleException {
+        return reader.available();
+    }
+
+    @Override
+    public char[] read() throws GuacamoleException {
+
+        char[] chunk = reader.read();
+        if (chunk != null)
+            scanner.scan(chunk, 0, chunk.length);
+
+        return chunk;
+
+    }
+
+    @Override
+    public GuacamoleInstruction readInstruction() throws GuacamoleException {
+
+        GuacamoleInstruction instruction = reader.readInstruction();
+        if (instruction != null)
+            scanner.record(OpcodeCounter.indexOf(instruction.getOpcode()),
+                    instruction.toString().length());
+
+        return instruction;
+
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.Histogram;
+import com.glyptodon.guacamole.auth.restrict.metrics.OpcodeCounter;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter implementation which records each instruction written
+ * against one or two OpcodeCounters before passing it through untouched. If
+ * a write latency histogram is given, the amount of time taken by each write
+ * to the wrapped writer is also recorded. Counts are added to the shared
+ * counters in batches, as described by OpcodeScanner.
+ */
+public class InstrumentedGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The wrapped GuacamoleWriter.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The scanner recording each instruction written.
+     */
+    private final OpcodeScanner scanner;
+
+    /**
+     * The histogram to record the duration of each write against, in
+     * nanoseconds, or null if write latency should not be recorded.
+     */
+    private final Histogram latencies;
+
+    /**
+     * Creates a new InstrumentedGuacamoleWriter which records all
+     * instructions written against the given counters before passing them
+     * through to the given writer.
+     *
+     * @param writer
+     *     The GuacamoleWriter to pass all instructions through to.
+     *
+     * @param counter
+     *     The counter to record each instruction against.
+     *
+     * @param secondCounter
+     *     An additional counter to record each instruction against, or null
+     *     if instructions should be recorded only against the first counter.
+     *
+     * @param latencies
+     *     The histogram to record the duration of each write against, in
+     *     nanoseconds, or null if write latency should not be recorded.
+     */
+    public InstrumentedGuacamoleWriter(GuacamoleWriter writer,
+            OpcodeCounter counter, OpcodeCounter secondCounter,
+            Histogram latencies) {
+        this.writer = writer;
+        this.scanner = new OpcodeScanner(counter, secondCounter);
+        this.latencies = latencies;
+    }
+
+    /**
+     * Adds all instructions recorded by this writer which have not yet been
+     * added to the shared counters.
+     */
+    public void flush() {
+        scanner.flush();
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        scanner.scan(chunk, off, len);
+
+        if (latencies == null) {
+            writer.write(chunk, off, len);
+            return;
+        }
+
+        long start = System.nanoTime();
+        writer.write(chunk, off, len);
+        latencies.record(System.nanoTime() - start);
+
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+
+        scanner.record(OpcodeCounter.indexOf(instruction.getOpcode()),
+                instruction.toString().length());
+
+        if (latencies == null) {
+            writer.writeInstruction(instruction);
+            return;
+        }
+
+        long start = System.nanoTime();
+        writer.writeInstruction(instruction);
+        latencies.record(System.nanoTime() - start);
+
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.Histogram;
+import com.glyptodon.guacamole.auth.restrict.metrics.OpcodeCounter;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelCounters;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
+import org.apache.guacamole.net.GuacamoleTunnel;
+
+/**
+ * GuacamoleTunnel implementation which tracks usage of its underlying
+ * connection through a ConnectionLease, without otherwise altering the data
+ * passing through the tunnel. Activity is recorded each time data is read
+ * from or written to the tunnel, and the lease is released when the tunnel is
+ * closed. Recording activity costs only a read of the timer's current tick
+ * per call. Unless tunnel statistics are being collected, no other wrapping is
+ * applied to the reader and writer of the wrapped tunnel, such that users
+ * whose access is not restricted pay no further per-instruction cost.
+ * Subclasses may alter the data passing through the tunnel by overriding
+ * decorateReader() and decorateWriter().
+ */
+public class LeasedGuacamoleTunnel extends DelegatingGuacamoleTunnel {
+
+    /**
+     * The lease tracking usage of the connection underlying this tunnel.
+     */
+    private final ConnectionLease lease;
+
+    /**
+     * The tunnel wrapped by this tunnel.
+     */
+    private final GuacamoleTunnel tunnel;
+
+    /**
+     * The counters to record the instructions passing through this tunnel
+     * against, or null if instructions should not be recorded.
+     */
+    private final TunnelCounters counters;
+
+    /**
+     * The instrumented reader within the chain of readers most recently
+     * returned by acquireReader(), or null if that chain contains no
+     * instrumented reader.
+     */
+    private volatile InstrumentedGuacamoleReader instrumentedReader;
+
+    /**
+     * The reader of the underlying tunnel that decoratedReader wraps.
+     */
+    private GuacamoleReader wrappedReader;
+
+    /**
+     * The reader most recently returned by acquireReader(), reused for as
+     * long as the underlying tunnel returns the same reader, such that any
+     * per-stream state is not lost between acquisitions. Access to this
+     * reader is guarded by the reader lock of the underlying tunnel.
+     */
+    private GuacamoleReader decoratedReader;
+
+    /**
+     * All instrumented writers within the chain of writers most recently
+     * returned by acquireWriter().
+     */
+    private final List<InstrumentedGuacamoleWriter> instrumentedWriters = new CopyOnWriteArrayList<>();
+
+    /**
+     * The writer of the underlying tunnel that decoratedWriter wraps.
+     */
+    private GuacamoleWriter wrappedWriter;
+
+    /**
+     * The writer most recently returned by acquireWriter(), reused for as
+     * long as the underlying tunnel returns the same writer, such that
+     * partial or held instructions are not lost between acquisitions. Access
+     * to this writer is guarded by the writer lock of the underlying tunnel.
+     */
+    private GuacamoleWriter decoratedWriter;
+
+    /**
+     * Creates a new LeasedGuacamoleTunnel which wraps the given tunnel,
+     * tracking its usage through the given lease.
+     *
+     * @param tunnel
+     *     The tunnel to wrap.
+     *
+     * @param lease
+     *     The lease tracking usage of the connection underlying the given
+     *     tunnel. The lease is touched whenever the tunnel is read or written
+     *     and is released when this tunnel is closed.
+     *
+     * @param counters
+     *     The counters to record the instructions passing through this
+     *     tunnel against, or null if instructions should not be recorded.
+     */
+    public LeasedGuacamoleTunnel(GuacamoleTunnel tunnel, ConnectionLease lease,
+            TunnelCounters counters) {
+        super(tunnel);
+        this.tunnel = tunnel;
+        this.lease = lease;
+        this.counters = counters;
+    }
+
+    /**
+     * Returns the lease tracking usage of the connection underlying this
+     * tunnel.
+     *
+     * @return
+     *     The lease tracking usage of the connection underlying this tunnel.
+     */
+    public ConnectionLease getLease() {
+        return lease;
+    }
+
+    /**
+     * Returns the tunnel wrapped by this tunnel. Data written to the returned
+     * tunnel bypasses any alterations made by this tunnel.
+     *
+     * @return
+     *     The tunnel wrapped by this tunnel.
+     */
+    protected GuacamoleTunnel getWrappedTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * Returns the counters that the instructions passing through this tunnel
+     * are recorded against.
+     *
+     * @return
+     *     The counters that the instructions passing through this tunnel are
+     *     recorded against, or null if instructions are not recorded.
+     */
+    protected TunnelCounters getCounters() {
+        return counters;
+    }
+
+    /**
+     * Wraps the given writer such that all instructions written are recorded
+     * against the given counters. Any counts not yet added to the shared
+     * counters when this tunnel is closed are added upon closure.
+     *
+     * @param writer
+     *     The writer to wrap.
+     *
+     * @param counter
+     *     The counter to record each instruction against.
+     *
+     * @param secondCounter
+     *     An additional counter to record each instruction against, or null
+     *     if instructions should be recorded only against the first counter.
+     *
+     * @param latencies
+     *     The histogram to record the duration of each write against, in
+     *     nanoseconds, or null if write latency should not be recorded.
+     *
+     * @return
+     *     A writer which records all instructions written to the given
+     *     writer.
+     */
+    protected GuacamoleWriter instrument(GuacamoleWriter writer,
+            OpcodeCounter counter, OpcodeCounter secondCounter,
+            Histogram latencies) {
+
+        InstrumentedGuacamoleWriter instrumented = new InstrumentedGuacamoleWriter(
+                writer, counter, secondCounter, latencies);
+
+        instrumentedWriters.add(instrumented);
+        return instrumented;
+
+    }
+
+    /**
+     * Wraps the given reader such that all instructions read are recorded
+     * against the given counter. Any counts not yet added to the shared
+     * counters when this tunnel is closed are added upon closure. At most one
+     * reader within each chain of readers may be instrumented.
+     *
+     * @param reader
+     *     The reader to wrap.
+     *
+     * @param counter
+     *     The counter to record each instruction against.
+     *
+     * @return
+     *     A reader which records all instructions read from the given reader.
+     */
+    protected GuacamoleReader instrument(GuacamoleReader reader,
+            OpcodeCounter counter) {
+        instrumentedReader = new InstrumentedGuacamoleReader(reader, counter);
+        return instrumentedReader;
+    }
+
+    /**
+     * Returns the reader that should be used to read from the underlying
+     * tunnel through the given reader. The returned reader is reused for as
+     * long as the underlying tunnel continues to return the given reader.
+     * By default, the given reader is returned as-is unless instructions are
+     * being recorded.
+     *
+     * @param reader
+     *     The reader of the underlying tunnel.
+     *
+     * @return
+     *     The reader that should be returned by acquireReader().
+     */
+    protected GuacamoleReader decorateReader(GuacamoleReader reader) {
+
+        if (counters == null)
+            return reader;
+
+        return instrument(reader, counters.getRead());
+
+    }
+
+    /**
+     * Returns the writer that should be used to write to the underlying
+     * tunnel through the given writer. The returned writer is reused for as
+     * long as the underlying tunnel continues to return the given writer.
+     * By default, the given writer is returned as-is unless instructions are
+     * being recorded.
+     *
+     * @param writer
+     *     The writer of the underlying tunnel.
+     *
+     * @return
+     *     The writer that should be returned by acquireWriter().
+     */
+    protected GuacamoleWriter decorateWriter(GuacamoleWriter writer) {
+
+        if (counters == null)
+            return writer;
+
+        // Nothing is dropped, so every instruction received is forwarded
+        return instrument(writer, counters.getReceived(),
+                counters.getForwarded(), counters.getWriteLatencies());
+
+    }
+
+    @Override
+    public GuacamoleReader acquireReader() {
+
+        GuacamoleReader reader = super.acquireReader();
+        if (reader != wrappedReader) {
+            flushReader();
+            instrumentedReader = null;
+            wrappedReader = reader;
+            decoratedReader = new ActivityTrackingGuacamoleReader(
+                    decorateReader(reader), lease);
+        }
+
+        return decoratedReader;
+
+    }
+
+    @Override
+    public GuacamoleWriter acquireWriter() {
+
+        GuacamoleWriter writer = super.acquireWriter();
+        if (writer != wrappedWriter) {
+            flushWriters();
+            instrumentedWriters.clear();
+            wrappedWriter = writer;
+            decoratedWriter = new ActivityTrackingGuacamoleWriter(
+                    decorateWriter(writer), lease);
+        }
+
+        return decoratedWriter;
+
+    }
+
+    /**
+     * Adds any counts recorded by the current instrumented reader which have
+     * not yet been added to the shared counters.
+     */
+    private void flushReader() {
+        InstrumentedGuacamoleReader reader = instrumentedReader;
+        if (reader != null)
+            reader.flush();
+    }
+
+    /**
+     * Adds any counts recorded by the current instrumented writers which
+     * have not yet been added to the shared counters.
+     */
+    private void flushWriters() {
+        for (InstrumentedGuacamoleWriter writer : instrumentedWriters)
+            writer.flush();
+    }
+
+    @Override
+    public void close() throws GuacamoleException {
+
+        // Automatically release tracked connection when connection is closed,
+        // even if closure fails
+        try {
+            super.close();
+        }
+        finally {
+            lease.release();
+
+            // Record any remaining counts. Instructions which are still being
+            // read or written by other threads during closure may be missed.
+            flushReader();
+            flushWriters();
+
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.InputStatistics;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * GuacamoleWriter implementation which coalesces bursts of "mouse"
+ * instructions having unchanged button state. The first "mouse" instruction
+ * within each coalescing window is forwarded immediately. Later instructions
+ * within the same window which do not change the button state are held, with
+ * each held instruction replacing the last, such that only the latest
+ * position is eventually forwarded. A held instruction is forwarded as soon
+ * as any other instruction is written, and is dropped if superseded by a
+ * "mouse" instruction which is itself forwarded. Instructions which change
+ * the button state are always forwarded, and the relative order of all
+ * forwarded instructions is preserved.
+ *
+ * If nothing else is written, a held instruction is forwarded once its
+ * window ends by a task scheduled on the given timer, such that the final
+ * position of a burst is delayed by at most the window plus one tick of that
+ * timer. The task writes while holding the writer lock of the given tunnel,
+ * the same lock held by the client while writing, and so waits only for any
+ * write already in progress. As instructions are held only between complete
+ * instructions, the held instruction never interrupts another instruction.
+ */
+public class MouseCoalescingGuacamoleWriter extends InstructionBufferingGuacamoleWriter {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(MouseCoalescingGuacamoleWriter.class);
+
+    /**
+     * The instruction type assigned to "mouse" instructions.
+     */
+    private static final int MOUSE = 0;
+
+    /**
+     * The index of the element of the "mouse" instruction containing the
+     * button mask.
+     */
+    private static final int MASK_ELEMENT = 3;
+
+    /**
+     * The length of the coalescing window, in nanoseconds.
+     */
+    private final long window;
+
+    /**
+     * The statistics to update as "mouse" instructions are forwarded or
+     * dropped.
+     */
+    private final InputStatistics statistics;
+
+    /**
+     * The tunnel whose writer lock guards all access to this writer.
+     */
+    private final GuacamoleTunnel tunnel;
+
+    /**
+     * The timer used to forward held instructions once their window ends.
+     */
+    private final HashedWheelTimer timer;
+
+    /**
+     * The Timeout which will forward the held instruction, if any. Access to
+     * this field is guarded by the writer lock of the tunnel.
+     */
+    private HashedWheelTimer.Timeout flushTimeout;
+
+    /**
+     * The most recent "mouse" instruction which is being held rather than
+     * forwarded.
+     */
+    private char[] pending = new char[64];
+
+    /**
+     * The number of characters within the pending buffer, or zero if no
+     * "mouse" instruction is being held.
+     */
+    private int pendingLength;
+
+    /**
+     * Whether any "mouse" instruction has yet been forwarded.
+     */
+    private boolean mouseForwarded;
+
+    /**
+     * The button mask of the "mouse" instruction most recently forwarded.
+     */
+    private int lastMask;
+
+    /**
+     * The value of System.nanoTime() when the current coalescing window
+     * began.
+     */
+    private long windowStart;
+
+    /**
+     * Creates a new MouseCoalescingGuacamoleWriter which coalesces "mouse"
+     * instructions within windows of the given length before forwarding them
+     * to the given writer.
+     *
+     * @param writer
+     *     The GuacamoleWriter to forward instructions to.
+     *
+     * @param window
+     *     The length of the coalescing window, in milliseconds.
+     *
+     * @param statistics
+     *     The statistics to update as "mouse" instructions are forwarded or
+     *     dropped.
+     *
+     * @param tunnel
+     *     The tunnel whose writer lock must be held while writing to the
+     *     returned writer.
+     *
+     * @param timer
+     *     The timer that should be used to forward held instructions once
+     *     their window ends.
+     */
+    public MouseCoalescingGuacamoleWriter(GuacamoleWriter writer, int window,
+            InputStatistics statistics, GuacamoleTunnel tunnel,
+            HashedWheelTimer timer) {
+        super(writer);
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.statistics = statistics;
+        this.tunnel = tunnel;
+        this.timer = timer;
+    }
+
+    /**
+     * Schedules the held instruction to be forwarded once the current window
+     * ends, unless already scheduled. The writer lock of the tunnel must be
+     * held.
+     *
+     * @param now
+     *     The current value of System.nanoTime().
+     */
+    private void scheduleFlush(long now) {
+
+        if (flushTimeout != null)
+            return;
+
+        long delay = TimeUnit.NANOSECONDS.toMillis(windowStart + window - now) + 1;
+        flushTimeout = timer.schedule(this::flushExpired, Math.max(delay, 1));
+
+    }
+
+    /**
+     * Forwards the held instruction if its window has ended, rescheduling
+     * otherwise. This function is invoked by the timer, and acquires the
+     * writer lock of the tunnel itself.
+     */
+    private void flushExpired() {
+
+        if (!tunnel.isOpen())
+            return;
+
+        tunnel.acquireWriter();
+        try {
+
+            flushTimeout = null;
+            if (pendingLength == 0)
+                return;
+
+            // The window may have restarted since this flush was scheduled
+            long now = System.nanoTime();
+            if (now - windowStart < window) {
+                scheduleFlush(now);
+                return;
+            }
+
+            flushPending();
+            windowStart = now;
+
+        }
+        catch (GuacamoleException e) {
+            logger.debug("Held \"mouse\" instruction could not be forwarded.", e);
+        }
+        finally {
+            tunnel.releaseWriter();
+        }
+
+    }
+
+    @Override
+    protected int classify(char[] opcode, int length) {
+
+        if (length == 5 && opcode[0] == 'm' && opcode[1] == 'o'
+                && opcode[2] == 'u' && opcode[3] == 's' && opcode[4] == 'e')
+            return MOUSE;
+
+        return NOT_BUFFERED;
+
+    }
+
+    @Override
+    protected boolean hasPending() {
+        return pendingLength > 0;
+    }
+
+    @Override
+    protected void flushPending() throws GuacamoleException {
+
+        if (pendingLength == 0)
+            return;
+
+        writer.write(pending, 0, pendingLength);
+        statistics.mouseEventForwarded();
+        pendingLength = 0;
+
+    }
+
+    @Override
+    protected void handleInstruction(int type, char[] instruction, int length)
+            throws GuacamoleException {
+
+        long now = System.nanoTime();
+        int mask = getNumericElement(MASK_ELEMENT);
+
+        // Any previously held instruction is superseded by this one
+        if (pendingLength > 0) {
+            statistics.mouseEventCoalesced();
+            pendingLength = 0;
+        }
+
+        // Forward button transitions and the first instruction of each
+        // window immediately
+        if (!mouseForwarded || mask == NOT_NUMERIC || mask != lastMask
+                || now - windowStart >= window) {
+            writer.write(instruction, 0, length);
+            statistics.mouseEventForwarded();
+            mouseForwarded = true;
+            lastMask = mask;
+            windowStart = now;
+            return;
+        }
+
+        // Otherwise, hold this instruction until something else is written
+        // or the window ends
+        if (length > pending.length)
+            pending = new char[Math.max(pending.length * 2, length)];
+
+        System.arraycopy(instruction, 0, pending, 0, length);
+        pendingLength = length;
+        scheduleFlush(now);
+
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.Arrays;
+import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleWriter implementation which forwards only those instructions whose
+ * opcodes are within a given OpcodeSet, dropping all others. Unlike
+ * FilteredGuacamoleWriter, instructions are not parsed into
+ * GuacamoleInstruction objects. Written data is instead scanned in place,
+ * with the opcode of each instruction matched character by character as it
+ * arrives, and contiguous runs of allowed instructions are forwarded with a
+ * single write. Instructions may be split across any number of writes. Only
+ * the leading portion of an instruction whose opcode has not yet been fully
+ * received is ever copied.
+ */
+public class OpcodeFilteringGuacamoleWriter implements GuacamoleWriter {
+
+    /**
+     * The largest element length that will be accepted. Instructions
+     * declaring longer elements are rejected as malformed.
+     */
+    private static final long MAX_ELEMENT_LENGTH = Integer.MAX_VALUE;
+
+    /**
+     * Parser state in which the length prefix of an element is being read.
+     */
+    private static final int LENGTH = 0;
+
+    /**
+     * Parser state in which the value of an element is being read.
+     */
+    private static final int VALUE = 1;
+
+    /**
+     * Parser state in which the terminator of an element (either ',' or ';')
+     * is expected.
+     */
+    private static final int TERMINATOR = 2;
+
+    /**
+     * Decision state of an instruction whose opcode has not yet been fully
+     * received.
+     */
+    private static final int UNDECIDED = 0;
+
+    /**
+     * Decision state of an instruction which is being forwarded.
+     */
+    private static final int FORWARD = 1;
+
+    /**
+     * Decision state of an instruction which is being dropped.
+     */
+    private static final int SKIP = 2;
+
+    /**
+     * The wrapped GuacamoleWriter.
+     */
+    private final GuacamoleWriter writer;
+
+    /**
+     * The opcodes of all instructions which should be forwarded.
+     */
+    private final OpcodeSet allowed;
+
+    /**
+     * The current parser state: LENGTH, VALUE, or TERMINATOR.
+     */
+    private int state = LENGTH;
+
+    /**
+     * Whether the current instruction is being forwarded: UNDECIDED,
+     * FORWARD, or SKIP.
+     */
+    private int decision = UNDECIDED;
+
+    /**
+     * The index of the element currently being read within the current
+     * instruction. The opcode is element 0.
+     */
+    private int element;
+
+    /**
+     * The length of the element currently being read, as parsed so far from
+     * its length prefix. As with the rest of guacamole-common, element
+     * lengths are measured in UTF-16 code units.
+     */
+    private long length;
+
+    /**
+     * The number of characters remaining in the value of the element
+     * currently being read.
+     */
+    private long remaining;
+
+    /**
+     * The number of characters of the opcode received so far.
+     */
+    private int opcodePosition;
+
+    /**
+     * The mask of opcodes within the allowed set which the opcode of the
+     * current instruction may still match.
+     */
+    private long candidates;
+
+    /**
+     * The leading portion of the current instruction which was received in
+     * previous writes while its opcode was still undecided.
+     */
+    private char[] carry = new char[64];
+
+    /**
+     * The number of characters within the carry buffer.
+     */
+    private int carryLength;
+
+    /**
+     * Creates a new OpcodeFilteringGuacamoleWriter which forwards only the
+     * instructions having the given opcodes to the given writer.
+     *
+     * @param writer
+     *     The GuacamoleWriter to forward allowed instructions to.
+     *
+     * @param allowed
+     *     The opcodes of all instructions which should be forwarded.
+     */
+    public OpcodeFilteringGuacamoleWriter(GuacamoleWriter writer,
+            OpcodeSet allowed) {
+        this.writer = writer;
+        this.allowed = allowed;
+    }
+
+    /**
+     * Appends the given characters to the carry buffer, growing the buffer
+     * if necessary.
+     *
+     * @param chunk
+     *     The buffer containing the characters to append.
+     *
+     * @param off
+     *     The offset of the first character to append.
+     *
+     * @param len
+     *     The number of characters to append.
+     */
+    private void appendCarry(char[] chunk, int off, int len) {
+
+        if (carryLength + len > carry.length)
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + len));
+
+        System.arraycopy(chunk, off, carry, carryLength, len);
+        carryLength += len;
+
+    }
+
+    /**
+     * Records the outcome of matching the opcode of the current instruction,
+     * based on the current set of candidates. The carry buffer is flushed if
+     * the instruction is to be forwarded, and discarded otherwise.
+     *
+     * @throws GuacamoleException
+     *     If the carry buffer cannot be written.
+     */
+    private void decide() throws GuacamoleException {
+
+        decision = candidates != 0 ? FORWARD : SKIP;
+
+        if (decision == FORWARD && carryLength > 0)
+            writer.write(carry, 0, carryLength);
+
+        carryLength = 0;
+
+    }
+
+    @Override
+    public void write(char[] chunk, int off, int len) throws GuacamoleException {
+
+        int end = off + len;
+
+        // Start of the current instruction within this chunk, or -1 if the
+        // current instruction began within a previous chunk
+        int instructionStart = decision == UNDECIDED && carryLength == 0 ? off : -1;
+
+        // Start of the pending run of forwarded characters, or -1 if no
+        // characters are pending
+        int runStart = decision == FORWARD ? off : -1;
+
+        for (int i = off; i < end; i++) {
+
+            char c = chunk[i];
+            switch (state) {
+
+                // Read digits of element length prefix
+                case LENGTH:
+
+                    if (c >= '0' && c <= '9') {
+                        length = length * 10 + (c - '0');
+                        if (length > MAX_ELEMENT_LENGTH)
+                            throw new GuacamoleClientException("Instruction "
+                                    + "element length is too large.");
+                        break;
+                    }
+
+                    if (c != '.')
+                        throw new GuacamoleClientException("Non-numeric "
+                                + "character in element length.");
+
+                    remaining = length;
+                    state = remaining > 0 ? VALUE : TERMINATOR;
+
+                    // Begin matching the opcode once its length is known
+                    if (element == 0) {
+                        candidates = allowed.start(length);
+                        opcodePosition = 0;
+                        if (candidates == 0 || remaining == 0)
+                            decide();
+                    }
+
+                    break;
+
+                // Read element value
+                case VALUE:
+
+                    if (element == 0 && decision == UNDECIDED)
+                        candidates = allowed.match(candidates, opcodePosition++, c);
+
+                    if (--remaining == 0)
+                        state = TERMINATOR;
+
+                    // Decide as soon as the opcode is complete or cannot
+                    // possibly match
+                    if (element == 0 && decision == UNDECIDED
+                            && (candidates == 0 || remaining == 0))
+                        decide();
+
+                    break;
+
+                // Read element terminator
+                case TERMINATOR:
+
+                    if (c == ',') {
+                        element++;
+                        length = 0;
+                        state = LENGTH;
+                        break;
+                    }
+
+                    if (c != ';')
+                        throw new GuacamoleClientException("Element "
+                                + "terminator of instruction was not ',' "
+                                + "nor ';'.");
+
+                    // Instruction is complete; prepare for the next
+                    element = 0;
+                    length = 0;
+                    state = LENGTH;
+                    decision = UNDECIDED;
+                    instructionStart = i + 1;
+                    continue;
+
+            }
+
+            // Manage the run of forwarded characters once the fate of the
+            // current instruction is known
+            if (decision == FORWARD) {
+                if (runStart == -1)
+                    runStart = instructionStart != -1 ? instructionStart : off;
+            }
+            else if (decision == SKIP && runStart != -1) {
+                int runEnd = instructionStart != -1 ? instructionStart : off;
+                if (runEnd > runStart)
+                    writer.write(chunk, runStart, runEnd - runStart);
+                runStart = -1;
+            }
+
+        }
+
+        // Flush any completed or forwarded data, holding back the leading
+        // portion of any instruction whose opcode is still undecided
+        if (decision == UNDECIDED) {
+
+            int pendingStart = instructionStart != -1 ? instructionStart : off;
+            if (runStart != -1 && pendingStart > runStart)
+                writer.write(chunk, runStart, pendingStart - runStart);
+
+            appendCarry(chunk, pendingStart, end - pendingStart);
+
+        }
+        else if (runStart != -1 && end > runStart)
+            writer.write(chunk, runStart, end - runStart);
+
+    }
+
+    @Override
+    public void write(char[] chunk) throws GuacamoleException {
+        write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void writeInstruction(GuacamoleInstruction instruction)
+            throws GuacamoleException {
+
+        if (allowed.contains(instruction.getOpcode()))
+            writer.writeInstruction(instruction);
+
+    }
+
+}
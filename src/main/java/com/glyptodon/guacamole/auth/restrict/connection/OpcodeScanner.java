@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.OpcodeCounter;
+
+/**
+ * Scanner which records each instruction within a stream of Guacamole
+ * protocol data against one or two OpcodeCounters. Only the length prefixes
+ * of elements and the characters of each opcode are examined. The values of
+ * all other elements are skipped using their declared lengths, such that the
+ * cost of scanning is proportional to the number of elements rather than the
+ * number of characters. Instructions may be split across any number of
+ * chunks. Malformed data is not rejected, as the scanner only observes the
+ * stream; scanning simply stops once malformed data is encountered.
+ *
+ * Counts are accumulated locally and added to the shared counters only once
+ * every FLUSH_INTERVAL instructions, or when flush() is invoked, such that
+ * the striped counters are not touched for every instruction. An
+ * OpcodeScanner is not threadsafe and must only be used by one thread at a
+ * time. Subclasses may observe each scanned instruction without counting it
+ * by overriding record() and flush().
+ */
+public class OpcodeScanner {
+
+    /**
+     * The opcodes of the Guacamole protocol, in the order defined by
+     * OpcodeCounter.OPCODES, such that the bit of each opcode within a match
+     * mask is its counter index.
+     */
+    private static final OpcodeSet PROTOCOL_OPCODES = new OpcodeSet(OpcodeCounter.OPCODES);
+
+    /**
+     * The number of instructions which may be recorded locally before the
+     * local counts are added to the shared counters.
+     */
+    private static final int FLUSH_INTERVAL = 64;
+
+    /**
+     * Parser state in which the length prefix of an element is being read.
+     */
+    private static final int LENGTH = 0;
+
+    /**
+     * Parser state in which the value of an element is being read.
+     */
+    private static final int VALUE = 1;
+
+    /**
+     * Parser state in which the terminator of an element (either ',' or ';')
+     * is expected.
+     */
+    private static final int TERMINATOR = 2;
+
+    /**
+     * Parser state entered once malformed data has been encountered.
+     */
+    private static final int MALFORMED = 3;
+
+    /**
+     * The counter to record each instruction against.
+     */
+    private final OpcodeCounter counter;
+
+    /**
+     * An additional counter to record each instruction against, or null if
+     * instructions are recorded only against the first counter.
+     */
+    private final OpcodeCounter secondCounter;
+
+    /**
+     * The number of instructions recorded locally since the last flush,
+     * indexed by opcode.
+     */
+    private final long[] counts = new long[OpcodeCounter.OTHER_INDEX + 1];
+
+    /**
+     * The total length of the instructions recorded locally since the last
+     * flush, indexed by opcode.
+     */
+    private final long[] characters = new long[OpcodeCounter.OTHER_INDEX + 1];
+
+    /**
+     * The number of instructions recorded locally since the last flush.
+     */
+    private int unflushed;
+
+    /**
+     * The current parser state: LENGTH, VALUE, TERMINATOR, or MALFORMED.
+     */
+    private int state = LENGTH;
+
+    /**
+     * Whether the opcode of the current instruction has been fully read.
+     */
+    private boolean opcodeRead;
+
+    /**
+     * The length of the element currently being read, as parsed so far from
+     * its length prefix.
+     */
+    private long length;
+
+    /**
+     * The number of characters remaining in the value of the element
+     * currently being read.
+     */
+    private long remaining;
+
+    /**
+     * The number of characters of the opcode received so far.
+     */
+    private int opcodePosition;
+
+    /**
+     * The mask of protocol opcodes which the opcode of the current
+     * instruction may still match.
+     */
+    private long candidates;
+
+    /**
+     * The number of characters of the current instruction which were
+     * received within previous chunks.
+     */
+    private long instructionLength;
+
+    /**
+     * Creates a new OpcodeScanner which records each scanned instruction
+     * against the given counters.
+     *
+     * @param counter
+     *     The counter to record each instruction against.
+     *
+     * @param secondCounter
+     *     An additional counter to record each instruction against, or null
+     *     if instructions should be recorded only against the first counter.
+     */
+    public OpcodeScanner(OpcodeCounter counter, OpcodeCounter secondCounter) {
+        this.counter = counter;
+        this.secondCounter = secondCounter;
+    }
+
+    /**
+     * Creates a new OpcodeScanner which records nothing itself. This
+     * constructor is intended only for subclasses which override both
+     * record() and flush().
+     */
+    protected OpcodeScanner() {
+        this(null, null);
+    }
+
+    /**
+     * Records a single instruction having the given opcode and length,
+     * flushing the local counts if FLUSH_INTERVAL instructions have been
+     * recorded since the last flush.
+     *
+     * @param opcode
+     *     The index of the opcode of the instruction, as returned by
+     *     OpcodeCounter.indexOf().
+     *
+     * @param length
+     *     The length of the instruction, in characters, including its
+     *     terminator.
+     */
+    public void record(int opcode, long length) {
+
+        counts[opcode]++;
+        characters[opcode] += length;
+
+        if (++unflushed >= FLUSH_INTERVAL)
+            flush();
+
+    }
+
+    /**
+     * Adds all locally accumulated counts to the shared counters.
+     */
+    public void flush() {
+
+        for (int i = 0; i < counts.length; i++) {
+
+            long count = counts[i];
+            if (count == 0)
+                continue;
+
+            counter.add(i, count, characters[i]);
+            if (secondCounter != null)
+                secondCounter.add(i, count, characters[i]);
+
+            counts[i] = 0;
+            characters[i] = 0;
+
+        }
+
+        unflushed = 0;
+
+    }
+
+    /**
+     * Scans the given chunk of Guacamole protocol data, recording each
+     * instruction completed within the chunk.
+     *
+     * @param chunk
+     *     The array containing the data to scan.
+     *
+     * @param off
+     *     The offset of the first character to scan.
+     *
+     * @param len
+     *     The number of characters to scan.
+     */
+    public void scan(char[] chunk, int off, int len) {
+
+        // Work on local copies of the parser state, writing them back only
+        // once the chunk is consumed
+        int state = this.state;
+        boolean opcodeRead = this.opcodeRead;
+        long length = this.length;
+        long remaining = this.remaining;
+        int opcodePosition = this.opcodePosition;
+        long candidates = this.candidates;
+
+        int end = off + len;
+        int instructionStart = off;
+
+        int i = off;
+        scan: while (i < end) {
+
+            char c = chunk[i];
+            switch (state) {
+
+                // Read digits of element length prefix
+                case LENGTH:
+
+                    i++;
+                    if (c >= '0' && c <= '9') {
+                        length = length * 10 + (c - '0');
+                        if (length > Integer.MAX_VALUE)
+                            state = MALFORMED;
+                    }
+
+                    else if (c == '.') {
+                        remaining = length;
+                        state = remaining > 0 ? VALUE : TERMINATOR;
+                        if (!opcodeRead) {
+                            candidates = PROTOCOL_OPCODES.start(length);
+                            opcodePosition = 0;
+                        }
+                    }
+
+                    else
+                        state = MALFORMED;
+
+                    break;
+
+                // Match opcode characters, skipping the values of all other
+                // elements entirely
+                case VALUE:
+
+                    if (!opcodeRead) {
+                        candidates = PROTOCOL_OPCODES.match(candidates, opcodePosition++, c);
+                        remaining--;
+                        i++;
+                    }
+                    else {
+                        long skipped = Math.min(remaining, end - i);
+                        remaining -= skipped;
+                        i += (int) skipped;
+                    }
+
+                    if (remaining == 0)
+                        state = TERMINATOR;
+
+                    break;
+
+                // Read element terminator
+                case TERMINATOR:
+
+                    i++;
+                    if (c == ',') {
+                        opcodeRead = true;
+                        length = 0;
+                        state = LENGTH;
+                    }
+
+                    else if (c == ';') {
+
+                        record(candidates != 0
+                                ? Long.numberOfTrailingZeros(candidates)
+                                : OpcodeCounter.OTHER_INDEX,
+                                instructionLength + i - instructionStart);
+
+                        instructionLength = 0;
+                        instructionStart = i;
+                        opcodeRead = false;
+                        length = 0;
+                        state = LENGTH;
+
+                    }
+
+                    else
+                        state = MALFORMED;
+
+                    break;
+
+                // Ignore everything after malformed data
+                default:
+                    break scan;
+
+            }
+
+        }
+
+        instructionLength += end - instructionStart;
+
+        this.state = state;
+        this.opcodeRead = opcodeRead;
+        this.length = length;
+        this.remaining = remaining;
+        this.opcodePosition = opcodePosition;
+        this.candidates = candidates;
+
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable set of instruction opcodes which can be matched incrementally,
+ * one character at a time, against opcodes that have not yet been fully
+ * received. Each opcode within the set is assigned a bit within a 64-bit
+ * mask, and matching an opcode consists of narrowing that mask as each
+ * character arrives. The set is compiled upon creation into dispatch tables
+ * indexed by opcode length and by character position, such that narrowing
+ * the mask for each character is a single table lookup. Matching never
+ * allocates.
+ *
+ * OpcodeSets obtained through compile() or parse() are shared, such that
+ * each distinct set of opcodes is compiled only once regardless of the
+ * number of tunnels using it. Lists of opcodes defined within
+ * guacamole.properties are compiled once with precompile() when the
+ * configuration is loaded. Lists of opcodes which originate elsewhere, such
+ * as from user attributes, are compiled on demand and cached only up to
+ * CACHE_SIZE distinct sets, as such values are not under the control of the
+ * administrator and cannot be assumed to be few.
+ */
+public class OpcodeSet {
+
+    /**
+     * The maximum number of opcodes that may be stored within a single
+     * OpcodeSet.
+     */
+    public static final int MAX_SIZE = Long.SIZE;
+
+    /**
+     * The number of distinct characters covered by the dispatch table for
+     * each character position. Opcodes consisting of characters outside this
+     * range are matched by comparing against each candidate opcode.
+     */
+    private static final int DISPATCH_CHARACTERS = 128;
+
+    /**
+     * The maximum number of OpcodeSets compiled on demand which may be cached
+     * at any one time, in addition to those compiled with precompile().
+     */
+    public static final int CACHE_SIZE = 1024;
+
+    /**
+     * All OpcodeSets created through precompile(), keyed by the
+     * space-separated lists of opcodes they were parsed from. As these lists
+     * are defined only within guacamole.properties, this map is not bounded.
+     */
+    private static final ConcurrentMap<String, OpcodeSet> PRECOMPILED = new ConcurrentHashMap<>();
+
+    /**
+     * Recently-used OpcodeSets created through compile(), keyed by their
+     * contents.
+     */
+    private static final Cache<Set<String>, OpcodeSet> COMPILED = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE).build();
+
+    /**
+     * Recently-used OpcodeSets created through parse() from lists that were
+     * not precompiled, keyed by the space-separated lists of opcodes they
+     * were parsed from.
+     */
+    private static final Cache<String, OpcodeSet> PARSED = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE).build();
+
+    /**
+     * All opcodes within this set, as strings.
+     */
+    private final Set<String> opcodes;
+
+    /**
+     * All opcodes within this set, as character arrays. The opcode at index N
+     * corresponds to bit N of each mask.
+     */
+    private final char[][] characters;
+
+    /**
+     * The length of the longest opcode within this set.
+     */
+    private final int maxLength;
+
+    /**
+     * The mask of all opcodes having each possible length, indexed by length.
+     */
+    private final long[] lengthMasks;
+
+    /**
+     * The mask of all opcodes having each possible character at each position,
+     * indexed first by position and then by character.
+     */
+    private final long[][] characterMasks;
+
+    /**
+     * Creates a new OpcodeSet containing the given opcodes.
+     *
+     * @param opcodes
+     *     The opcodes to include within the set.
+     *
+     * @throws IllegalArgumentException
+     *     If more than MAX_SIZE distinct opcodes are given.
+     */
+    public OpcodeSet(Collection<String> opcodes) {
+
+        Set<String> distinct = new LinkedHashSet<>(opcodes);
+        if (distinct.size() > MAX_SIZE)
+            throw new IllegalArgumentException("An OpcodeSet may contain no "
+                    + "more than " + MAX_SIZE + " opcodes.");
+
+        this.opcodes = Collections.unmodifiableSet(distinct);
+        this.characters = new char[distinct.size()][];
+
+        int index = 0;
+        int longest = 0;
+        for (String opcode : distinct) {
+            characters[index++] = opcode.toCharArray();
+            longest = Math.max(longest, opcode.length());
+        }
+
+        this.maxLength = longest;
+        this.lengthMasks = new long[longest + 1];
+        this.characterMasks = new long[longest][DISPATCH_CHARACTERS];
+
+        // Compile dispatch tables
+        for (int i = 0; i < characters.length; i++) {
+
+            char[] opcode = characters[i];
+            lengthMasks[opcode.length] |= 1L << i;
+
+            for (int position = 0; position < opcode.length; position++) {
+                char c = opcode[position];
+                if (c < DISPATCH_CHARACTERS)
+                    characterMasks[position][c] |= 1L << i;
+            }
+
+        }
+
+    }
+
+    /**
+     * Creates a new OpcodeSet containing the given opcodes.
+     *
+     * @param opcodes
+     *     The opcodes to include within the set.
+     *
+     * @throws IllegalArgumentException
+     *     If more than MAX_SIZE distinct opcodes are given.
+     */
+    public OpcodeSet(String... opcodes) {
+        this(Arrays.asList(opcodes));
+    }
+
+    /**
+     * Returns the shared OpcodeSet containing exactly the given opcodes,
+     * compiling that set if it has not yet been compiled.
+     *
+     * @param opcodes
+     *     The opcodes to include within the set.
+     *
+     * @return
+     *     The shared OpcodeSet containing exactly the given opcodes.
+     *
+     * @throws IllegalArgumentException
+     *     If more than MAX_SIZE distinct opcodes are given.
+     */
+    public static OpcodeSet compile(Collection<String> opcodes) {
+        return COMPILED.asMap().computeIfAbsent(new HashSet<>(opcodes), OpcodeSet::new);
+    }
+
+    /**
+     * Compiles the OpcodeSet containing exactly the opcodes listed within the
+     * given space-separated list, such that later calls to parse() for the
+     * same list return that set without consulting any bounded cache. This
+     * function should be used only for lists defined within
+     * guacamole.properties.
+     *
+     * @param value
+     *     A space-separated list of opcodes.
+     *
+     * @return
+     *     The shared OpcodeSet containing exactly the given opcodes.
+     *
+     * @throws IllegalArgumentException
+     *     If more than MAX_SIZE distinct opcodes are given.
+     */
+    public static OpcodeSet precompile(String value) {
+        return PRECOMPILED.computeIfAbsent(value,
+                list -> new OpcodeSet(Restriction.parseList(list)));
+    }
+
+    /**
+     * Returns the shared OpcodeSet containing exactly the opcodes listed
+     * within the given space-separated list, compiling that set if it has not
+     * yet been compiled.
+     *
+     * @param value
+     *     A space-separated list of opcodes.
+     *
+     * @return
+     *     The shared OpcodeSet containing exactly the given opcodes.
+     *
+     * @throws IllegalArgumentException
+     *     If more than MAX_SIZE distinct opcodes are given.
+     */
+    public static OpcodeSet parse(String value) {
+
+        OpcodeSet precompiled = PRECOMPILED.get(value);
+        if (precompiled != null)
+            return precompiled;
+
+        return PARSED.asMap().computeIfAbsent(value,
+                list -> compile(Restriction.parseList(list)));
+
+    }
+
+    /**
+     * Returns the shared OpcodeSet containing only those opcodes present
+     * within both this set and the given set.
+     *
+     * @param other
+     *     The set to intersect with this set.
+     *
+     * @return
+     *     The shared OpcodeSet containing the intersection of this set and
+     *     the given set.
+     */
+    public OpcodeSet intersect(OpcodeSet other) {
+        Set<String> intersection = new HashSet<>(opcodes);
+        intersection.retainAll(other.opcodes);
+        return compile(intersection);
+    }
+
+    /**
+     * Returns whether the given opcode is within this set.
+     *
+     * @param opcode
+     *     The opcode to check.
+     *
+     * @return
+     *     true if the given opcode is within this set, false otherwise.
+     */
+    public boolean contains(String opcode) {
+        return opcodes.contains(opcode);
+    }
+
+    /**
+     * Returns all opcodes within this set.
+     *
+     * @return
+     *     An unmodifiable set of all opcodes within this set.
+     */
+    public Set<String> getOpcodes() {
+        return opcodes;
+    }
+
+    /**
+     * Returns the mask of all opcodes within this set having the given
+     * length. This mask is the starting point for matching an opcode whose
+     * length prefix has been received.
+     *
+     * @param length
+     *     The length of the opcode being matched, as declared by the length
+     *     prefix of the opcode element.
+     *
+     * @return
+     *     A mask having one bit set for each opcode of the given length.
+     */
+    public long start(long length) {
+        return length <= maxLength ? lengthMasks[(int) length] : 0;
+    }
+
+    /**
+     * Narrows the given mask to only those opcodes having the given
+     * character at the given position.
+     *
+     * @param mask
+     *     The mask produced by start() or a previous call to match().
+     *
+     * @param position
+     *     The index of the given character within the opcode being matched.
+     *
+     * @param c
+     *     The character received.
+     *
+     * @return
+     *     The narrowed mask. Once all characters of the opcode have been
+     *     received, the opcode is within this set if and only if this mask
+     *     is non-zero.
+     */
+    public long match(long mask, int position, char c) {
+
+        if (position >= maxLength)
+            return 0;
+
+        // Most opcodes are plain ASCII and can be matched by table lookup
+        if (c < DISPATCH_CHARACTERS)
+            return mask & characterMasks[position][c];
+
+        // Compare other characters against each remaining candidate
+        long remaining = mask;
+        while (remaining != 0) {
+
+            int i = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+
+            char[] opcode = characters[i];
+            if (position >= opcode.length || opcode[position] != c)
+                mask &= ~(1L << i);
+
+        }
+
+        return mask;
+
+    }
+
+    @Override
+    public String toString() {
+        return opcodes.toString();
+    }
+
+}
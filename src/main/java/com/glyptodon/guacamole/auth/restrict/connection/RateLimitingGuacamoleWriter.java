@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.InputStatistics;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+
+/**
+ * GuacamoleWriter implementation which limits the rate at which "key" and
+ * "mouse" instructions are forwarded using a token bucket. The bucket holds
+ * up to a given number of instructions and refills at a given rate. Rather
+ * than storing a token count refilled by a timer, the bucket is represented
+ * by the time at which it will next be full, computed lazily from
+ * System.nanoTime() as each instruction arrives. Once the bucket is empty,
+ * key presses and mouse motion are dropped. Key releases and changes in
+ * mouse button state are always forwarded, such that keys and buttons are
+ * never left held down on the remote desktop.
+ */
+public class RateLimitingGuacamoleWriter extends InstructionBufferingGuacamoleWriter {
+
+    /**
+     * The instruction type assigned to "key" instructions.
+     */
+    private static final int KEY = 0;
+
+    /**
+     * The instruction type assigned to "mouse" instructions.
+     */
+    private static final int MOUSE = 1;
+
+    /**
+     * The index of the element of the "key" instruction denoting whether the
+     * key is pressed.
+     */
+    private static final int PRESSED_ELEMENT = 2;
+
+    /**
+     * The index of the element of the "mouse" instruction containing the
+     * button mask.
+     */
+    private static final int MASK_ELEMENT = 3;
+
+    /**
+     * The number of nanoseconds that the bucket takes to refill by one
+     * instruction.
+     */
+    private final long interval;
+
+    /**
+     * The number of nanoseconds that the bucket takes to refill completely,
+     * less one interval.
+     */
+    private final long tolerance;
+
+    /**
+     * The statistics to update as instructions are dropped.
+     */
+    private final InputStatistics statistics;
+
+    /**
+     * The value of System.nanoTime() at which the bucket will be full, if no
+     * further instructions are forwarded. Each forwarded instruction pushes
+     * this time forward by one interval.
+     */
+    private long fullAt = System.nanoTime();
+
+    /**
+     * Whether any "mouse" instruction has yet been forwarded.
+     */
+    private boolean mouseForwarded;
+
+    /**
+     * The button mask of the "mouse" instruction most recently forwarded.
+     */
+    private int lastMask;
+
+    /**
+     * Creates a new RateLimitingGuacamoleWriter which forwards instructions
+     * to the given writer, limiting "key" and "mouse" instructions to the
+     * given rate.
+     *
+     * @param writer
+     *     The GuacamoleWriter to forward instructions to.
+     *
+     * @param rate
+     *     The number of instructions per second that the bucket refills by.
+     *
+     * @param burst
+     *     The maximum number of instructions that the bucket may hold.
+     *
+     * @param statistics
+     *     The statistics to update as instructions are dropped.
+     */
+    public RateLimitingGuacamoleWriter(GuacamoleWriter writer, int rate,
+            int burst, InputStatistics statistics) {
+        super(writer);
+        this.interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+        this.tolerance = interval * (Math.max(1, burst) - 1);
+        this.statistics = statistics;
+    }
+
+    @Override
+    protected int classify(char[] opcode, int length) {
+
+        if (length == 3 && opcode[0] == 'k' && opcode[1] == 'e'
+                && opcode[2] == 'y')
+            return KEY;
+
+        if (length == 5 && opcode[0] == 'm' && opcode[1] == 'o'
+                && opcode[2] == 'u' && opcode[3] == 's' && opcode[4] == 'e')
+            return MOUSE;
+
+        return NOT_BUFFERED;
+
+    }
+
+    /**
+     * Returns whether the given instruction must be forwarded regardless of
+     * the state of the bucket, as dropping it could leave a key or button
+     * held down.
+     *
+     * @param type
+     *     The type of the instruction, as returned by classify().
+     *
+     * @return
+     *     true if the instruction must be forwarded, false if it may be
+     *     dropped.
+     */
+    private boolean isRequired(int type) {
+
+        // Only key presses may be dropped
+        if (type == KEY)
+            return getNumericElement(PRESSED_ELEMENT) != 1;
+
+        // Only motion which does not change button state may be dropped
+        int mask = getNumericElement(MASK_ELEMENT);
+        return !mouseForwarded || mask == NOT_NUMERIC || mask != lastMask;
+
+    }
+
+    @Override
+    protected void handleInstruction(int type, char[] instruction, int length)
+            throws GuacamoleException {
+
+        long now = System.nanoTime();
+        long start = Math.max(fullAt, now);
+
+        // Drop the instruction if the bucket is empty and doing so is safe
+        if (start - tolerance > now && !isRequired(type)) {
+            statistics.inputThrottled();
+            return;
+        }
+
+        if (type == MOUSE) {
+            mouseForwarded = true;
+            lastMask = getNumericElement(MASK_ELEMENT);
+        }
+
+        // Take one instruction from the bucket
+        fullAt = start + interval;
+        writer.write(instruction, 0, length);
+
+    }
+
+}
@@ -22,30 +22,31 @@
 
 package com.glyptodon.guacamole.auth.restrict.connection;
 
-import java.util.Set;
 import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.metrics.InputStatistics;
+import com.glyptodon.guacamole.auth.restrict.metrics.TunnelCounters;
 import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.StringJoiner;
 import org.apache.guacamole.io.GuacamoleReader;
 import org.apache.guacamole.io.GuacamoleWriter;
-import org.apache.guacamole.net.DelegatingGuacamoleTunnel;
 import org.apache.guacamole.net.GuacamoleTunnel;
-import org.apache.guacamole.protocol.FilteredGuacamoleWriter;
-import org.apache.guacamole.protocol.GuacamoleInstruction;
 
 /**
  * GuacamoleTunnel implementation which enforces the restrictions affecting
  * the user accessing the tunnel.
  */
-public class RestrictedExternalTunnel extends DelegatingGuacamoleTunnel {
+public class RestrictedExternalTunnel extends LeasedGuacamoleTunnel {
 
     /**
      * The set of opcodes for all instructions which should be considered safe
-     * to transmit, even for users that are restricted to read-only access.
+     * to transmit, even for users that are restricted to read-only access,
+     * unless overridden within guacamole.properties.
      */
-    private final Set<String> OPCODE_WHITELIST = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+    public static final OpcodeSet OPCODE_WHITELIST = OpcodeSet.compile(Arrays.asList(
 
         // The "ack" instruction is required for receipt of streams, including
         // image streams (critical for rendering) and audio. It does not allow
@@ -70,12 +71,70 @@ public class RestrictedExternalTunnel extends DelegatingGuacamoleTunnel {
         // to client responsiveness.
         "sync"
 
-    )));
+    ));
+
+    /**
+     * All restrictions which alter the data passing through a tunnel. The
+     * restriction class of a tunnel is the combination of these restrictions
+     * which apply to its user.
+     */
+    private static final Set<Restriction> DATA_RESTRICTIONS = Collections.unmodifiableSet(EnumSet.of(
+        Restriction.FORCE_READ_ONLY,
+        Restriction.ALLOWED_OPCODES,
+        Restriction.MOUSE_COALESCE_WINDOW,
+        Restriction.INPUT_RATE,
+        Restriction.DROP_AUDIO
+    ));
+
+    /**
+     * The name of the restriction class of tunnels whose data is not altered
+     * by any restriction.
+     */
+    public static final String UNRESTRICTED_CLASS = "none";
+
+    /**
+     * The opcodes of all instructions that the user accessing this tunnel may
+     * send, or null if the user may send any instruction.
+     */
+    private final OpcodeSet allowedOpcodes;
+
+    /**
+     * The length of the window within which mouse motion sent by the user
+     * accessing this tunnel is coalesced, in milliseconds, or zero if mouse
+     * motion is not coalesced.
+     */
+    private final int mouseCoalesceWindow;
+
+    /**
+     * The number of "key" and "mouse" instructions per second that the user
+     * accessing this tunnel may send, or zero if input is not rate limited.
+     */
+    private final int inputRate;
+
+    /**
+     * The number of "key" and "mouse" instructions that the user accessing
+     * this tunnel may send in a single burst.
+     */
+    private final int inputBurst;
+
+    /**
+     * Whether audio streams should be removed from the data read from this
+     * tunnel.
+     */
+    private final boolean dropAudio;
 
     /**
-     * The set of restrictions affecting the user accessing this tunnel.
+     * Whether the input sent by the user accessing this tunnel should be
+     * recorded against the lease of this tunnel, such that the tunnel may be
+     * closed once that user is idle.
      */
-    private final Set<Restriction> restrictions;
+    private final boolean trackInput;
+
+    /**
+     * The statistics to update as the input sent through this tunnel is
+     * altered.
+     */
+    private final InputStatistics statistics;
 
     /**
      * Creates a new RestrictedTunnel which wraps the given tunnel, enforcing
@@ -87,51 +146,159 @@ public class RestrictedExternalTunnel extends DelegatingGuacamoleTunnel {
      *
      * @param tunnel
      *     The tunnel that the user is attempting to access.
+     *
+     * @param lease
+     *     The lease tracking usage of the connection underlying the given
+     *     tunnel. The lease is touched whenever the tunnel is read or written
+     *     and is released when this tunnel is closed.
+     *
+     * @param allowedOpcodes
+     *     The opcodes of all instructions that the user may send, or null if
+     *     the user may send any instruction.
+     *
+     * @param counters
+     *     The counters to record the instructions passing through this
+     *     tunnel against, or null if instructions should not be recorded.
      */
     public RestrictedExternalTunnel(RestrictedExternalUserContext userContext,
-            GuacamoleTunnel tunnel) {
-        super(tunnel);
-        this.restrictions = userContext.getRestrictions();
+            GuacamoleTunnel tunnel, ConnectionLease lease,
+            OpcodeSet allowedOpcodes, TunnelCounters counters) {
+        super(tunnel, lease, counters);
+        this.allowedOpcodes = allowedOpcodes;
+        this.mouseCoalesceWindow = Restriction.MOUSE_COALESCE_WINDOW.getNumericValue(userContext, 0);
+        this.inputRate = Restriction.INPUT_RATE.getNumericValue(userContext, 0);
+        this.inputBurst = Restriction.INPUT_BURST.getNumericValue(userContext, inputRate);
+        this.dropAudio = userContext.getRestrictions().contains(Restriction.DROP_AUDIO);
+        this.trackInput = userContext.getRestrictions().contains(Restriction.IDLE_TIMEOUT);
+        this.statistics = userContext.getConnectionManager().getInputStatistics();
     }
 
     /**
-     * Returns whether the user accessing this tunnel can write the given
-     * instruction.
+     * Wraps the given tunnel such that the restrictions that apply to the
+     * user associated with the given UserContext are enforced and usage is
+     * tracked through the given lease. If none of those restrictions affect
+     * the data passing through the tunnel, a LeasedGuacamoleTunnel which
+     * passes all data through untouched is returned. Otherwise, a
+     * RestrictedExternalTunnel is returned.
      *
-     * @param instruction
-     *     The instruction received from the user accessing this tunnel.
+     * @param userContext
+     *     The UserContext of the user accessing the tunnel.
+     *
+     * @param tunnel
+     *     The tunnel that the user is attempting to access.
+     *
+     * @param lease
+     *     The lease tracking usage of the connection underlying the given
+     *     tunnel.
+     *
+     * @param allowedOpcodes
+     *     The opcodes of all instructions that the user may send, or null if
+     *     the user may send any instruction.
+     *
+     * @param counters
+     *     The counters to record the instructions passing through the tunnel
+     *     against, or null if instructions should not be recorded.
      *
      * @return
-     *     true if the user has permission to write the given instruction,
-     *     false if some restriction prohibits the instruction from being
-     *     written.
+     *     A tunnel which wraps the given tunnel, enforcing any applicable
+     *     restrictions.
      */
-    private boolean canWrite(GuacamoleInstruction instruction) {
+    public static LeasedGuacamoleTunnel wrap(RestrictedExternalUserContext userContext,
+            GuacamoleTunnel tunnel, ConnectionLease lease,
+            OpcodeSet allowedOpcodes, TunnelCounters counters) {
+
+        // Alter or observe data only if the user is subject to an opcode
+        // policy, mouse coalescing, input rate limiting, dropped audio, or an
+        // idle timeout
+        Set<Restriction> restrictions = userContext.getRestrictions();
+        if (allowedOpcodes != null
+                || restrictions.contains(Restriction.MOUSE_COALESCE_WINDOW)
+                || restrictions.contains(Restriction.INPUT_RATE)
+                || restrictions.contains(Restriction.DROP_AUDIO)
+                || restrictions.contains(Restriction.IDLE_TIMEOUT))
+            return new RestrictedExternalTunnel(userContext, tunnel, lease,
+                    allowedOpcodes, counters);
 
-        // Always allow universally whitelisted instructions
-        if (OPCODE_WHITELIST.contains(instruction.getOpcode()))
-            return true;
+        return new LeasedGuacamoleTunnel(tunnel, lease, counters);
+
+    }
+
+    /**
+     * Returns the name of the restriction class of tunnels accessed by the
+     * user associated with the given UserContext. The name lists each
+     * restriction altering the data passing through the tunnel, separated by
+     * "+", or is UNRESTRICTED_CLASS if no such restrictions apply.
+     *
+     * @param userContext
+     *     The UserContext of the user accessing the tunnel.
+     *
+     * @return
+     *     The name of the restriction class of tunnels accessed by the given
+     *     user.
+     */
+    public static String getRestrictionClass(RestrictedExternalUserContext userContext) {
+
+        StringJoiner restrictionClass = new StringJoiner("+");
+        restrictionClass.setEmptyValue(UNRESTRICTED_CLASS);
+
+        for (Restriction restriction : DATA_RESTRICTIONS) {
+            if (userContext.getRestrictions().contains(restriction))
+                restrictionClass.add(restriction.name());
+        }
+
+        return restrictionClass.toString();
 
-        // Otherwise, allow instructions to pass through only if the user is
-        // not subject to read-only restrictions
-        return !restrictions.contains(Restriction.FORCE_READ_ONLY);
-        
     }
 
     @Override
-    public GuacamoleWriter acquireWriter() {
+    protected GuacamoleReader decorateReader(GuacamoleReader reader) {
+
+        // Record all instructions sent by the connection
+        reader = super.decorateReader(reader);
 
-        // Filter written instructions according to any active restrictions
-        return new FilteredGuacamoleWriter(super.acquireWriter(),
-                instruction -> canWrite(instruction) ? instruction : null);
+        // Refuse audio streams directly through the wrapped tunnel, as the
+        // "ack" is not sent by the user and must not be subject to the
+        // user's restrictions
+        if (dropAudio)
+            reader = new AudioFilteringGuacamoleReader(reader, getWrappedTunnel());
+
+        return reader;
 
     }
 
     @Override
-    public GuacamoleReader acquireReader() {
+    protected GuacamoleWriter decorateWriter(GuacamoleWriter writer) {
+
+        // Record instructions which survive all restrictions as forwarded
+        TunnelCounters counters = getCounters();
+        if (counters != null)
+            writer = instrument(writer, counters.getForwarded(), null,
+                    counters.getWriteLatencies());
+
+        // Drop input beyond the user's rate limit
+        if (inputRate > 0)
+            writer = new RateLimitingGuacamoleWriter(writer, inputRate, inputBurst, statistics);
+
+        // Coalesce mouse motion before it counts toward the rate limit
+        if (mouseCoalesceWindow > 0)
+            writer = new MouseCoalescingGuacamoleWriter(writer, mouseCoalesceWindow,
+                    statistics, getWrappedTunnel(), getLease().getTimer());
+
+        // Filter written instructions, allowing only instructions permitted
+        // by the user's opcode policy to pass through
+        if (allowedOpcodes != null)
+            writer = new OpcodeFilteringGuacamoleWriter(writer, allowedOpcodes);
+
+        // Record all instructions written by the user as received
+        if (counters != null)
+            writer = instrument(writer, counters.getReceived(), null, null);
+
+        // Record all input sent by the user, including input later dropped,
+        // as activity
+        if (trackInput)
+            writer = new InputTrackingGuacamoleWriter(writer, getLease());
 
-        // Allow receipt of any instructions sent by guacd
-        return super.acquireReader();
+        return writer;
 
     }
 
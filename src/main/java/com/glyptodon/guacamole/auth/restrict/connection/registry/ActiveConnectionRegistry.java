@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import java.util.Map;
+import org.apache.guacamole.GuacamoleException;
+
+/**
+ * Registry of the number of active connections to each connection or
+ * connection group, used by ConnectionManager to enforce concurrent access
+ * restrictions. Implementations may track usage within a single JVM or share
+ * usage across multiple Guacamole instances. All functions of an
+ * ActiveConnectionRegistry must be safe to call from any number of threads
+ * concurrently.
+ */
+public interface ActiveConnectionRegistry {
+
+    /**
+     * Attempts to mark the connectable object associated with the given
+     * identifier as in use by one additional user. If the object is already
+     * in use by the given number of users or more, this operation fails
+     * without affecting the recorded usage of the object. If successful, the
+     * object must eventually be unmarked as in use through a call to
+     * release().
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object being connected
+     *     to.
+     *
+     * @param limit
+     *     The maximum number of concurrent users of the object having the
+     *     given identifier, including the user attempting to connect.
+     *
+     * @return
+     *     true if the object having the given identifier was successfully
+     *     marked as in use, false if the object is already in use by the
+     *     maximum number of users allowed.
+     *
+     * @throws GuacamoleException
+     *     If the usage of the object cannot be determined or updated due to
+     *     an error.
+     */
+    boolean acquire(GlobalConnectionIdentifier identifier, int limit)
+            throws GuacamoleException;
+
+    /**
+     * Unmarks the connectable object associated with the given identifier as
+     * in use by one user. This function MUST be called exactly once for every
+     * successful call to acquire() and MUST NOT be called for any acquire()
+     * call that failed.
+     *
+     * @param identifier
+     *     The identifier which uniquely identifies the object which is no
+     *     longer in use.
+     *
+     * @throws GuacamoleException
+     *     If the usage of the object cannot be updated due to an error.
+     */
+    void release(GlobalConnectionIdentifier identifier)
+            throws GuacamoleException;
+
+    /**
+     * Returns the number of slots of each connectable object which were
+     * acquired through this registry and have not yet been released. Usage
+     * recorded by other Guacamole instances is not included. This function
+     * is intended for monitoring, and must read the counters used by
+     * acquire() and release() without blocking either.
+     *
+     * @return
+     *     A new map of the identifiers of all objects in use through this
+     *     registry to the number of slots of each object currently held.
+     */
+    Map<GlobalConnectionIdentifier, Integer> getActiveConnections();
+
+    /**
+     * Releases any resources held by this registry, such as background
+     * threads. The registry must not be used after this function has been
+     * invoked.
+     */
+    void shutdown();
+
+}
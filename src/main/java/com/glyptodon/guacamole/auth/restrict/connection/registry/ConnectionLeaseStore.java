@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import java.util.Collection;
+import org.apache.guacamole.GuacamoleException;
+
+/**
+ * A store of connection leases that is shared by multiple Guacamole
+ * instances, such as a database or key/value store reachable by every node
+ * behind a load balancer. Each lease represents one user's use of a
+ * connectable object and expires unless renewed. Implementations must perform
+ * each function as a single atomic operation against the shared store, such
+ * that each call costs at most one round-trip.
+ *
+ * Implementations are loaded by SharedActiveConnectionRegistry by class name
+ * and must provide a public constructor that accepts no arguments.
+ */
+public interface ConnectionLeaseStore {
+
+    /**
+     * Atomically creates a new lease on the object having the given key if
+     * fewer than the given number of unexpired leases exist for that object.
+     *
+     * @param key
+     *     The key uniquely identifying the object being connected to across
+     *     all Guacamole instances.
+     *
+     * @param lease
+     *     The unique identifier to assign to the new lease.
+     *
+     * @param limit
+     *     The maximum number of unexpired leases that may exist for the
+     *     object, including the new lease.
+     *
+     * @param duration
+     *     The number of milliseconds until the new lease expires, unless
+     *     renewed.
+     *
+     * @return
+     *     true if the lease was created, false if the object already has the
+     *     maximum number of unexpired leases.
+     *
+     * @throws GuacamoleException
+     *     If the shared store cannot be reached or updated.
+     */
+    boolean acquire(String key, String lease, int limit, long duration)
+            throws GuacamoleException;
+
+    /**
+     * Renews all of the given leases, resetting their expiration such that
+     * they expire the given number of milliseconds from now. Leases which
+     * have already expired or been released are ignored.
+     *
+     * @param leases
+     *     The unique identifiers of all leases to renew.
+     *
+     * @param duration
+     *     The number of milliseconds until the renewed leases expire, unless
+     *     renewed again.
+     *
+     * @throws GuacamoleException
+     *     If the shared store cannot be reached or updated.
+     */
+    void renew(Collection<String> leases, long duration)
+            throws GuacamoleException;
+
+    /**
+     * Releases the given lease on the object having the given key. If the
+     * lease has already expired or been released, this function has no
+     * effect.
+     *
+     * @param key
+     *     The key uniquely identifying the object that was connected to.
+     *
+     * @param lease
+     *     The unique identifier of the lease to release.
+     *
+     * @throws GuacamoleException
+     *     If the shared store cannot be reached or updated.
+     */
+    void release(String key, String lease) throws GuacamoleException;
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ActiveConnectionRegistry implementation which tracks connection usage
+ * within the heap of the current JVM. Usage of each connectable object is
+ * tracked with an atomic counter, such that admission is decided by a single
+ * compare-and-swap. This is the default registry.
+ */
+public class InMemoryActiveConnectionRegistry implements ActiveConnectionRegistry {
+
+    /**
+     * The value stored within a usage counter once that counter has been
+     * retired and removed from the map of active connections. A retired
+     * counter may never again be incremented; any thread observing this value
+     * must retrieve a fresh counter from the map.
+     */
+    private static final int RETIRED = -1;
+
+    /**
+     * The number of active connections to each tracked connectable object.
+     * Each counter is updated atomically and is removed from this map (and
+     * retired) once the associated object is no longer in use.
+     */
+    private final ConcurrentMap<GlobalConnectionIdentifier, AtomicInteger> activeConnections = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean acquire(GlobalConnectionIdentifier identifier, int limit) {
+
+        for (;;) {
+
+            AtomicInteger counter = activeConnections.computeIfAbsent(identifier, key -> new AtomicInteger());
+
+            for (;;) {
+
+                int current = counter.get();
+
+                // Retry with a fresh counter if this counter was retired
+                // after being retrieved from the map
+                if (current == RETIRED)
+                    break;
+
+                // Fail acquisition if connecting would exceed the number of
+                // concurrent users allowed
+                if (current >= limit)
+                    return false;
+
+                // Acquisition succeeded - connection is allowed
+                if (counter.compareAndSet(current, current + 1))
+                    return true;
+
+            }
+
+        }
+
+    }
+
+    @Override
+    public void release(GlobalConnectionIdentifier identifier) {
+
+        AtomicInteger counter = activeConnections.get(identifier);
+        if (counter == null)
+            return;
+
+        // Retire the counter once the object is no longer in use, removing
+        // it from the map only if no other thread has since acquired a slot
+        if (counter.decrementAndGet() == 0 && counter.compareAndSet(0, RETIRED))
+            activeConnections.remove(identifier, counter);
+
+    }
+
+    @Override
+    public Map<GlobalConnectionIdentifier, Integer> getActiveConnections() {
+
+        Map<GlobalConnectionIdentifier, Integer> counts = new HashMap<>(activeConnections.size());
+        activeConnections.forEach((identifier, counter) -> {
+
+            // Skip counters which are unused or have been retired
+            int count = counter.get();
+            if (count > 0)
+                counts.put(identifier, count);
+
+        });
+
+        return counts;
+
+    }
+
+    @Override
+    public void shutdown() {
+        // Nothing to release
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.google.common.base.Ticker;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionLeaseStore implementation which stores all leases within the
+ * heap of the current JVM. This store is not actually shared between
+ * Guacamole instances and is intended only as a stand-in for a real shared
+ * store, such as when testing SharedActiveConnectionRegistry or when running
+ * a single Guacamole instance. The passage of time is dictated by a Ticker,
+ * such that expiration of leases may be simulated.
+ */
+public class LocalConnectionLeaseStore implements ConnectionLeaseStore {
+
+    /**
+     * The Ticker which provides the current time, in nanoseconds.
+     */
+    private final Ticker ticker;
+
+    /**
+     * The expiration time of each unexpired lease, in nanoseconds as
+     * dictated by the ticker, grouped by the key of the object leased.
+     */
+    private final Map<String, Map<String, Long>> leasesByKey = new HashMap<>();
+
+    /**
+     * The key of the object associated with each lease.
+     */
+    private final Map<String, String> keysByLease = new HashMap<>();
+
+    /**
+     * Creates a new LocalConnectionLeaseStore which uses the given Ticker to
+     * determine the current time.
+     *
+     * @param ticker
+     *     The Ticker to use to determine the current time.
+     */
+    public LocalConnectionLeaseStore(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * Creates a new LocalConnectionLeaseStore which uses the system clock to
+     * determine the current time.
+     */
+    public LocalConnectionLeaseStore() {
+        this(Ticker.systemTicker());
+    }
+
+    /**
+     * Returns the unexpired leases of the object having the given key,
+     * removing any leases which have expired.
+     *
+     * @param key
+     *     The key of the object whose leases should be retrieved.
+     *
+     * @return
+     *     A mutable map of all unexpired leases of the given object to their
+     *     expiration times.
+     */
+    private Map<String, Long> getLeases(String key) {
+
+        Map<String, Long> leases = leasesByKey.computeIfAbsent(key, k -> new HashMap<>());
+
+        long now = ticker.read();
+        Iterator<Map.Entry<String, Long>> entries = leases.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (entry.getValue() - now <= 0) {
+                keysByLease.remove(entry.getKey());
+                entries.remove();
+            }
+        }
+
+        return leases;
+
+    }
+
+    @Override
+    public synchronized boolean acquire(String key, String lease, int limit,
+            long duration) {
+
+        Map<String, Long> leases = getLeases(key);
+        if (leases.size() >= limit) {
+            if (leases.isEmpty())
+                leasesByKey.remove(key);
+            return false;
+        }
+
+        leases.put(lease, ticker.read() + TimeUnit.MILLISECONDS.toNanos(duration));
+        keysByLease.put(lease, key);
+        return true;
+
+    }
+
+    @Override
+    public synchronized void renew(Collection<String> leases, long duration) {
+
+        long expiration = ticker.read() + TimeUnit.MILLISECONDS.toNanos(duration);
+        for (String lease : leases) {
+
+            // Ignore leases which have been released
+            String key = keysByLease.get(lease);
+            if (key == null)
+                continue;
+
+            // Renew only leases which have not yet expired
+            Map<String, Long> keyLeases = getLeases(key);
+            keyLeases.replace(lease, expiration);
+
+            if (keyLeases.isEmpty())
+                leasesByKey.remove(key);
+
+        }
+
+    }
+
+    @Override
+    public synchronized void release(String key, String lease) {
+
+        Map<String, Long> leases = leasesByKey.get(key);
+        if (leases == null)
+            return;
+
+        leases.remove(lease);
+        keysByLease.remove(lease);
+
+        if (leases.isEmpty())
+            leasesByKey.remove(key);
+
+    }
+
+    /**
+     * Returns the number of unexpired leases of the object having the given
+     * key.
+     *
+     * @param key
+     *     The key of the object whose leases should be counted.
+     *
+     * @return
+     *     The number of unexpired leases of the given object.
+     */
+    public synchronized int getLeaseCount(String key) {
+        Map<String, Long> leases = getLeases(key);
+        if (leases.isEmpty())
+            leasesByKey.remove(key);
+        return leases.size();
+    }
+
+}
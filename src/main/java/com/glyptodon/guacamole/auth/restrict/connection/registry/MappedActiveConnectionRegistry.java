@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ActiveConnectionRegistry implementation which tracks connection usage
+ * within a memory-mapped file, allowing multiple Guacamole instances running
+ * on the same host to share concurrent access restrictions without any
+ * daemon or network round-trip. The file contains a fixed-size,
+ * open-addressing hash table keyed by a 64-bit hash of each
+ * GlobalConnectionIdentifier. Each table entry contains a separate usage
+ * counter for each process using the file, such that the usage recorded by a
+ * process which has crashed can be recognized and discarded.
+ *
+ * Each process occupies one slot within a process table at the start of the
+ * file and periodically stamps that slot with the current time. Counters of
+ * processes whose stamp is older than the lease duration are ignored and are
+ * cleared when their process slot is reclaimed. A process which finds that
+ * its own slot has gone stale (due to a long pause, for example) re-registers
+ * and restores the usage it still holds.
+ *
+ * As the target platform provides no portable atomic operations on mapped
+ * memory, the table is guarded by an exclusive lock on the file, held only
+ * for the duration of each table lookup.
+ */
+public class MappedActiveConnectionRegistry implements ActiveConnectionRegistry {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(MappedActiveConnectionRegistry.class);
+
+    /**
+     * Value identifying files created by this registry, stored at the start
+     * of the file.
+     */
+    private static final int MAGIC = 0x41524354;
+
+    /**
+     * The version of the file layout.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The number of bytes reserved for the file header, which contains the
+     * magic value, layout version, number of process slots, and number of
+     * table entries.
+     */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * The maximum number of processes that may use the same file
+     * concurrently.
+     */
+    public static final int PROCESS_SLOTS = 32;
+
+    /**
+     * The number of bytes occupied by each process slot: the owner token of
+     * the process (8 bytes) and the time the slot was last stamped, in
+     * milliseconds since the epoch (8 bytes).
+     */
+    private static final int PROCESS_SLOT_SIZE = 16;
+
+    /**
+     * The number of bytes occupied by each table entry: the hash of the
+     * identifier (8 bytes) followed by one usage counter for each process
+     * slot (4 bytes each).
+     */
+    private static final int ENTRY_SIZE = 8 + 4 * PROCESS_SLOTS;
+
+    /**
+     * The offset of the first table entry within the file.
+     */
+    private static final int TABLE_OFFSET = HEADER_SIZE + PROCESS_SLOTS * PROCESS_SLOT_SIZE;
+
+    /**
+     * The maximum number of entries in the table, such that the offset of
+     * every entry can be represented by an int.
+     */
+    public static final int MAX_ENTRIES = (Integer.MAX_VALUE - TABLE_OFFSET) / ENTRY_SIZE;
+
+    /**
+     * The maximum number of entries examined when locating an entry by
+     * linear probing. Entries are only ever created within this distance of
+     * their home position, such that lookups never need to look further, and
+     * the cost of each lookup is bounded even if the table is nearly full.
+     */
+    private static final int MAX_PROBE_LENGTH = 64;
+
+    /**
+     * The hash value denoting an empty table entry.
+     */
+    private static final long EMPTY = 0;
+
+    /**
+     * The channel of the mapped file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The mapped contents of the file.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * The number of entries in the table.
+     */
+    private final int entries;
+
+    /**
+     * The number of milliseconds after which a process slot that has not
+     * been stamped is considered stale.
+     */
+    private final long leaseDuration;
+
+    /**
+     * Lock serializing access to the file among threads of this JVM. File
+     * locks are held on behalf of the entire JVM and cannot be used for this
+     * purpose.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The token identifying this process within the process table. This
+     * value is never zero.
+     */
+    private final long owner = UUID.randomUUID().getMostSignificantBits() | 1;
+
+    /**
+     * The index of the process slot occupied by this process.
+     */
+    private int processSlot;
+
+    /**
+     * The number of active connections held by this process, by object. This
+     * is used to restore usage if the slot of this process is reclaimed, and
+     * to report usage without locking the table. Counts are modified only
+     * while holding the file lock, but may be read at any time.
+     */
+    private final ConcurrentMap<GlobalConnectionIdentifier, Integer> held = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the most recent attempt to create a table entry failed because
+     * no entry within the probe sequence was free. This is used to log
+     * saturation of the table only once until an entry can again be created.
+     */
+    private boolean saturated;
+
+    /**
+     * Executor service which periodically stamps the process slot of this
+     * process.
+     */
+    private final ScheduledExecutorService stampService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "addl-restrict-process-stamp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new MappedActiveConnectionRegistry which tracks connection
+     * usage within the given file, creating and initializing that file if it
+     * does not yet exist.
+     *
+     * @param file
+     *     The file to map. All processes which should share concurrent access
+     *     restrictions must use the same file.
+     *
+     * @param entries
+     *     The number of entries in the table, which limits the number of
+     *     distinct connections and connection groups that may be in use
+     *     simultaneously. This must be between 1 and MAX_ENTRIES, inclusive,
+     *     and must match the value used by all other processes using the
+     *     same file.
+     *
+     * @param leaseDuration
+     *     The number of milliseconds after which the usage recorded by a
+     *     process which has stopped stamping its process slot is discarded.
+     *
+     * @throws GuacamoleException
+     *     If the number of entries is out of range, or the file cannot be
+     *     mapped, is not compatible with the given parameters, or has no free
+     *     process slots.
+     */
+    public MappedActiveConnectionRegistry(File file, int entries,
+            long leaseDuration) throws GuacamoleException {
+
+        if (entries <= 0 || entries > MAX_ENTRIES)
+            throw new GuacamoleServerException("Active connection table must "
+                    + "have between 1 and " + MAX_ENTRIES + " entries, not "
+                    + entries + ".");
+
+        this.entries = entries;
+        this.leaseDuration = leaseDuration;
+
+        long size = (long) TABLE_OFFSET + (long) entries * ENTRY_SIZE;
+        try {
+
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // Initialize the file if newly created, otherwise verify that it
+            // matches the expected layout
+            FileLock fileLock = channel.lock();
+            try {
+
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                if (buffer.getInt(0) == 0) {
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, PROCESS_SLOTS);
+                    buffer.putInt(12, entries);
+                    buffer.putInt(0, MAGIC);
+                }
+
+                else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(8) != PROCESS_SLOTS
+                        || buffer.getInt(12) != entries)
+                    throw new GuacamoleServerException("File \"" + file + "\" "
+                            + "is not an active connection table having "
+                            + entries + " entries.");
+
+                register();
+
+            }
+            finally {
+                fileLock.release();
+            }
+
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Active connection table \""
+                    + file + "\" cannot be mapped.", e);
+        }
+
+        long stampInterval = Math.max(1, leaseDuration / 3);
+        stampService.scheduleWithFixedDelay(this::stamp, stampInterval,
+                stampInterval, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Returns the offset of the process slot having the given index.
+     *
+     * @param slot
+     *     The index of the process slot.
+     *
+     * @return
+     *     The offset of the given process slot within the file.
+     */
+    private static int getProcessOffset(int slot) {
+        return HEADER_SIZE + slot * PROCESS_SLOT_SIZE;
+    }
+
+    /**
+     * Returns the offset of the table entry having the given index.
+     *
+     * @param entry
+     *     The index of the table entry.
+     *
+     * @return
+     *     The offset of the given table entry within the file.
+     */
+    private static int getEntryOffset(int entry) {
+        return TABLE_OFFSET + entry * ENTRY_SIZE;
+    }
+
+    /**
+     * Returns the offset of the usage counter of the given process within the
+     * table entry having the given offset.
+     *
+     * @param entryOffset
+     *     The offset of the table entry.
+     *
+     * @param slot
+     *     The index of the process slot.
+     *
+     * @return
+     *     The offset of the usage counter within the file.
+     */
+    private static int getCounterOffset(int entryOffset, int slot) {
+        return entryOffset + 8 + slot * 4;
+    }
+
+    /**
+     * Returns whether the process slot having the given index is occupied by
+     * a live process, given the current time.
+     *
+     * @param slot
+     *     The index of the process slot.
+     *
+     * @param now
+     *     The current time, in milliseconds since the epoch.
+     *
+     * @return
+     *     true if the process slot is occupied by a process which has stamped
+     *     that slot within the lease duration, false otherwise.
+     */
+    private boolean isLive(int slot, long now) {
+        int offset = getProcessOffset(slot);
+        return buffer.getLong(offset) != 0
+                && now - buffer.getLong(offset + 8) <= leaseDuration;
+    }
+
+    /**
+     * Claims a free or stale process slot for this process, clearing any
+     * usage recorded by the previous occupant of that slot and restoring any
+     * usage still held by this process. The caller must hold the file lock.
+     *
+     * @throws GuacamoleServerException
+     *     If all process slots are occupied by live processes.
+     */
+    private void register() throws GuacamoleServerException {
+
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < PROCESS_SLOTS; slot++) {
+
+            if (isLive(slot, now))
+                continue;
+
+            // Discard all usage recorded by the previous occupant
+            for (int entry = 0; entry < entries; entry++)
+                buffer.putInt(getCounterOffset(getEntryOffset(entry), slot), 0);
+
+            int offset = getProcessOffset(slot);
+            buffer.putLong(offset + 8, now);
+            buffer.putLong(offset, owner);
+            processSlot = slot;
+
+            // Restore any usage still held by this process
+            for (Map.Entry<GlobalConnectionIdentifier, Integer> usage : held.entrySet()) {
+                int entry = find(hash(usage.getKey()), true, now);
+                if (entry >= 0) {
+                    int counterOffset = getCounterOffset(getEntryOffset(entry), slot);
+                    buffer.putInt(counterOffset, buffer.getInt(counterOffset) + usage.getValue());
+                }
+            }
+
+            return;
+
+        }
+
+        throw new GuacamoleServerException("All " + PROCESS_SLOTS + " process "
+                + "slots of the active connection table are in use.");
+
+    }
+
+    /**
+     * An operation which accesses the table while holding the file lock.
+     *
+     * @param <T>
+     *     The type of value returned by the operation.
+     */
+    private interface TableOperation<T> {
+
+        /**
+         * Performs this operation. The file lock is held for the duration of
+         * this call.
+         *
+         * @param now
+         *     The current time, in milliseconds since the epoch.
+         *
+         * @return
+         *     The result of the operation.
+         *
+         * @throws GuacamoleException
+         *     If the operation cannot be performed.
+         */
+        T perform(long now) throws GuacamoleException;
+
+    }
+
+    /**
+     * Performs the given operation while holding an exclusive lock on the
+     * file, blocking until that lock is available.
+     *
+     * @param <T>
+     *     The type of value returned by the operation.
+     *
+     * @param operation
+     *     The operation to perform.
+     *
+     * @return
+     *     The result of the operation.
+     *
+     * @throws GuacamoleException
+     *     If the file cannot be locked or the operation fails.
+     */
+    private <T> T withTable(TableOperation<T> operation) throws GuacamoleException {
+
+        lock.lock();
+        try {
+            FileLock fileLock = channel.lock();
+            try {
+                return operation.perform(System.currentTimeMillis());
+            }
+            finally {
+                fileLock.release();
+            }
+        }
+        catch (IOException e) {
+            throw new GuacamoleServerException("Active connection table cannot be locked.", e);
+        }
+        finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     * Stamps the process slot of this process with the current time,
+     * re-registering this process if its slot has gone stale or been
+     * reclaimed by another process.
+     */
+    private void stamp() {
+
+        try {
+            withTable(now -> {
+
+                int offset = getProcessOffset(processSlot);
+                if (buffer.getLong(offset) == owner && isLive(processSlot, now))
+                    buffer.putLong(offset + 8, now);
+
+                else {
+                    logger.warn("Process slot within active connection table "
+                            + "went stale. Re-registering.");
+                    register();
+                }
+
+                return null;
+
+            });
+        }
+        catch (GuacamoleException | RuntimeException e) {
+            logger.warn("Unable to update active connection table: {}", e.getMessage());
+            logger.debug("Stamping of process slot failed.", e);
+        }
+
+    }
+
+    /**
+     * Returns a 64-bit hash of the given identifier which is never EMPTY.
+     *
+     * @param identifier
+     *     The identifier to hash.
+     *
+     * @return
+     *     A 64-bit hash of the given identifier.
+     */
+    private static long hash(GlobalConnectionIdentifier identifier) {
+        long hash = identifier.getHash();
+        return hash != EMPTY ? hash : 1;
+    }
+
+    /**
+     * Returns the total usage recorded within the table entry at the given
+     * offset by all live processes.
+     *
+     * @param entryOffset
+     *     The offset of the table entry.
+     *
+     * @param now
+     *     The current time, in milliseconds since the epoch.
+     *
+     * @return
+     *     The total usage recorded by all live processes.
+     */
+    private int getTotal(int entryOffset, long now) {
+
+        int total = 0;
+        for (int slot = 0; slot < PROCESS_SLOTS; slot++) {
+            if (isLive(slot, now))
+                total += buffer.getInt(getCounterOffset(entryOffset, slot));
+        }
+
+        return total;
+
+    }
+
+    /**
+     * Locates the table entry having the given hash using linear probing,
+     * optionally creating that entry if it does not exist. Entries having no
+     * usage by any live process are reused when creating new entries. At most
+     * MAX_PROBE_LENGTH entries are examined. The caller must hold the file
+     * lock.
+     *
+     * @param hash
+     *     The hash of the entry to locate.
+     *
+     * @param create
+     *     Whether the entry should be created if it does not exist.
+     *
+     * @param now
+     *     The current time, in milliseconds since the epoch.
+     *
+     * @return
+     *     The index of the entry, or -1 if the entry does not exist and
+     *     either create is false or no entry within the probe sequence is
+     *     free.
+     */
+    private int find(long hash, boolean create, long now) {
+
+        int reusable = -1;
+        int start = (int) Long.remainderUnsigned(hash, entries);
+        int probeLength = Math.min(entries, MAX_PROBE_LENGTH);
+
+        for (int i = 0; i < probeLength; i++) {
+
+            int entry = (start + i) % entries;
+            int offset = getEntryOffset(entry);
+            long entryHash = buffer.getLong(offset);
+
+            if (entryHash == hash)
+                return entry;
+
+            // The end of the probe sequence has been reached
+            if (entryHash == EMPTY) {
+                if (reusable == -1)
+                    reusable = entry;
+                break;
+            }
+
+            if (reusable == -1 && getTotal(offset, now) == 0)
+                reusable = entry;
+
+        }
+
+        if (!create || reusable == -1)
+            return -1;
+
+        // Claim entry, discarding any usage left by stale processes
+        int offset = getEntryOffset(reusable);
+        for (int slot = 0; slot < PROCESS_SLOTS; slot++)
+            buffer.putInt(getCounterOffset(offset, slot), 0);
+        buffer.putLong(offset, hash);
+
+        return reusable;
+
+    }
+
+    @Override
+    public boolean acquire(GlobalConnectionIdentifier identifier, int limit)
+            throws GuacamoleException {
+
+        long hash = hash(identifier);
+        return withTable(now -> {
+
+            int entry = find(hash, true, now);
+            if (entry == -1) {
+
+                if (!saturated) {
+                    saturated = true;
+                    logger.warn("Active connection table is saturated. "
+                            + "Connections will fail until existing "
+                            + "connections are closed or the table is "
+                            + "enlarged.");
+                }
+
+                throw new GuacamoleServerException("Active connection table "
+                        + "has no free entry for \"" + identifier.getKey()
+                        + "\".");
+
+            }
+
+            saturated = false;
+
+            int offset = getEntryOffset(entry);
+            if (getTotal(offset, now) >= limit)
+                return false;
+
+            int counterOffset = getCounterOffset(offset, processSlot);
+            buffer.putInt(counterOffset, buffer.getInt(counterOffset) + 1);
+            held.merge(identifier, 1, Integer::sum);
+            return true;
+
+        });
+
+    }
+
+    @Override
+    public void release(GlobalConnectionIdentifier identifier)
+            throws GuacamoleException {
+
+        long hash = hash(identifier);
+        withTable(now -> {
+
+            // Release usage only if actually held by this process
+            Integer heldCount = held.get(identifier);
+            if (heldCount == null)
+                return null;
+
+            if (heldCount > 1)
+                held.put(identifier, heldCount - 1);
+            else
+                held.remove(identifier);
+
+            int entry = find(hash, false, now);
+            if (entry == -1)
+                return null;
+
+            int counterOffset = getCounterOffset(getEntryOffset(entry), processSlot);
+            int count = buffer.getInt(counterOffset);
+            if (count > 0)
+                buffer.putInt(counterOffset, count - 1);
+
+            return null;
+
+        });
+
+    }
+
+    @Override
+    public Map<GlobalConnectionIdentifier, Integer> getActiveConnections() {
+        return new HashMap<>(held);
+    }
+
+    @Override
+    public void shutdown() {
+
+        stampService.shutdownNow();
+
+        // Free the process slot of this process, discarding all usage
+        try {
+            withTable(now -> {
+                for (int entry = 0; entry < entries; entry++)
+                    buffer.putInt(getCounterOffset(getEntryOffset(entry), processSlot), 0);
+                buffer.putLong(getProcessOffset(processSlot), 0);
+                return null;
+            });
+        }
+        catch (GuacamoleException e) {
+            logger.warn("Unable to free process slot within active connection "
+                    + "table: {}", e.getMessage());
+            logger.debug("Release of process slot failed.", e);
+        }
+
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            logger.debug("Unable to close active connection table.", e);
+        }
+
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ActiveConnectionRegistry implementation which tracks connection usage
+ * within a ConnectionLeaseStore shared by multiple Guacamole instances,
+ * allowing concurrent access restrictions to be enforced across all
+ * instances behind a load balancer. Each successful acquire() holds a lease
+ * within the shared store. Rather than renewing each lease individually, a
+ * single background thread renews all leases held by this instance in one
+ * batch, such that admission costs exactly one round-trip to the store and
+ * keeping connections alive costs one round-trip per renewal interval
+ * regardless of the number of active connections. Leases held by an instance
+ * which stops renewing them (due to a crash, network partition, etc.) expire
+ * automatically.
+ */
+public class SharedActiveConnectionRegistry implements ActiveConnectionRegistry {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(SharedActiveConnectionRegistry.class);
+
+    /**
+     * The shared store containing all leases.
+     */
+    private final ConnectionLeaseStore store;
+
+    /**
+     * The number of milliseconds that each lease remains valid without being
+     * renewed.
+     */
+    private final long leaseDuration;
+
+    /**
+     * Prefix unique to this registry which is included in the identifier of
+     * every lease it creates.
+     */
+    private final String leasePrefix = UUID.randomUUID().toString() + "-";
+
+    /**
+     * Counter used to produce unique lease identifiers.
+     */
+    private final AtomicLong leaseCounter = new AtomicLong();
+
+    /**
+     * The identifiers of all leases currently held by this registry, grouped
+     * by the object leased.
+     */
+    private final ConcurrentMap<GlobalConnectionIdentifier, Queue<String>> leases = new ConcurrentHashMap<>();
+
+    /**
+     * Executor service which periodically renews all held leases.
+     */
+    private final ScheduledExecutorService renewalService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "addl-restrict-lease-renewal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new SharedActiveConnectionRegistry which stores leases within
+     * the given store, renewing all held leases in batches such that no lease
+     * expires while still held.
+     *
+     * @param store
+     *     The shared store that should contain all leases.
+     *
+     * @param leaseDuration
+     *     The number of milliseconds that each lease should remain valid
+     *     without being renewed. Held leases are renewed three times within
+     *     this period, such that a single failed renewal does not cause
+     *     leases to expire.
+     */
+    public SharedActiveConnectionRegistry(ConnectionLeaseStore store,
+            long leaseDuration) {
+        this.store = store;
+        this.leaseDuration = leaseDuration;
+        long renewalInterval = Math.max(1, leaseDuration / 3);
+        renewalService.scheduleWithFixedDelay(this::renewLeases,
+                renewalInterval, renewalInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Renews all leases held by this registry in a single batch.
+     */
+    private void renewLeases() {
+
+        List<String> heldLeases = new ArrayList<>();
+        leases.values().forEach(heldLeases::addAll);
+
+        if (heldLeases.isEmpty())
+            return;
+
+        try {
+            store.renew(heldLeases, leaseDuration);
+        }
+        catch (GuacamoleException | RuntimeException e) {
+            logger.warn("Unable to renew {} connection lease(s): {}",
+                    heldLeases.size(), e.getMessage());
+            logger.debug("Renewal of connection leases failed.", e);
+        }
+
+    }
+
+    @Override
+    public boolean acquire(GlobalConnectionIdentifier identifier, int limit)
+            throws GuacamoleException {
+
+        String lease = leasePrefix + leaseCounter.incrementAndGet();
+        if (!store.acquire(identifier.getKey(), lease, limit, leaseDuration))
+            return false;
+
+        leases.compute(identifier, (key, queue) -> {
+            if (queue == null)
+                queue = new ConcurrentLinkedQueue<>();
+            queue.add(lease);
+            return queue;
+        });
+
+        return true;
+
+    }
+
+    @Override
+    public void release(GlobalConnectionIdentifier identifier)
+            throws GuacamoleException {
+
+        // Any lease held for the object may be released, as all leases of
+        // the same object are equivalent
+        String[] lease = new String[1];
+        leases.computeIfPresent(identifier, (key, queue) -> {
+            lease[0] = queue.poll();
+            return queue.isEmpty() ? null : queue;
+        });
+
+        // If the store cannot be updated, the lease will still expire, as it
+        // is no longer renewed
+        if (lease[0] != null)
+            store.release(identifier.getKey(), lease[0]);
+
+    }
+
+    @Override
+    public Map<GlobalConnectionIdentifier, Integer> getActiveConnections() {
+
+        Map<GlobalConnectionIdentifier, Integer> counts = new HashMap<>(leases.size());
+        leases.forEach((identifier, queue) -> {
+            int count = queue.size();
+            if (count > 0)
+                counts.put(identifier, count);
+        });
+
+        return counts;
+
+    }
+
+    @Override
+    public void shutdown() {
+        renewalService.shutdownNow();
+    }
+
+}
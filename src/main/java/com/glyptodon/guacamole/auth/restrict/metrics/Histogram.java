@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values having a fixed set of buckets. Each bucket
+ * covers a power-of-two range of values, such that bucket N contains all
+ * values V where 2^(N-1) &lt;= V &lt; 2^N (bucket 0 contains only the value
+ * 0). Recording a value costs a single striped counter increment, and values
+ * may be recorded from any number of threads concurrently without
+ * contention. The unit of recorded values (nanoseconds, bytes, etc.) is
+ * dictated by the caller.
+ */
+public class Histogram {
+
+    /**
+     * The total number of buckets in every Histogram.
+     */
+    public static final int BUCKETS = Long.SIZE;
+
+    /**
+     * The number of values recorded within each bucket.
+     */
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    /**
+     * The sum of all values recorded.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Creates a new, empty Histogram.
+     */
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Returns the index of the bucket which contains the given value.
+     *
+     * @param value
+     *     The value to locate the bucket of. Negative values are treated as
+     *     0.
+     *
+     * @return
+     *     The index of the bucket containing the given value.
+     */
+    private static int getBucket(long value) {
+        return value <= 0 ? 0 : Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Returns the exclusive upper bound of the values stored within the
+     * bucket having the given index. The last bucket contains all values
+     * which do not fit within any other bucket and has the upper bound
+     * Long.MAX_VALUE.
+     *
+     * @param bucket
+     *     The index of the bucket.
+     *
+     * @return
+     *     The exclusive upper bound of the values contained within the given
+     *     bucket.
+     */
+    public static long getUpperBound(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Records the given value within this histogram.
+     *
+     * @param value
+     *     The value to record. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        buckets[getBucket(value)].increment();
+        sum.add(Math.max(0, value));
+    }
+
+    /**
+     * Returns the number of values recorded within each bucket of this
+     * histogram. The returned array is a snapshot which will not change as
+     * further values are recorded.
+     *
+     * @return
+     *     A new array containing the number of values recorded within each
+     *     bucket, indexed by bucket.
+     */
+    public long[] getCounts() {
+
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+
+        return counts;
+
+    }
+
+    /**
+     * Returns the total number of values recorded within this histogram.
+     *
+     * @return
+     *     The total number of values recorded.
+     */
+    public long getCount() {
+
+        long count = 0;
+        for (LongAdder bucket : buckets)
+            count += bucket.sum();
+
+        return count;
+
+    }
+
+    /**
+     * Returns the sum of all values recorded within this histogram.
+     *
+     * @return
+     *     The sum of all values recorded.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how the input sent by restricted users has been
+ * altered before reaching the remote desktop. Counters are striped and may be
+ * incremented from any number of tunnels concurrently without contention.
+ */
+public class InputStatistics {
+
+    /**
+     * The number of "mouse" instructions which were forwarded.
+     */
+    private final LongAdder forwardedMouseEvents = new LongAdder();
+
+    /**
+     * The number of "mouse" instructions which were dropped because a later
+     * instruction having the same button state superseded them.
+     */
+    private final LongAdder coalescedMouseEvents = new LongAdder();
+
+    /**
+     * The number of "key" and "mouse" instructions which were dropped
+     * because the sending user exceeded their input rate limit.
+     */
+    private final LongAdder throttledInputEvents = new LongAdder();
+
+    /**
+     * Records that a "mouse" instruction was forwarded.
+     */
+    public void mouseEventForwarded() {
+        forwardedMouseEvents.increment();
+    }
+
+    /**
+     * Records that a "mouse" instruction was dropped in favor of a later
+     * instruction having the same button state.
+     */
+    public void mouseEventCoalesced() {
+        coalescedMouseEvents.increment();
+    }
+
+    /**
+     * Records that a "key" or "mouse" instruction was dropped because the
+     * sending user exceeded their input rate limit.
+     */
+    public void inputThrottled() {
+        throttledInputEvents.increment();
+    }
+
+    /**
+     * Returns the number of "mouse" instructions which were forwarded.
+     *
+     * @return
+     *     The number of "mouse" instructions which were forwarded.
+     */
+    public long getForwardedMouseEvents() {
+        return forwardedMouseEvents.sum();
+    }
+
+    /**
+     * Returns the number of "mouse" instructions which were dropped because
+     * a later instruction having the same button state superseded them.
+     *
+     * @return
+     *     The number of "mouse" instructions which were dropped.
+     */
+    public long getCoalescedMouseEvents() {
+        return coalescedMouseEvents.sum();
+    }
+
+    /**
+     * Returns the number of "key" and "mouse" instructions which were
+     * dropped because the sending user exceeded their input rate limit.
+     *
+     * @return
+     *     The number of "key" and "mouse" instructions dropped due to rate
+     *     limiting.
+     */
+    public long getThrottledInputEvents() {
+        return throttledInputEvents.sum();
+    }
+
+}
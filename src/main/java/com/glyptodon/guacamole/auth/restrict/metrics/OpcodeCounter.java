@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of instructions and their lengths, kept separately for each opcode
+ * of the Guacamole protocol. Instructions having opcodes which are not part
+ * of the protocol are counted together under OTHER. Counters are striped and
+ * may be incremented from any number of tunnels concurrently without
+ * contention.
+ */
+public class OpcodeCounter {
+
+    /**
+     * The opcodes of all instructions defined by the Guacamole protocol,
+     * including those sent only by the client and those sent only by the
+     * server. The index of each opcode within this list is the index used to
+     * record instructions having that opcode.
+     */
+    public static final List<String> OPCODES = Collections.unmodifiableList(Arrays.asList(
+        "ack", "arc", "argv", "audio", "blob", "body", "cfill", "clip",
+        "clipboard", "close", "copy", "cstroke", "cursor", "curve",
+        "disconnect", "dispose", "distort", "end", "error", "file",
+        "filesystem", "get", "identity", "img", "jpeg", "key", "lfill",
+        "line", "log", "lstroke", "mouse", "move", "name", "nest", "nop",
+        "pipe", "png", "pop", "push", "put", "ready", "rect", "required",
+        "reset", "set", "shade", "size", "start", "sync", "transfer",
+        "undefine", "video", "webp"
+    ));
+
+    /**
+     * The name under which instructions having opcodes not within OPCODES
+     * are counted.
+     */
+    public static final String OTHER = "other";
+
+    /**
+     * The index used to record instructions having opcodes not within
+     * OPCODES.
+     */
+    public static final int OTHER_INDEX = OPCODES.size();
+
+    /**
+     * The index of each opcode within OPCODES, keyed by opcode.
+     */
+    private static final Map<String, Integer> INDEXES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < OPCODES.size(); i++)
+            INDEXES.put(OPCODES.get(i), i);
+    }
+
+    /**
+     * The number of instructions recorded, indexed by opcode.
+     */
+    private final LongAdder[] counts = new LongAdder[OTHER_INDEX + 1];
+
+    /**
+     * The total length of all instructions recorded, in characters, indexed
+     * by opcode.
+     */
+    private final LongAdder[] characters = new LongAdder[OTHER_INDEX + 1];
+
+    /**
+     * Creates a new OpcodeCounter with all counts initialized to zero.
+     */
+    public OpcodeCounter() {
+        for (int i = 0; i <= OTHER_INDEX; i++) {
+            counts[i] = new LongAdder();
+            characters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the index used to record instructions having the given opcode.
+     *
+     * @param opcode
+     *     The opcode to look up.
+     *
+     * @return
+     *     The index of the given opcode within OPCODES, or OTHER_INDEX if the
+     *     opcode is not part of the Guacamole protocol.
+     */
+    public static int indexOf(String opcode) {
+        Integer index = INDEXES.get(opcode);
+        return index != null ? index : OTHER_INDEX;
+    }
+
+    /**
+     * Records a number of instructions having the given opcode and total
+     * length at once.
+     *
+     * @param opcode
+     *     The index of the opcode of the instructions, as returned by
+     *     indexOf().
+     *
+     * @param count
+     *     The number of instructions.
+     *
+     * @param length
+     *     The total length of the instructions, in characters, including
+     *     their terminators.
+     */
+    public void add(int opcode, long count, long length) {
+        counts[opcode].add(count);
+        characters[opcode].add(length);
+    }
+
+    /**
+     * Converts the given array of counters into a map of opcode to current
+     * value, omitting opcodes whose value is zero.
+     *
+     * @param counters
+     *     The counters to convert, indexed by opcode.
+     *
+     * @return
+     *     A new map of opcode to the current value of its counter.
+     */
+    private static Map<String, Long> toMap(LongAdder[] counters) {
+
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i <= OTHER_INDEX; i++) {
+            long value = counters[i].sum();
+            if (value != 0)
+                values.put(i < OTHER_INDEX ? OPCODES.get(i) : OTHER, value);
+        }
+
+        return values;
+
+    }
+
+    /**
+     * Returns the number of instructions recorded for each opcode. Opcodes
+     * for which no instructions have been recorded are omitted.
+     *
+     * @return
+     *     A new map of opcode to the number of instructions recorded.
+     */
+    public Map<String, Long> getCounts() {
+        return toMap(counts);
+    }
+
+    /**
+     * Returns the total length, in characters, of all instructions recorded
+     * for each opcode. Opcodes for which no instructions have been recorded
+     * are omitted.
+     *
+     * @return
+     *     A new map of opcode to the total length of instructions recorded.
+     */
+    public Map<String, Long> getCharacters() {
+        return toMap(characters);
+    }
+
+}
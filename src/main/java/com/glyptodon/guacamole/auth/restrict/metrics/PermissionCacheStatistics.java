@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the effectiveness of the caches of administrative
+ * permissions maintained for each restricted user. Counters are striped and
+ * may be incremented from any number of threads concurrently without
+ * contention.
+ */
+public class PermissionCacheStatistics {
+
+    /**
+     * The number of permission checks answered from a cache.
+     */
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * The number of permission checks which required permissions to be
+     * loaded from the extension storing them.
+     */
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Records that a permission check was answered from a cache.
+     */
+    public void hit() {
+        hits.increment();
+    }
+
+    /**
+     * Records that a permission check required permissions to be loaded.
+     */
+    public void miss() {
+        misses.increment();
+    }
+
+    /**
+     * Returns the number of permission checks answered from a cache.
+     *
+     * @return
+     *     The number of permission checks answered from a cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of permission checks which required permissions to
+     * be loaded from the extension storing them.
+     *
+     * @return
+     *     The number of permission checks which required permissions to be
+     *     loaded.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+}
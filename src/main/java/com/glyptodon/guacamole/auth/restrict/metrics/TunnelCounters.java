@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+/**
+ * The live counters describing all tunnels of a single restriction class.
+ * Instructions written by users are counted both as they are received and as
+ * they are forwarded, such that the number dropped by restrictions is the
+ * difference between the two. Instructions read from connections are
+ * counted as they are read.
+ */
+public class TunnelCounters {
+
+    /**
+     * The instructions written by users, as received by their tunnels.
+     */
+    private final OpcodeCounter received = new OpcodeCounter();
+
+    /**
+     * The instructions written by users which were forwarded to their
+     * connections.
+     */
+    private final OpcodeCounter forwarded = new OpcodeCounter();
+
+    /**
+     * The instructions read from connections.
+     */
+    private final OpcodeCounter read = new OpcodeCounter();
+
+    /**
+     * The amount of time taken by each write to a connection, in
+     * nanoseconds, or null if write latency is not recorded.
+     */
+    private final Histogram writeLatencies;
+
+    /**
+     * Creates a new TunnelCounters with all counts initialized to zero.
+     *
+     * @param recordWriteLatency
+     *     Whether the amount of time taken by each write to a connection
+     *     should be recorded.
+     */
+    public TunnelCounters(boolean recordWriteLatency) {
+        this.writeLatencies = recordWriteLatency ? new Histogram() : null;
+    }
+
+    /**
+     * Returns the counter of instructions written by users, as received by
+     * their tunnels.
+     *
+     * @return
+     *     The counter of instructions received.
+     */
+    public OpcodeCounter getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the counter of instructions written by users which were
+     * forwarded to their connections.
+     *
+     * @return
+     *     The counter of instructions forwarded.
+     */
+    public OpcodeCounter getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Returns the counter of instructions read from connections.
+     *
+     * @return
+     *     The counter of instructions read.
+     */
+    public OpcodeCounter getRead() {
+        return read;
+    }
+
+    /**
+     * Returns the histogram of the amount of time taken by each write to a
+     * connection, in nanoseconds.
+     *
+     * @return
+     *     The histogram of write latencies, or null if write latency is not
+     *     recorded.
+     */
+    public Histogram getWriteLatencies() {
+        return writeLatencies;
+    }
+
+}
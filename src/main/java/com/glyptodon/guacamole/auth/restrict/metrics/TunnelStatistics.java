@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the counters describing all instrumented tunnels, grouped by
+ * restriction class. The restriction class of a tunnel is an arbitrary name
+ * identifying the combination of restrictions which alter the data passing
+ * through that tunnel. Counters for each class are created on demand and
+ * retained for the life of the registry. Global figures are produced by
+ * summing the figures of all classes when read, such that each instruction
+ * is recorded only once.
+ */
+public class TunnelStatistics {
+
+    /**
+     * Whether the amount of time taken by each write to a connection should
+     * be recorded.
+     */
+    private final boolean recordWriteLatency;
+
+    /**
+     * The counters for each restriction class, keyed by class name.
+     */
+    private final ConcurrentMap<String, TunnelCounters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new, empty TunnelStatistics.
+     *
+     * @param recordWriteLatency
+     *     Whether the amount of time taken by each write to a connection
+     *     should be recorded.
+     */
+    public TunnelStatistics(boolean recordWriteLatency) {
+        this.recordWriteLatency = recordWriteLatency;
+    }
+
+    /**
+     * Returns the counters for the given restriction class, creating those
+     * counters if they do not yet exist.
+     *
+     * @param restrictionClass
+     *     The name of the restriction class.
+     *
+     * @return
+     *     The counters for the given restriction class.
+     */
+    public TunnelCounters getCounters(String restrictionClass) {
+        return counters.computeIfAbsent(restrictionClass,
+                key -> new TunnelCounters(recordWriteLatency));
+    }
+
+    /**
+     * Returns a snapshot of the counters for each restriction class.
+     *
+     * @return
+     *     A new map of restriction class name to a snapshot of the counters
+     *     for that class.
+     */
+    public Map<String, TunnelUsage> getUsageByRestrictionClass() {
+
+        Map<String, TunnelUsage> usage = new HashMap<>(counters.size());
+        counters.forEach((restrictionClass, classCounters) ->
+                usage.put(restrictionClass, new TunnelUsage(classCounters)));
+
+        return usage;
+
+    }
+
+    /**
+     * Returns a snapshot of the counters of all restriction classes, added
+     * together.
+     *
+     * @return
+     *     A new snapshot of the counters describing all tunnels.
+     */
+    public TunnelUsage getUsage() {
+        return TunnelUsage.sum(getUsageByRestrictionClass().values());
+    }
+
+}
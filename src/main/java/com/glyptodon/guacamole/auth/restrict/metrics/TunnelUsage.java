@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Point-in-time view of the counters describing a set of tunnels. Each
+ * individual count is accurate as of the moment it was read, but counts are
+ * not read atomically with respect to each other. Snapshots are immutable.
+ */
+public class TunnelUsage {
+
+    /**
+     * The number of instructions written by users, keyed by opcode.
+     */
+    private final Map<String, Long> received;
+
+    /**
+     * The number of instructions written by users which were forwarded to
+     * their connections, keyed by opcode.
+     */
+    private final Map<String, Long> forwarded;
+
+    /**
+     * The total length, in characters, of all instructions forwarded to
+     * connections, keyed by opcode.
+     */
+    private final Map<String, Long> forwardedCharacters;
+
+    /**
+     * The number of instructions read from connections, keyed by opcode.
+     */
+    private final Map<String, Long> read;
+
+    /**
+     * The total length, in characters, of all instructions read from
+     * connections, keyed by opcode.
+     */
+    private final Map<String, Long> readCharacters;
+
+    /**
+     * The number of writes to connections within each bucket of the write
+     * latency histogram, or an empty array if write latency is not recorded.
+     */
+    private final long[] writeLatencies;
+
+    /**
+     * Creates a new TunnelUsage containing the given values.
+     *
+     * @param received
+     *     The number of instructions written by users, keyed by opcode.
+     *
+     * @param forwarded
+     *     The number of instructions forwarded to connections, keyed by
+     *     opcode.
+     *
+     * @param forwardedCharacters
+     *     The total length of all instructions forwarded to connections,
+     *     keyed by opcode.
+     *
+     * @param read
+     *     The number of instructions read from connections, keyed by opcode.
+     *
+     * @param readCharacters
+     *     The total length of all instructions read from connections, keyed
+     *     by opcode.
+     *
+     * @param writeLatencies
+     *     The number of writes within each bucket of the write latency
+     *     histogram, or an empty array if write latency is not recorded.
+     */
+    private TunnelUsage(Map<String, Long> received, Map<String, Long> forwarded,
+            Map<String, Long> forwardedCharacters, Map<String, Long> read,
+            Map<String, Long> readCharacters, long[] writeLatencies) {
+        this.received = Collections.unmodifiableMap(received);
+        this.forwarded = Collections.unmodifiableMap(forwarded);
+        this.forwardedCharacters = Collections.unmodifiableMap(forwardedCharacters);
+        this.read = Collections.unmodifiableMap(read);
+        this.readCharacters = Collections.unmodifiableMap(readCharacters);
+        this.writeLatencies = writeLatencies;
+    }
+
+    /**
+     * Creates a new TunnelUsage containing the current values of the given
+     * counters.
+     *
+     * @param counters
+     *     The counters to read.
+     */
+    public TunnelUsage(TunnelCounters counters) {
+        this(counters.getReceived().getCounts(),
+                counters.getForwarded().getCounts(),
+                counters.getForwarded().getCharacters(),
+                counters.getRead().getCounts(),
+                counters.getRead().getCharacters(),
+                counters.getWriteLatencies() != null
+                        ? counters.getWriteLatencies().getCounts() : new long[0]);
+    }
+
+    /**
+     * Adds all values within the given map to the corresponding values
+     * within the given total.
+     *
+     * @param total
+     *     The map to add values to.
+     *
+     * @param values
+     *     The values to add.
+     */
+    private static void addAll(Map<String, Long> total, Map<String, Long> values) {
+        values.forEach((opcode, value) -> total.merge(opcode, value, Long::sum));
+    }
+
+    /**
+     * Returns a new TunnelUsage whose values are the sums of the values of
+     * all given snapshots.
+     *
+     * @param usages
+     *     The snapshots to add together.
+     *
+     * @return
+     *     A new TunnelUsage containing the sums of all given snapshots.
+     */
+    public static TunnelUsage sum(Collection<TunnelUsage> usages) {
+
+        Map<String, Long> received = new LinkedHashMap<>();
+        Map<String, Long> forwarded = new LinkedHashMap<>();
+        Map<String, Long> forwardedCharacters = new LinkedHashMap<>();
+        Map<String, Long> read = new LinkedHashMap<>();
+        Map<String, Long> readCharacters = new LinkedHashMap<>();
+        long[] writeLatencies = new long[0];
+
+        for (TunnelUsage usage : usages) {
+
+            addAll(received, usage.received);
+            addAll(forwarded, usage.forwarded);
+            addAll(forwardedCharacters, usage.forwardedCharacters);
+            addAll(read, usage.read);
+            addAll(readCharacters, usage.readCharacters);
+
+            if (usage.writeLatencies.length > writeLatencies.length)
+                writeLatencies = new long[usage.writeLatencies.length];
+
+            for (int i = 0; i < usage.writeLatencies.length; i++)
+                writeLatencies[i] += usage.writeLatencies[i];
+
+        }
+
+        return new TunnelUsage(received, forwarded, forwardedCharacters, read,
+                readCharacters, writeLatencies);
+
+    }
+
+    /**
+     * Returns the number of instructions written by users for each opcode.
+     *
+     * @return
+     *     An unmodifiable map of opcode to the number of instructions
+     *     written by users.
+     */
+    public Map<String, Long> getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the number of instructions written by users which were
+     * forwarded to their connections for each opcode.
+     *
+     * @return
+     *     An unmodifiable map of opcode to the number of instructions
+     *     forwarded.
+     */
+    public Map<String, Long> getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Returns the number of instructions written by users which were dropped
+     * due to restrictions for each opcode. Instructions which are currently
+     * held by a restriction, such as mouse coalescing, are counted as
+     * dropped until they are forwarded.
+     *
+     * @return
+     *     A new map of opcode to the number of instructions dropped.
+     *     Opcodes for which no instructions were dropped are omitted.
+     */
+    public Map<String, Long> getDropped() {
+
+        Map<String, Long> dropped = new LinkedHashMap<>();
+        received.forEach((opcode, count) -> {
+            long difference = count - forwarded.getOrDefault(opcode, 0L);
+            if (difference > 0)
+                dropped.put(opcode, difference);
+        });
+
+        return dropped;
+
+    }
+
+    /**
+     * Returns the total length, in characters, of all instructions forwarded
+     * to connections for each opcode.
+     *
+     * @return
+     *     An unmodifiable map of opcode to the total length of instructions
+     *     forwarded.
+     */
+    public Map<String, Long> getForwardedCharacters() {
+        return forwardedCharacters;
+    }
+
+    /**
+     * Returns the number of instructions read from connections for each
+     * opcode.
+     *
+     * @return
+     *     An unmodifiable map of opcode to the number of instructions read.
+     */
+    public Map<String, Long> getRead() {
+        return read;
+    }
+
+    /**
+     * Returns the total length, in characters, of all instructions read from
+     * connections for each opcode.
+     *
+     * @return
+     *     An unmodifiable map of opcode to the total length of instructions
+     *     read.
+     */
+    public Map<String, Long> getReadCharacters() {
+        return readCharacters;
+    }
+
+    /**
+     * Returns the number of writes to connections within each bucket of the
+     * write latency histogram. The bounds of each bucket are as defined by
+     * Histogram.getUpperBound(), in nanoseconds.
+     *
+     * @return
+     *     A new array containing the number of writes within each bucket, or
+     *     an empty array if write latency is not recorded.
+     */
+    public long[] getWriteLatencies() {
+        return writeLatencies.clone();
+    }
+
+}
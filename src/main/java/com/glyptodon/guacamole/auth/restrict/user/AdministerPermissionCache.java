@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.PermissionCacheStatistics;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.Permissions;
+import org.apache.guacamole.net.auth.User;
+import org.apache.guacamole.net.auth.permission.ObjectPermission;
+import org.apache.guacamole.net.auth.permission.SystemPermission;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the ADMINISTER permissions granted to a single user. The
+ * system-wide ADMINISTER permission and the identifiers of all users that
+ * the user may administer are loaded together, in bulk, and reused until
+ * they expire or the cache is invalidated, such that checking permissions
+ * for each of a large number of users costs a single read of the user's
+ * effective permissions.
+ *
+ * Cached permissions are not notified of changes made elsewhere. If the
+ * ADMINISTER permission of a user is revoked by another user, through
+ * another extension, or through a change to a group of which the user is a
+ * member, the user may continue to view and modify the restrictions of other
+ * users for up to ten seconds. Changes made through the UserContext owning
+ * this cache, such as by the user modifying their own permissions or groups
+ * or by creating or deleting users, invalidate the cache immediately.
+ */
+public class AdministerPermissionCache {
+
+    /**
+     * Logger for this class.
+     */
+    private static final Logger logger = LoggerFactory.getLogger(AdministerPermissionCache.class);
+
+    /**
+     * The number of nanoseconds that loaded permissions remain valid.
+     */
+    private static final long EXPIRY = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The ADMINISTER permissions of a user as of a specific point in time.
+     */
+    private static class Snapshot {
+
+        /**
+         * Whether the user has system-wide ADMINISTER permission.
+         */
+        private final boolean system;
+
+        /**
+         * The identifiers of all users that the user has ADMINISTER
+         * permission for.
+         */
+        private final Set<String> users;
+
+        /**
+         * The value of System.nanoTime() when the permissions were loaded.
+         */
+        private final long loaded;
+
+        /**
+         * Creates a new Snapshot of the given permissions, loaded as of now.
+         *
+         * @param system
+         *     Whether the user has system-wide ADMINISTER permission.
+         *
+         * @param users
+         *     The identifiers of all users that the user has ADMINISTER
+         *     permission for.
+         */
+        public Snapshot(boolean system, Set<String> users) {
+            this.system = system;
+            this.users = users;
+            this.loaded = System.nanoTime();
+        }
+
+        /**
+         * Returns whether this snapshot has expired.
+         *
+         * @return
+         *     true if this snapshot has expired and must be reloaded, false
+         *     otherwise.
+         */
+        public boolean isExpired() {
+            return System.nanoTime() - loaded >= EXPIRY;
+        }
+
+    }
+
+    /**
+     * The user whose permissions are cached.
+     */
+    private final User self;
+
+    /**
+     * The statistics to update as permissions are checked.
+     */
+    private final PermissionCacheStatistics statistics;
+
+    /**
+     * The most recently loaded permissions, or null if permissions have not
+     * been loaded since the cache was created or last invalidated.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Creates a new AdministerPermissionCache which caches the ADMINISTER
+     * permissions of the given user.
+     *
+     * @param self
+     *     The user whose permissions should be cached.
+     *
+     * @param statistics
+     *     The statistics to update as permissions are checked.
+     */
+    public AdministerPermissionCache(User self,
+            PermissionCacheStatistics statistics) {
+        this.self = self;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Loads the current ADMINISTER permissions of the user. If permissions
+     * cannot be read, the user is assumed to have no such permissions.
+     *
+     * @return
+     *     A new Snapshot of the current ADMINISTER permissions of the user.
+     */
+    private Snapshot load() {
+
+        try {
+
+            Permissions permissions = self.getEffectivePermissions();
+
+            // System-wide permission covers all users, so individual
+            // permissions need not be read
+            if (permissions.getSystemPermissions().hasPermission(SystemPermission.Type.ADMINISTER))
+                return new Snapshot(true, Collections.emptySet());
+
+            Set<String> users = new HashSet<>();
+            for (ObjectPermission permission : permissions.getUserPermissions().getPermissions()) {
+                if (permission.getType() == ObjectPermission.Type.ADMINISTER)
+                    users.add(permission.getObjectIdentifier());
+            }
+
+            return new Snapshot(false, users);
+
+        }
+
+        // Assume no permissions if read fails
+        catch (GuacamoleException e) {
+            logger.warn("Assuming no administrative permissions for user "
+                    + "\"{}\". An error within the extension storing the "
+                    + "user prevents reading permissions: {}.",
+                    self.getIdentifier(), e.getMessage());
+            logger.debug("Unable to read user/system permissions.", e);
+            return new Snapshot(false, Collections.emptySet());
+        }
+
+    }
+
+    /**
+     * Returns the current ADMINISTER permissions of the user, loading those
+     * permissions if they have not yet been loaded or have expired. Only one
+     * thread loads permissions at a time, with concurrent callers reusing
+     * the result.
+     *
+     * @return
+     *     The current ADMINISTER permissions of the user.
+     */
+    private Snapshot getSnapshot() {
+
+        Snapshot current = snapshot;
+        if (current != null && !current.isExpired()) {
+            statistics.hit();
+            return current;
+        }
+
+        synchronized (this) {
+
+            // Reuse permissions loaded while waiting for the lock
+            current = snapshot;
+            if (current != null && !current.isExpired()) {
+                statistics.hit();
+                return current;
+            }
+
+            statistics.miss();
+            current = load();
+            snapshot = current;
+            return current;
+
+        }
+
+    }
+
+    /**
+     * Returns whether the user has ADMINISTER permission for the user having
+     * the given identifier, either directly or through system-wide
+     * ADMINISTER permission.
+     *
+     * @param identifier
+     *     The identifier of the user being accessed.
+     *
+     * @return
+     *     true if the user has ADMINISTER permission for the given user,
+     *     false otherwise.
+     */
+    public boolean canAdminister(String identifier) {
+        Snapshot current = getSnapshot();
+        return current.system || current.users.contains(identifier);
+    }
+
+    /**
+     * Discards all cached permissions, such that the next check reloads the
+     * current permissions of the user. This function should be invoked
+     * whenever those permissions are known to have changed.
+     */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user;
+
+import com.google.common.collect.Collections2;
+import java.util.Collection;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.DecoratingDirectory;
+import org.apache.guacamole.net.auth.Directory;
+import org.apache.guacamole.net.auth.Identifiable;
+
+/**
+ * DecoratingDirectory implementation whose getAll() returns a lazily
+ * decorated view of the collection returned by the wrapped directory, rather
+ * than decorating every object up front. Objects are decorated only as they
+ * are iterated, and size() and isEmpty() are answered by the wrapped
+ * collection without decorating anything. Each iteration decorates the
+ * objects it visits anew, so decoration must be cheap or memoized, and
+ * cannot fail.
+ *
+ * @param <ObjectType>
+ *     The type of objects stored within the directory.
+ */
+public abstract class LazyDecoratingDirectory<ObjectType extends Identifiable>
+        extends DecoratingDirectory<ObjectType> {
+
+    /**
+     * Creates a new LazyDecoratingDirectory which decorates the objects
+     * within the given directory.
+     *
+     * @param directory
+     *     The directory whose objects are being decorated.
+     */
+    public LazyDecoratingDirectory(Directory<ObjectType> directory) {
+        super(directory);
+    }
+
+    @Override
+    protected abstract ObjectType decorate(ObjectType object);
+
+    @Override
+    public Collection<ObjectType> getAll(Collection<String> identifiers)
+            throws GuacamoleException {
+        return Collections2.transform(getDelegateDirectory().getAll(identifiers),
+                this::decorate);
+    }
+
+}
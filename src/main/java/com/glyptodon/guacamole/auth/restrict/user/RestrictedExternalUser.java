@@ -22,33 +22,251 @@
 
 package com.glyptodon.guacamole.auth.restrict.user;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.net.auth.DelegatingUser;
-import org.apache.guacamole.net.auth.Permissions;
+import org.apache.guacamole.net.auth.RelatedObjectSet;
 import org.apache.guacamole.net.auth.User;
 import org.apache.guacamole.net.auth.permission.ObjectPermission;
+import org.apache.guacamole.net.auth.permission.ObjectPermissionSet;
 import org.apache.guacamole.net.auth.permission.SystemPermission;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.guacamole.net.auth.permission.SystemPermissionSet;
 
 /**
  * User implementation which enforces the restrictions affecting the user
  * accessing the user. If permission to do so is granted (ADMINISTER
  * permission), restrictions which affect the user represented by the user
- * object may also be managed.
+ * object may also be managed. If this object represents the user accessing
+ * it, any change to the system permissions, user permissions, or group
+ * memberships of that user made through this object invalidates the cached
+ * ADMINISTER permissions of that user.
  */
 public class RestrictedExternalUser extends DelegatingUser {
 
     /**
-     * Logger for this class.
+     * The UserContext of the user accessing this object.
      */
-    private final static Logger logger = LoggerFactory.getLogger(RestrictedExternalUser.class);
+    private final RestrictedExternalUserContext userContext;
 
     /**
-     * The UserContext of the user accessing this object.
+     * SystemPermissionSet implementation which invalidates the cached
+     * ADMINISTER permissions of the user accessing this object whenever the
+     * wrapped set is modified.
      */
-    private final RestrictedExternalUserContext userContext;
+    private class InvalidatingSystemPermissionSet implements SystemPermissionSet {
+
+        /**
+         * The wrapped SystemPermissionSet.
+         */
+        private final SystemPermissionSet permissions;
+
+        /**
+         * Creates a new InvalidatingSystemPermissionSet which wraps the given
+         * SystemPermissionSet.
+         *
+         * @param permissions
+         *     The SystemPermissionSet to wrap.
+         */
+        public InvalidatingSystemPermissionSet(SystemPermissionSet permissions) {
+            this.permissions = permissions;
+        }
+
+        @Override
+        public boolean hasPermission(SystemPermission.Type permission)
+                throws GuacamoleException {
+            return permissions.hasPermission(permission);
+        }
+
+        @Override
+        public void addPermission(SystemPermission.Type permission)
+                throws GuacamoleException {
+            try {
+                permissions.addPermission(permission);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public void removePermission(SystemPermission.Type permission)
+                throws GuacamoleException {
+            try {
+                permissions.removePermission(permission);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public Set<SystemPermission> getPermissions() throws GuacamoleException {
+            return permissions.getPermissions();
+        }
+
+        @Override
+        public void addPermissions(Set<SystemPermission> permissions)
+                throws GuacamoleException {
+            try {
+                this.permissions.addPermissions(permissions);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public void removePermissions(Set<SystemPermission> permissions)
+                throws GuacamoleException {
+            try {
+                this.permissions.removePermissions(permissions);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+    }
+
+    /**
+     * ObjectPermissionSet implementation which invalidates the cached
+     * ADMINISTER permissions of the user accessing this object whenever the
+     * wrapped set is modified.
+     */
+    private class InvalidatingObjectPermissionSet implements ObjectPermissionSet {
+
+        /**
+         * The wrapped ObjectPermissionSet.
+         */
+        private final ObjectPermissionSet permissions;
+
+        /**
+         * Creates a new InvalidatingObjectPermissionSet which wraps the given
+         * ObjectPermissionSet.
+         *
+         * @param permissions
+         *     The ObjectPermissionSet to wrap.
+         */
+        public InvalidatingObjectPermissionSet(ObjectPermissionSet permissions) {
+            this.permissions = permissions;
+        }
+
+        @Override
+        public boolean hasPermission(ObjectPermission.Type permission,
+                String identifier) throws GuacamoleException {
+            return permissions.hasPermission(permission, identifier);
+        }
+
+        @Override
+        public void addPermission(ObjectPermission.Type permission,
+                String identifier) throws GuacamoleException {
+            try {
+                permissions.addPermission(permission, identifier);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public void removePermission(ObjectPermission.Type permission,
+                String identifier) throws GuacamoleException {
+            try {
+                permissions.removePermission(permission, identifier);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public Collection<String> getAccessibleObjects(
+                Collection<ObjectPermission.Type> permissions,
+                Collection<String> identifiers) throws GuacamoleException {
+            return this.permissions.getAccessibleObjects(permissions, identifiers);
+        }
+
+        @Override
+        public Set<ObjectPermission> getPermissions() throws GuacamoleException {
+            return permissions.getPermissions();
+        }
+
+        @Override
+        public void addPermissions(Set<ObjectPermission> permissions)
+                throws GuacamoleException {
+            try {
+                this.permissions.addPermissions(permissions);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public void removePermissions(Set<ObjectPermission> permissions)
+                throws GuacamoleException {
+            try {
+                this.permissions.removePermissions(permissions);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+    }
+
+    /**
+     * RelatedObjectSet implementation which invalidates the cached
+     * ADMINISTER permissions of the user accessing this object whenever the
+     * wrapped set is modified, as changing the groups of that user may
+     * change their effective permissions.
+     */
+    private class InvalidatingRelatedObjectSet implements RelatedObjectSet {
+
+        /**
+         * The wrapped RelatedObjectSet.
+         */
+        private final RelatedObjectSet objects;
+
+        /**
+         * Creates a new InvalidatingRelatedObjectSet which wraps the given
+         * RelatedObjectSet.
+         *
+         * @param objects
+         *     The RelatedObjectSet to wrap.
+         */
+        public InvalidatingRelatedObjectSet(RelatedObjectSet objects) {
+            this.objects = objects;
+        }
+
+        @Override
+        public Set<String> getObjects() throws GuacamoleException {
+            return objects.getObjects();
+        }
+
+        @Override
+        public void addObjects(Set<String> identifiers) throws GuacamoleException {
+            try {
+                objects.addObjects(identifiers);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+        @Override
+        public void removeObjects(Set<String> identifiers) throws GuacamoleException {
+            try {
+                objects.removeObjects(identifiers);
+            }
+            finally {
+                userContext.getAdministerPermissions().invalidate();
+            }
+        }
+
+    }
 
     /**
      * Creates a new RestrictedUser which wraps the given user. Any
@@ -87,7 +305,8 @@ public class RestrictedExternalUser extends DelegatingUser {
      * view or set attributes which implement restrictions defined by this
      * extension. A user may view and manipulate the restrictions of other
      * users only if they have ADMINISTER permission on that user or general,
-     * system-wide ADMINISTER permission.
+     * system-wide ADMINISTER permission. Permissions are read through the
+     * cache of the UserContext, and so are not reread for each user.
      *
      * @return
      *     true if the user accessing this user object should be able to view
@@ -95,26 +314,52 @@ public class RestrictedExternalUser extends DelegatingUser {
      *     by this extension, false otherwise.
      */
     private boolean canAccessRestrictedAttributes() {
+        return userContext.getAdministerPermissions().canAdminister(getIdentifier());
+    }
 
-        User self = userContext.self();
+    /**
+     * Returns whether this user object represents the user accessing it,
+     * such that changes to its permissions affect the cached ADMINISTER
+     * permissions of the UserContext.
+     *
+     * @return
+     *     true if this user object represents the user accessing it, false
+     *     otherwise.
+     */
+    private boolean isSelf() {
+        return getIdentifier().equals(userContext.self().getIdentifier());
+    }
 
-        // Attempt to determine whether the user has ADMINISTER permission
-        try {
-            Permissions permissions = userContext.self().getEffectivePermissions();
-            return permissions.getSystemPermissions().hasPermission(SystemPermission.Type.ADMINISTER)
-                    || permissions.getUserPermissions().hasPermission(ObjectPermission.Type.ADMINISTER, getIdentifier());
-        }
+    @Override
+    public SystemPermissionSet getSystemPermissions() throws GuacamoleException {
 
-        // Assume no permissions if read fails
-        catch (GuacamoleException e) {
-            logger.warn("Assuming no administrative permissions for user "
-                    + "\"{}\" accessing user \"{}\". An error within the "
-                    + "extension storing the user being accessed prevents "
-                    + "reading permissions: {}.", self.getIdentifier(),
-                    getIdentifier(), e.getMessage());
-            logger.debug("Unable to read user/system permissions.", e);
-            return false;
-        }
+        SystemPermissionSet permissions = super.getSystemPermissions();
+        if (!isSelf())
+            return permissions;
+
+        return new InvalidatingSystemPermissionSet(permissions);
+
+    }
+
+    @Override
+    public ObjectPermissionSet getUserPermissions() throws GuacamoleException {
+
+        ObjectPermissionSet permissions = super.getUserPermissions();
+        if (!isSelf())
+            return permissions;
+
+        return new InvalidatingObjectPermissionSet(permissions);
+
+    }
+
+    @Override
+    public RelatedObjectSet getUserGroups() throws GuacamoleException {
+
+        RelatedObjectSet groups = super.getUserGroups();
+        if (!isSelf())
+            return groups;
+
+        return new InvalidatingRelatedObjectSet(groups);
 
     }
 
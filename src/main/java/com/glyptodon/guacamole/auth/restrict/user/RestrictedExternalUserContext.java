@@ -29,17 +29,22 @@ import com.glyptodon.guacamole.auth.restrict.Restriction;
 import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
 import com.glyptodon.guacamole.auth.restrict.connection.RestrictedExternalConnection;
 import com.glyptodon.guacamole.auth.restrict.connection.RestrictedExternalConnectionGroup;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import org.apache.guacamole.form.Form;
 import org.apache.guacamole.net.auth.Connection;
 import org.apache.guacamole.net.auth.ConnectionGroup;
 import org.apache.guacamole.net.auth.DecoratingDirectory;
 import org.apache.guacamole.net.auth.DelegatingUserContext;
 import org.apache.guacamole.net.auth.Directory;
+import org.apache.guacamole.net.auth.Identifiable;
 import org.apache.guacamole.net.auth.User;
 import org.apache.guacamole.net.auth.UserContext;
 
@@ -56,7 +61,21 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
      */
     private static final Form RESTRICTIONS = new Form("addl-restrict", Arrays.asList(
         Restriction.DISALLOW_CONCURRENT.asField(),
-        Restriction.FORCE_READ_ONLY.asField()
+        Restriction.FORCE_READ_ONLY.asField(),
+        Restriction.MAX_CONCURRENT.asField(),
+        Restriction.MAX_SESSIONS.asField(),
+        Restriction.ALLOWED_OPCODES.asField(),
+        Restriction.MOUSE_COALESCE_WINDOW.asField(),
+        Restriction.INPUT_RATE.asField(),
+        Restriction.INPUT_BURST.asField(),
+        Restriction.DROP_AUDIO.asField(),
+        Restriction.IDLE_TIMEOUT.asField(),
+        Restriction.MAX_SESSION_DURATION.asField(),
+        Restriction.MAX_DISPLAY_WIDTH.asField(),
+        Restriction.MAX_DISPLAY_HEIGHT.asField(),
+        Restriction.MAX_DISPLAY_DPI.asField(),
+        Restriction.ALLOWED_IMAGE_TYPES.asField(),
+        Restriction.DROP_VIDEO.asField()
     ));
 
     /**
@@ -66,9 +85,96 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
     private final ConnectionManager manager;
 
     /**
-     * The restrictions that apply to the wrapped UserContext.
+     * The restrictions that apply to the wrapped UserContext, along with their
+     * values.
      */
-    private final Set<Restriction> restrictions;
+    private final Map<Restriction, String> restrictions;
+
+    /**
+     * The cached ADMINISTER permissions of the user of this UserContext.
+     */
+    private final AdministerPermissionCache permissions;
+
+    /**
+     * A directory of the wrapped UserContext along with its decorated form,
+     * such that the decorated form may be reused for as long as the wrapped
+     * UserContext returns the same directory.
+     *
+     * @param <ObjectType>
+     *     The type of objects stored within the directory.
+     */
+    private static class CachedDirectory<ObjectType extends Identifiable> {
+
+        /**
+         * The directory of the wrapped UserContext.
+         */
+        private final Directory<ObjectType> directory;
+
+        /**
+         * The decorated form of the directory.
+         */
+        private final Directory<ObjectType> decorated;
+
+        /**
+         * Creates a new CachedDirectory pairing the given directory with its
+         * decorated form.
+         *
+         * @param directory
+         *     The directory of the wrapped UserContext.
+         *
+         * @param decorated
+         *     The decorated form of the given directory.
+         */
+        public CachedDirectory(Directory<ObjectType> directory,
+                Directory<ObjectType> decorated) {
+            this.directory = directory;
+            this.decorated = decorated;
+        }
+
+    }
+
+    /**
+     * The most recently decorated user directory, if any.
+     */
+    private final AtomicReference<CachedDirectory<User>> userDirectory = new AtomicReference<>();
+
+    /**
+     * The most recently decorated connection group directory, if any.
+     */
+    private final AtomicReference<CachedDirectory<ConnectionGroup>> connectionGroupDirectory = new AtomicReference<>();
+
+    /**
+     * The most recently decorated connection directory, if any.
+     */
+    private final AtomicReference<CachedDirectory<Connection>> connectionDirectory = new AtomicReference<>();
+
+    /**
+     * The maximum number of wrappers that may be held within each cache of
+     * decorated objects, regardless of whether those wrappers are still in
+     * use.
+     */
+    static final int DECORATED_CACHE_SIZE = 1024;
+
+    /**
+     * The RestrictedExternalConnection most recently created for each
+     * connection of the wrapped UserContext, keyed by the identity of that
+     * connection. Wrappers are weakly referenced, such that each entry is
+     * discarded along with the last reference to its wrapper held outside
+     * this cache. Extensions which return new connection objects for every
+     * request therefore cannot fill this cache with stale entries, and the
+     * number of entries is additionally capped at DECORATED_CACHE_SIZE.
+     */
+    private final Cache<Connection, Connection> connections = CacheBuilder.newBuilder()
+            .weakKeys().weakValues().maximumSize(DECORATED_CACHE_SIZE).build();
+
+    /**
+     * The RestrictedExternalConnectionGroup most recently created for each
+     * connection group of the wrapped UserContext, keyed by the identity of
+     * that connection group. Entries are weakly referenced and capped exactly
+     * as within the cache of connections.
+     */
+    private final Cache<ConnectionGroup, ConnectionGroup> connectionGroups = CacheBuilder.newBuilder()
+            .weakKeys().weakValues().maximumSize(DECORATED_CACHE_SIZE).build();
 
     /**
      * Creates a new RestrictedExternalUserContext which wraps the given
@@ -79,16 +185,19 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
      *     connection usage within this user context.
      *
      * @param restrictions
-     *     The restrictions to apply to the given UserContext.
+     *     A map of the restrictions to apply to the given UserContext to the
+     *     values of those restrictions.
      *
      * @param userContext
      *     The UserContext restrict access to.
      */
     public RestrictedExternalUserContext(ConnectionManager manager,
-            Set<Restriction> restrictions, UserContext userContext) {
+            Map<Restriction, String> restrictions, UserContext userContext) {
         super(userContext);
         this.manager = manager;
-        this.restrictions = restrictions;
+        this.restrictions = Collections.unmodifiableMap(restrictions);
+        this.permissions = new AdministerPermissionCache(userContext.self(),
+                manager.getPermissionCacheStatistics());
     }
 
     /**
@@ -104,14 +213,133 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
         return manager;
     }
 
+    /**
+     * Returns the cached ADMINISTER permissions of the user of this
+     * UserContext.
+     *
+     * @return
+     *     The cached ADMINISTER permissions of the user of this UserContext.
+     */
+    public AdministerPermissionCache getAdministerPermissions() {
+        return permissions;
+    }
+
     @Override
     public Set<Restriction> getRestrictions() {
-        return restrictions;
+        return restrictions.keySet();
     }
 
     @Override
-    public Directory<User> getUserDirectory() throws GuacamoleException {
-        return new DecoratingDirectory<User>(super.getUserDirectory()) {
+    public Map<Restriction, String> getRestrictionValues() {
+        return restrictions;
+    }
+
+    /**
+     * Returns the number of decorated connections and connection groups
+     * currently held by this UserContext, including any which are no longer
+     * referenced but have not yet been discarded.
+     *
+     * @return
+     *     The number of decorated connections and connection groups currently
+     *     cached.
+     */
+    long getDecoratedObjectCount() {
+        return connections.size() + connectionGroups.size();
+    }
+
+    /**
+     * Returns the decorated form of the given directory, reusing the
+     * decorated directory held by the given cache if that directory decorates
+     * the same instance. Otherwise, a new decorated directory is created and
+     * cached in place of the old. Concurrent callers may each create a new
+     * decorated directory, in which case all are equally valid and only one
+     * is retained.
+     *
+     * @param <ObjectType>
+     *     The type of objects stored within the directory.
+     *
+     * @param cache
+     *     The cache holding the most recently decorated directory.
+     *
+     * @param directory
+     *     The directory to decorate.
+     *
+     * @param decorator
+     *     The function which creates a new decorated directory from the
+     *     given directory.
+     *
+     * @return
+     *     The decorated form of the given directory.
+     */
+    private static <ObjectType extends Identifiable> Directory<ObjectType> getDecoratedDirectory(
+            AtomicReference<CachedDirectory<ObjectType>> cache,
+            Directory<ObjectType> directory,
+            Function<Directory<ObjectType>, Directory<ObjectType>> decorator) {
+
+        CachedDirectory<ObjectType> cached = cache.get();
+        if (cached != null && cached.directory == directory)
+            return cached.decorated;
+
+        CachedDirectory<ObjectType> decorated = new CachedDirectory<>(directory,
+                decorator.apply(directory));
+
+        cache.compareAndSet(cached, decorated);
+        return decorated.decorated;
+
+    }
+
+    /**
+     * Returns the decorated form of the given object, reusing the decorated
+     * object held by the given cache for that same object instance, if any.
+     * Otherwise, a new decorated object is created and cached.
+     *
+     * @param <ObjectType>
+     *     The type of object being decorated.
+     *
+     * @param cache
+     *     The cache holding decorated objects, keyed by the identity of the
+     *     objects they decorate.
+     *
+     * @param object
+     *     The object to decorate.
+     *
+     * @param decorator
+     *     The function which creates a new decorated object from the given
+     *     object.
+     *
+     * @return
+     *     The decorated form of the given object.
+     */
+    private static <ObjectType> ObjectType getDecoratedObject(
+            Cache<ObjectType, ObjectType> cache, ObjectType object,
+            Function<ObjectType, ObjectType> decorator) {
+
+        ObjectType decorated = cache.getIfPresent(object);
+        if (decorated != null)
+            return decorated;
+
+        decorated = decorator.apply(object);
+
+        // Prefer any wrapper created concurrently, such that all callers
+        // share the same wrapper
+        ObjectType existing = cache.asMap().putIfAbsent(object, decorated);
+        return existing != null ? existing : decorated;
+
+    }
+
+    /**
+     * Creates a new directory which decorates each user within the given
+     * directory with RestrictedExternalUser.
+     *
+     * @param directory
+     *     The directory to decorate.
+     *
+     * @return
+     *     A new directory which decorates each user within the given
+     *     directory.
+     */
+    private Directory<User> decorateUserDirectory(Directory<User> directory) {
+        return new DecoratingDirectory<User>(directory) {
 
             @Override
             protected User decorate(User object)
@@ -126,18 +354,54 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
                 return ((RestrictedExternalUser) object).getUnrestrictedUser();
             }
 
+            @Override
+            public void add(User object) throws GuacamoleException {
+
+                // Creating a user typically grants ADMINISTER permission for
+                // that user to its creator
+                try {
+                    super.add(object);
+                }
+                finally {
+                    permissions.invalidate();
+                }
+
+            }
+
+            @Override
+            public void remove(String identifier) throws GuacamoleException {
+                try {
+                    super.remove(identifier);
+                }
+                finally {
+                    permissions.invalidate();
+                }
+            }
+
         };
     }
 
-    @Override
-    public Directory<ConnectionGroup> getConnectionGroupDirectory()
-            throws GuacamoleException {
-        return new DecoratingDirectory<ConnectionGroup>(super.getConnectionGroupDirectory()) {
+    /**
+     * Creates a new directory which decorates each connection group within
+     * the given directory with RestrictedExternalConnectionGroup, reusing
+     * any existing wrapper of the same connection group. Connection groups
+     * retrieved in bulk are decorated only as they are iterated.
+     *
+     * @param directory
+     *     The directory to decorate.
+     *
+     * @return
+     *     A new directory which decorates each connection group within the
+     *     given directory.
+     */
+    private Directory<ConnectionGroup> decorateConnectionGroupDirectory(
+            Directory<ConnectionGroup> directory) {
+        return new LazyDecoratingDirectory<ConnectionGroup>(directory) {
 
             @Override
-            protected ConnectionGroup decorate(ConnectionGroup object)
-                    throws GuacamoleException {
-                return new RestrictedExternalConnectionGroup(RestrictedExternalUserContext.this, object);
+            protected ConnectionGroup decorate(ConnectionGroup object) {
+                return getDecoratedObject(connectionGroups, object, delegate ->
+                        new RestrictedExternalConnectionGroup(RestrictedExternalUserContext.this, delegate));
             }
 
             @Override
@@ -150,15 +414,27 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
         };
     }
 
-    @Override
-    public Directory<Connection> getConnectionDirectory()
-            throws GuacamoleException {
-        return new DecoratingDirectory<Connection>(super.getConnectionDirectory()) {
+    /**
+     * Creates a new directory which decorates each connection within the
+     * given directory with RestrictedExternalConnection, reusing any existing
+     * wrapper of the same connection. Connections retrieved in bulk are
+     * decorated only as they are iterated.
+     *
+     * @param directory
+     *     The directory to decorate.
+     *
+     * @return
+     *     A new directory which decorates each connection within the given
+     *     directory.
+     */
+    private Directory<Connection> decorateConnectionDirectory(
+            Directory<Connection> directory) {
+        return new LazyDecoratingDirectory<Connection>(directory) {
 
             @Override
-            protected Connection decorate(Connection object)
-                    throws GuacamoleException {
-                return new RestrictedExternalConnection(RestrictedExternalUserContext.this, object);
+            protected Connection decorate(Connection object) {
+                return getDecoratedObject(connections, object, delegate ->
+                        new RestrictedExternalConnection(RestrictedExternalUserContext.this, delegate));
             }
 
             @Override
@@ -171,6 +447,28 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
         };
     }
 
+    @Override
+    public Directory<User> getUserDirectory() throws GuacamoleException {
+        return getDecoratedDirectory(userDirectory, super.getUserDirectory(),
+                this::decorateUserDirectory);
+    }
+
+    @Override
+    public Directory<ConnectionGroup> getConnectionGroupDirectory()
+            throws GuacamoleException {
+        return getDecoratedDirectory(connectionGroupDirectory,
+                super.getConnectionGroupDirectory(),
+                this::decorateConnectionGroupDirectory);
+    }
+
+    @Override
+    public Directory<Connection> getConnectionDirectory()
+            throws GuacamoleException {
+        return getDecoratedDirectory(connectionDirectory,
+                super.getConnectionDirectory(),
+                this::decorateConnectionDirectory);
+    }
+
     /**
      * Returns a collection of Form objects which includes a Form describing
      * the custom attributes used by this extension. The Form objects from
@@ -193,9 +491,12 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
     }
 
     /**
-     * Filters the given map of attribute name/value pairs, returning a
-     * potentially new map which contains only the attributes that the
-     * user has permission to view or modify.
+     * Filters the given map of attribute name/value pairs, returning a view
+     * of that map which contains only the attributes that the user has
+     * permission to view or modify. If the user has permission, all
+     * restriction attributes are present in the view, with null values where
+     * absent from the given map. The given map is not copied unless the
+     * returned view is modified.
      *
      * @param isAdmin
      *     Whether the user has permission to view or modify the custom
@@ -210,24 +511,7 @@ public class RestrictedExternalUserContext extends DelegatingUserContext
      */
     public Map<String, String> filterAttributes(boolean isAdmin,
             Map<String, String> attributes) {
-
-        Map<String, String> filteredAttributes = new HashMap<>(attributes);
-        for (Restriction restriction : Restriction.values()) {
-
-            // Ensure restriction attributes are always defined if user has
-            // administrative permissions
-            if (isAdmin)
-                filteredAttributes.putIfAbsent(restriction.getAttributeName(), null);
-
-            // If user does not have administrative permissions, block access
-            // to all restriction attributes
-            else
-                filteredAttributes.remove(restriction.getAttributeName());
-
-        }
-
-        return filteredAttributes;
-
+        return new RestrictionAttributeMap(attributes, isAdmin);
     }
 
     @Override
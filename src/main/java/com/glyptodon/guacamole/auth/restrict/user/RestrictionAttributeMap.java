@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Map of attribute name/value pairs which overlays the attributes of an
+ * underlying map without copying it, either hiding the attributes associated
+ * with restrictions or ensuring that those attributes are always present.
+ * Attributes which are added by the overlay have null values.
+ *
+ * The underlying map is never modified. Modifying this map through put(),
+ * putAll(), remove(), or clear() first copies the visible attributes into a
+ * private HashMap, after which this map behaves as that HashMap. Modification
+ * through the key, value, or entry views of a map which has not yet been
+ * copied is not supported.
+ */
+public class RestrictionAttributeMap extends AbstractMap<String, String> {
+
+    /**
+     * The names of the attributes associated with all restrictions.
+     */
+    private static final Set<String> ATTRIBUTE_NAMES = Collections.unmodifiableSet(
+            Arrays.stream(Restriction.values())
+                    .map(Restriction::getAttributeName)
+                    .collect(Collectors.toSet()));
+
+    /**
+     * The map being overlaid.
+     */
+    private final Map<String, String> attributes;
+
+    /**
+     * Whether restriction attributes are exposed and always present (true)
+     * or hidden (false).
+     */
+    private final boolean exposed;
+
+    /**
+     * The private copy of the visible attributes, created upon first
+     * modification, or null if this map has not been modified.
+     */
+    private Map<String, String> copy;
+
+    /**
+     * The entry set of this map, if already created.
+     */
+    private Set<Entry<String, String>> entrySet;
+
+    /**
+     * Creates a new RestrictionAttributeMap which overlays the given map.
+     *
+     * @param attributes
+     *     The map of attribute name/value pairs to overlay.
+     *
+     * @param exposed
+     *     true if restriction attributes should always be present, with null
+     *     values where absent from the given map, false if restriction
+     *     attributes should be hidden.
+     */
+    public RestrictionAttributeMap(Map<String, String> attributes,
+            boolean exposed) {
+        this.attributes = attributes;
+        this.exposed = exposed;
+    }
+
+    /**
+     * Returns whether the attribute having the given name is associated with
+     * a restriction.
+     *
+     * @param name
+     *     The name of the attribute to check.
+     *
+     * @return
+     *     true if the attribute is associated with a restriction, false
+     *     otherwise.
+     */
+    private static boolean isRestrictionAttribute(Object name) {
+        return ATTRIBUTE_NAMES.contains(name);
+    }
+
+    /**
+     * Returns the private copy of the visible attributes, creating that copy
+     * if it does not yet exist.
+     *
+     * @return
+     *     The private copy of the visible attributes.
+     */
+    private Map<String, String> getCopy() {
+
+        if (copy == null) {
+            Map<String, String> visible = new HashMap<>(Math.max(16, size() * 2));
+            for (Entry<String, String> entry : entrySet())
+                visible.put(entry.getKey(), entry.getValue());
+            copy = visible;
+        }
+
+        return copy;
+
+    }
+
+    @Override
+    public String get(Object key) {
+
+        if (copy != null)
+            return copy.get(key);
+
+        // Exposed restriction attributes which are absent have null values,
+        // as do hidden attributes
+        if (!exposed && isRestrictionAttribute(key))
+            return null;
+
+        return attributes.get(key);
+
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+
+        if (copy != null)
+            return copy.containsKey(key);
+
+        if (isRestrictionAttribute(key))
+            return exposed;
+
+        return attributes.containsKey(key);
+
+    }
+
+    @Override
+    public int size() {
+
+        if (copy != null)
+            return copy.size();
+
+        // Count restriction attributes present within the underlying map
+        int present = 0;
+        for (String name : ATTRIBUTE_NAMES) {
+            if (attributes.containsKey(name))
+                present++;
+        }
+
+        return exposed
+                ? attributes.size() - present + ATTRIBUTE_NAMES.size()
+                : attributes.size() - present;
+
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return getCopy().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return getCopy().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        getCopy().clear();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+
+        if (copy != null)
+            return copy.entrySet();
+
+        if (entrySet == null)
+            entrySet = new EntrySet();
+
+        return entrySet;
+
+    }
+
+    /**
+     * Read-only view of the entries of a RestrictionAttributeMap which has
+     * not been modified.
+     */
+    private class EntrySet extends AbstractSet<Entry<String, String>> {
+
+        @Override
+        public int size() {
+            return RestrictionAttributeMap.this.size();
+        }
+
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return new EntryIterator();
+        }
+
+    }
+
+    /**
+     * Iterator over the entries of a RestrictionAttributeMap which has not
+     * been modified. The entries of the underlying map are visited first,
+     * skipping hidden restriction attributes, followed by any exposed
+     * restriction attributes absent from the underlying map. Entries of the
+     * underlying map are returned as immutable copies, such that the
+     * underlying map cannot be modified through Entry.setValue().
+     */
+    private class EntryIterator implements Iterator<Entry<String, String>> {
+
+        /**
+         * Iterator over the entries of the underlying map.
+         */
+        private final Iterator<Entry<String, String>> entries = attributes.entrySet().iterator();
+
+        /**
+         * Iterator over the names of all restriction attributes, used once
+         * the entries of the underlying map are exhausted, or null if
+         * restriction attributes are hidden.
+         */
+        private final Iterator<String> names = exposed ? ATTRIBUTE_NAMES.iterator() : null;
+
+        /**
+         * The next entry to return, or null if the next entry has not yet
+         * been found.
+         */
+        private Entry<String, String> next;
+
+        /**
+         * Locates the next entry to return, if any.
+         *
+         * @return
+         *     The next entry to return, or null if no entries remain.
+         */
+        private Entry<String, String> findNext() {
+
+            while (entries.hasNext()) {
+                Entry<String, String> entry = entries.next();
+                if (exposed || !isRestrictionAttribute(entry.getKey()))
+                    return new SimpleImmutableEntry<>(entry);
+            }
+
+            while (names != null && names.hasNext()) {
+                String name = names.next();
+                if (!attributes.containsKey(name))
+                    return new SimpleImmutableEntry<>(name, null);
+            }
+
+            return null;
+
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null)
+                next = findNext();
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            Entry<String, String> entry = next;
+            next = null;
+            return entry;
+
+        }
+
+    }
+
+}
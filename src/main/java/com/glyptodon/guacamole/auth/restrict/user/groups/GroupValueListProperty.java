@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user.groups;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.properties.GuacamoleProperty;
+
+/**
+ * A property whose value is a comma-delimited list of group name/value pairs,
+ * where each group name is separated from its value by an equals sign ("=").
+ * Whitespace preceding any name is ignored, however whitespace after a name is
+ * interpreted as part of the name. If the same group is listed more than once,
+ * the last value listed takes effect.
+ */
+public abstract class GroupValueListProperty implements GuacamoleProperty<Map<String, String>> {
+
+    /**
+     * Pattern which matches the delimiters between name/value pairs.
+     */
+    private static final Pattern DELIMITER = Pattern.compile(",\\s*");
+
+    @Override
+    public Map<String, String> parseValue(String values) throws GuacamoleException {
+
+        // If no property provided, return null.
+        if (values == null)
+            return null;
+
+        Map<String, String> groupValues = new LinkedHashMap<>();
+        for (String pair : DELIMITER.split(values)) {
+
+            // Ignore empty entries (such as those resulting from trailing
+            // commas)
+            if (pair.isEmpty())
+                continue;
+
+            // Group names may themselves contain "=", so the value is
+            // everything following the last "="
+            int separator = pair.lastIndexOf('=');
+            if (separator <= 0)
+                throw new GuacamoleServerException("Property \"" + getName()
+                        + "\" must contain a comma-delimited list of "
+                        + "\"GROUP=VALUE\" pairs.");
+
+            groupValues.put(pair.substring(0, separator), pair.substring(separator + 1).trim());
+
+        }
+
+        if (groupValues.isEmpty())
+            return null;
+
+        return groupValues;
+
+    }
+
+}
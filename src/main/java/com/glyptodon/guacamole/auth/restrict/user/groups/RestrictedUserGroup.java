@@ -24,10 +24,11 @@ package com.glyptodon.guacamole.auth.restrict.user.groups;
 
 import com.glyptodon.guacamole.auth.restrict.Restricted;
 import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.google.common.collect.Maps;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.EnumSet;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Set;
 import org.apache.guacamole.net.auth.simple.SimpleUserGroup;
@@ -40,9 +41,10 @@ public class RestrictedUserGroup extends SimpleUserGroup
         implements Restricted {
 
     /**
-     * The set of restrictions that should apply to members of this group.
+     * The restrictions that should apply to members of this group, along with
+     * their values.
      */
-    private final Set<Restriction> restrictions;
+    private final Map<Restriction, String> restrictions;
 
     /**
      * The map of attribute name/value pairs that corresponds to the
@@ -58,14 +60,30 @@ public class RestrictedUserGroup extends SimpleUserGroup
      *     The unique identifier to assign to this RestrictedUserGroup.
      *
      * @param restrictions
-     *     The restrictions that apply to members of this group.
+     *     A map of the restrictions that apply to members of this group to
+     *     the values of those restrictions.
      */
-    public RestrictedUserGroup(String identifier, Collection<Restriction> restrictions) {
+    public RestrictedUserGroup(String identifier, Map<Restriction, String> restrictions) {
         super(identifier);
-        this.restrictions = restrictions.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(restrictions));
+        this.restrictions = restrictions.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new EnumMap<>(restrictions));
         this.attributes = Collections.unmodifiableMap(Restriction.asAttributeMap(restrictions));
     }
 
+    /**
+     * Creates a new RestrictedUserGroup having the given unique identifier and
+     * associated restrictions. Each restriction is simply enabled, having the
+     * value Restriction.TRUTH_VALUE.
+     *
+     * @param identifier
+     *     The unique identifier to assign to this RestrictedUserGroup.
+     *
+     * @param restrictions
+     *     The restrictions that apply to members of this group.
+     */
+    public RestrictedUserGroup(String identifier, Collection<Restriction> restrictions) {
+        this(identifier, Maps.toMap(restrictions, restriction -> Restriction.TRUTH_VALUE));
+    }
+
     /**
      * Creates a new RestrictedUserGroup having the given unique identifier and
      * associated restrictions.
@@ -82,6 +100,11 @@ public class RestrictedUserGroup extends SimpleUserGroup
 
     @Override
     public Set<Restriction> getRestrictions() {
+        return restrictions.keySet();
+    }
+
+    @Override
+    public Map<Restriction, String> getRestrictionValues() {
         return restrictions;
     }
 
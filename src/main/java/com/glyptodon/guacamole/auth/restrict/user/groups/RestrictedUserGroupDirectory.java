@@ -23,14 +23,16 @@
 package com.glyptodon.guacamole.auth.restrict.user.groups;
 
 import com.glyptodon.guacamole.auth.restrict.Restriction;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.glyptodon.guacamole.auth.restrict.connection.OpcodeSet;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.EnumSet;
-import java.util.Set;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.stream.Collectors;
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
 import org.apache.guacamole.environment.Environment;
 import org.apache.guacamole.net.auth.AuthenticatedUser;
 import org.apache.guacamole.net.auth.UserGroup;
@@ -55,6 +57,32 @@ public class RestrictedUserGroupDirectory extends SimpleDirectory<UserGroup> {
 
     };
 
+    /**
+     * The Guacamole property controlling the groups whose members should not
+     * receive audio from connections.
+     */
+    private static final GroupListProperty DROP_AUDIO_GROUPS = new GroupListProperty() {
+
+        @Override
+        public String getName() {
+            return "drop-audio-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the groups whose members should not
+     * receive video from connections.
+     */
+    private static final GroupListProperty DROP_VIDEO_GROUPS = new GroupListProperty() {
+
+        @Override
+        public String getName() {
+            return "drop-video-groups";
+        }
+
+    };
+
     /**
      * The Guacamole property controlling the group whose members should be
      * disallowed concurrent access.
@@ -68,6 +96,214 @@ public class RestrictedUserGroupDirectory extends SimpleDirectory<UserGroup> {
 
     };
 
+    /**
+     * The Guacamole property controlling the maximum number of users that may
+     * concurrently access any one connection or connection group when the
+     * members of specific groups are connecting.
+     */
+    private static final GroupValueListProperty MAX_CONCURRENT_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "max-concurrent-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the maximum number of connections
+     * and connection groups that the members of specific groups may have open
+     * at once.
+     */
+    private static final GroupValueListProperty MAX_SESSIONS_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "max-sessions-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling which instructions the members of
+     * specific groups may send to connections. The opcodes allowed for each
+     * group are separated by spaces.
+     */
+    private static final GroupValueListProperty ALLOWED_OPCODES_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "allowed-opcodes-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling which groups should have bursts of
+     * mouse motion coalesced, and the length of the coalescing window for
+     * each group in milliseconds.
+     */
+    private static final GroupValueListProperty MOUSE_COALESCE_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "mouse-coalesce-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling which groups should have idle
+     * connections closed, and the number of minutes without input after which
+     * the connections of members of each group are closed.
+     */
+    private static final GroupValueListProperty IDLE_TIMEOUT_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "idle-timeout-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling which groups should have their
+     * connections closed after a fixed amount of time, and the number of
+     * minutes that members of each group may keep a connection open.
+     */
+    private static final GroupValueListProperty MAX_SESSION_DURATION_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "max-session-duration-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the maximum display width, in
+     * pixels, that the members of specific groups may request.
+     */
+    private static final GroupValueListProperty MAX_DISPLAY_WIDTH_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "max-display-width-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the maximum display height, in
+     * pixels, that the members of specific groups may request.
+     */
+    private static final GroupValueListProperty MAX_DISPLAY_HEIGHT_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "max-display-height-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the maximum display resolution, in
+     * DPI, that the members of specific groups may request.
+     */
+    private static final GroupValueListProperty MAX_DISPLAY_DPI_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "max-display-dpi-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling which image formats the members of
+     * specific groups may receive. The mimetypes allowed for each group are
+     * separated by spaces.
+     */
+    private static final GroupValueListProperty ALLOWED_IMAGE_TYPES_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "allowed-image-types-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling which groups should have their input
+     * rate limited, and the number of "key" and "mouse" instructions per
+     * second that members of each group may send.
+     */
+    private static final GroupValueListProperty INPUT_RATE_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "input-rate-groups";
+        }
+
+    };
+
+    /**
+     * The Guacamole property controlling the number of "key" and "mouse"
+     * instructions that members of specific groups may send in a single burst
+     * before their input rate limit takes effect.
+     */
+    private static final GroupValueListProperty INPUT_BURST_GROUPS = new GroupValueListProperty() {
+
+        @Override
+        public String getName() {
+            return "input-burst-groups";
+        }
+
+    };
+
+    /**
+     * Adds the given restriction to each group in the given map of group
+     * names to restriction values, combining the given values with any value
+     * already associated with that group and restriction.
+     *
+     * @param groupRestrictions
+     *     The table of group names and restrictions to their corresponding
+     *     values that should receive the restriction.
+     *
+     * @param property
+     *     The Guacamole property that defined the given map of group names to
+     *     values.
+     *
+     * @param restriction
+     *     The restriction to add.
+     *
+     * @param groupValues
+     *     A map of the names of all groups that the restriction should apply
+     *     to, to the value of the restriction for that group.
+     *
+     * @throws GuacamoleException
+     *     If any of the given values is not valid for the given restriction.
+     */
+    private static void addRestriction(Table<String, Restriction, String> groupRestrictions,
+            GroupValueListProperty property, Restriction restriction,
+            Map<String, String> groupValues) throws GuacamoleException {
+
+        for (Map.Entry<String, String> groupValue : groupValues.entrySet()) {
+
+            String identifier = groupValue.getKey();
+            String value = restriction.parseValue(groupValue.getValue());
+            if (value == null)
+                throw new GuacamoleServerException("Value \"" + groupValue.getValue()
+                        + "\" of group \"" + identifier + "\" within property \""
+                        + property.getName() + "\" is not valid.");
+
+            groupRestrictions.put(identifier, restriction,
+                    restriction.combine(groupRestrictions.get(identifier, restriction), value));
+
+        }
+
+    }
+
     /**
      * Returns a collection of all user groups that should be exposed by this
      * directory. These groups are dictated by properties within
@@ -87,19 +323,85 @@ public class RestrictedUserGroupDirectory extends SimpleDirectory<UserGroup> {
     private static Collection<UserGroup> getPredefinedUserGroups(Environment environment)
             throws GuacamoleException {
 
-        Multimap<String, Restriction> groupRestrictions = HashMultimap.create();
+        Table<String, Restriction, String> groupRestrictions = HashBasedTable.create();
 
         // Add read-only restriction for all specified groups
         for (String identifier : environment.getProperty(READ_ONLY_GROUPS, Collections.emptyList()))
-            groupRestrictions.put(identifier, Restriction.FORCE_READ_ONLY);
+            groupRestrictions.put(identifier, Restriction.FORCE_READ_ONLY, Restriction.TRUTH_VALUE);
+
+        // Add audio restriction for all specified groups
+        for (String identifier : environment.getProperty(DROP_AUDIO_GROUPS, Collections.emptyList()))
+            groupRestrictions.put(identifier, Restriction.DROP_AUDIO, Restriction.TRUTH_VALUE);
+
+        // Add video restriction for all specified groups
+        for (String identifier : environment.getProperty(DROP_VIDEO_GROUPS, Collections.emptyList()))
+            groupRestrictions.put(identifier, Restriction.DROP_VIDEO, Restriction.TRUTH_VALUE);
 
         // Add concurrent access restriction for all specified groups
         for (String identifier : environment.getProperty(DISALLOW_CONCURRENT_GROUPS, Collections.emptyList()))
-            groupRestrictions.put(identifier, Restriction.DISALLOW_CONCURRENT);
+            groupRestrictions.put(identifier, Restriction.DISALLOW_CONCURRENT, Restriction.TRUTH_VALUE);
+
+        // Add concurrent user limits for all specified groups
+        addRestriction(groupRestrictions, MAX_CONCURRENT_GROUPS, Restriction.MAX_CONCURRENT,
+                environment.getProperty(MAX_CONCURRENT_GROUPS, Collections.emptyMap()));
+
+        // Add per-user session limits for all specified groups
+        addRestriction(groupRestrictions, MAX_SESSIONS_GROUPS, Restriction.MAX_SESSIONS,
+                environment.getProperty(MAX_SESSIONS_GROUPS, Collections.emptyMap()));
+
+        // Add opcode policies for all specified groups
+        addRestriction(groupRestrictions, ALLOWED_OPCODES_GROUPS, Restriction.ALLOWED_OPCODES,
+                environment.getProperty(ALLOWED_OPCODES_GROUPS, Collections.emptyMap()));
+
+        // Compile each group's opcode policy now rather than upon connecting
+        for (Map.Entry<String, String> policy
+                : groupRestrictions.column(Restriction.ALLOWED_OPCODES).entrySet()) {
+            try {
+                OpcodeSet.precompile(policy.getValue());
+            }
+            catch (IllegalArgumentException e) {
+                throw new GuacamoleServerException("Opcodes of group \""
+                        + policy.getKey() + "\" within property \""
+                        + ALLOWED_OPCODES_GROUPS.getName() + "\" may list no "
+                        + "more than " + OpcodeSet.MAX_SIZE + " opcodes.", e);
+            }
+        }
+
+        // Add mouse coalescing windows for all specified groups
+        addRestriction(groupRestrictions, MOUSE_COALESCE_GROUPS, Restriction.MOUSE_COALESCE_WINDOW,
+                environment.getProperty(MOUSE_COALESCE_GROUPS, Collections.emptyMap()));
+
+        // Add input rate limits for all specified groups
+        addRestriction(groupRestrictions, INPUT_RATE_GROUPS, Restriction.INPUT_RATE,
+                environment.getProperty(INPUT_RATE_GROUPS, Collections.emptyMap()));
+
+        // Add input burst limits for all specified groups
+        addRestriction(groupRestrictions, INPUT_BURST_GROUPS, Restriction.INPUT_BURST,
+                environment.getProperty(INPUT_BURST_GROUPS, Collections.emptyMap()));
+
+        // Add idle timeouts for all specified groups
+        addRestriction(groupRestrictions, IDLE_TIMEOUT_GROUPS, Restriction.IDLE_TIMEOUT,
+                environment.getProperty(IDLE_TIMEOUT_GROUPS, Collections.emptyMap()));
+
+        // Add session duration limits for all specified groups
+        addRestriction(groupRestrictions, MAX_SESSION_DURATION_GROUPS, Restriction.MAX_SESSION_DURATION,
+                environment.getProperty(MAX_SESSION_DURATION_GROUPS, Collections.emptyMap()));
+
+        // Add display limits for all specified groups
+        addRestriction(groupRestrictions, MAX_DISPLAY_WIDTH_GROUPS, Restriction.MAX_DISPLAY_WIDTH,
+                environment.getProperty(MAX_DISPLAY_WIDTH_GROUPS, Collections.emptyMap()));
+        addRestriction(groupRestrictions, MAX_DISPLAY_HEIGHT_GROUPS, Restriction.MAX_DISPLAY_HEIGHT,
+                environment.getProperty(MAX_DISPLAY_HEIGHT_GROUPS, Collections.emptyMap()));
+        addRestriction(groupRestrictions, MAX_DISPLAY_DPI_GROUPS, Restriction.MAX_DISPLAY_DPI,
+                environment.getProperty(MAX_DISPLAY_DPI_GROUPS, Collections.emptyMap()));
+
+        // Add image format policies for all specified groups
+        addRestriction(groupRestrictions, ALLOWED_IMAGE_TYPES_GROUPS, Restriction.ALLOWED_IMAGE_TYPES,
+                environment.getProperty(ALLOWED_IMAGE_TYPES_GROUPS, Collections.emptyMap()));
 
         // Produce overall collection of defined groups, including any associated restrictions
-        return groupRestrictions.keySet().stream()
-                .map(identifier -> new RestrictedUserGroup(identifier, groupRestrictions.get(identifier)))
+        return groupRestrictions.rowKeySet().stream()
+                .map(identifier -> new RestrictedUserGroup(identifier, groupRestrictions.row(identifier)))
                 .collect(Collectors.toList());
 
     }
@@ -113,6 +415,69 @@ public class RestrictedUserGroupDirectory extends SimpleDirectory<UserGroup> {
      *         restricted to read-only access. By default, no groups are
      *         restricted.
      *
+     *     "drop-audio-groups" - The names of all groups which should not
+     *         receive audio from connections. By default, no groups are
+     *         restricted.
+     *
+     *     "drop-video-groups" - The names of all groups which should not
+     *         receive video from connections. By default, no groups are
+     *         restricted.
+     *
+     *     "disallow-concurrent-groups" - The names of all groups which should
+     *         be disallowed concurrent access. By default, no groups are
+     *         restricted.
+     *
+     *     "max-concurrent-groups" - Comma-delimited "GROUP=LIMIT" pairs
+     *         listing the maximum number of concurrent users of any one
+     *         connection or connection group that members of each group will
+     *         tolerate. By default, no groups are restricted.
+     *
+     *     "max-sessions-groups" - Comma-delimited "GROUP=LIMIT" pairs listing
+     *         the maximum number of connections and connection groups that
+     *         members of each group may have open at once. By default, no
+     *         groups are restricted.
+     *
+     *     "allowed-opcodes-groups" - Comma-delimited "GROUP=OPCODES" pairs
+     *         listing the space-separated opcodes of the only instructions
+     *         that members of each group may send to connections. By
+     *         default, no groups are restricted.
+     *
+     *     "mouse-coalesce-groups" - Comma-delimited "GROUP=WINDOW" pairs
+     *         listing the length of the window, in milliseconds, within which
+     *         mouse motion sent by members of each group is coalesced. By
+     *         default, no groups are restricted.
+     *
+     *     "input-rate-groups" - Comma-delimited "GROUP=RATE" pairs listing
+     *         the number of "key" and "mouse" instructions per second that
+     *         members of each group may send to any one connection. By
+     *         default, no groups are restricted.
+     *
+     *     "input-burst-groups" - Comma-delimited "GROUP=BURST" pairs listing
+     *         the number of "key" and "mouse" instructions that members of
+     *         each group may send in a single burst. By default, bursts are
+     *         limited to one second of input.
+     *
+     *     "idle-timeout-groups" - Comma-delimited "GROUP=MINUTES" pairs
+     *         listing the number of minutes that members of each group may
+     *         send no input before their connections are closed. By default,
+     *         no groups are restricted.
+     *
+     *     "max-session-duration-groups" - Comma-delimited "GROUP=MINUTES"
+     *         pairs listing the number of minutes that members of each group
+     *         may keep any one connection open. By default, no groups are
+     *         restricted.
+     *
+     *     "max-display-width-groups", "max-display-height-groups", and
+     *     "max-display-dpi-groups" - Comma-delimited "GROUP=LIMIT" pairs
+     *         listing the largest display width, height, and resolution that
+     *         members of each group may request when connecting. By default,
+     *         no groups are restricted.
+     *
+     *     "allowed-image-types-groups" - Comma-delimited "GROUP=MIMETYPES"
+     *         pairs listing the space-separated mimetypes of the only image
+     *         formats, other than PNG, that members of each group may
+     *         receive. By default, no groups are restricted.
+     *
      * @param environment
      *     The Environment to retrieve configuration information from.
      *
@@ -126,28 +491,32 @@ public class RestrictedUserGroupDirectory extends SimpleDirectory<UserGroup> {
 
     /**
      * Retrieves all restrictions which apply to the given AuthenticatedUser
-     * according to their effective group memberships.
+     * according to their effective group memberships, along with the values
+     * of those restrictions. If the same restriction applies through multiple
+     * groups, the most restrictive value takes effect.
      *
      * @param user
      *     The AuthenticatedUser to retrieve the applicable restrictions of.
      *
      * @return
-     *     A set of all restrictions that apply to the given AuthenticatedUser.
+     *     A map of all restrictions that apply to the given AuthenticatedUser
+     *     to their corresponding values.
      *
      * @throws GuacamoleException
      *     If the restrictions that apply to the given AuthenticatedUser cannot
      *     be determined due to an error.
      */
-    public Set<Restriction> getRestrictions(AuthenticatedUser user)
+    public Map<Restriction, String> getRestrictions(AuthenticatedUser user)
             throws GuacamoleException {
 
         // Retrieve all effective user groups
         Collection<UserGroup> groups = getAll(user.getEffectiveUserGroups());
 
         // Add restrictions of all effective user groups
-        EnumSet<Restriction> restrictions = EnumSet.noneOf(Restriction.class);
+        Map<Restriction, String> restrictions = new EnumMap<>(Restriction.class);
         for (UserGroup group : groups)
-            restrictions.addAll(((RestrictedUserGroup) group).getRestrictions());
+            ((RestrictedUserGroup) group).getRestrictionValues().forEach(
+                    (restriction, value) -> restrictions.merge(restriction, value, restriction::combine));
 
         return restrictions;
 
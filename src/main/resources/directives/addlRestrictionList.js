@@ -103,9 +103,10 @@ angular.module('manage').directive('addlRestrictionList', ['$injector',
 
             // Filter the set of user group attributes, producing a list of
             // only those attributes associated with "guacamole-auth-restrict"
-            // restrictions
+            // restrictions (boolean restrictions have the value "true", while
+            // all other restrictions have non-empty values)
             angular.forEach(userGroup.attributes, function addRestrictions(value, attribute) {
-                if (/^addl-restrict-/.test(attribute) && value === 'true')
+                if (/^addl-restrict-/.test(attribute) && value)
                     $scope.restrictions.push(attribute);
             });
 
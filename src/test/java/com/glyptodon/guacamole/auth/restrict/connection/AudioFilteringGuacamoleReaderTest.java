@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests AudioFilteringGuacamoleReader.
+ */
+public class AudioFilteringGuacamoleReaderTest {
+
+    /**
+     * The "ack" sent to refuse the audio stream having index 1.
+     */
+    private static final String REFUSE_1 = "3.ack,1.1,18.Audio is disabled.,3.783;";
+
+    /**
+     * The "ack" sent to refuse the audio stream having index 2.
+     */
+    private static final String REFUSE_2 = "3.ack,1.2,18.Audio is disabled.,3.783;";
+
+    /**
+     * GuacamoleReader which returns each of a series of chunks in order.
+     */
+    private static class ChunkReader implements GuacamoleReader {
+
+        /**
+         * The chunks not yet read.
+         */
+        private final Deque<char[]> chunks = new ArrayDeque<>();
+
+        /**
+         * Creates a new ChunkReader which returns the given chunks in order.
+         *
+         * @param chunks
+         *     The chunks to return.
+         */
+        public ChunkReader(char[]... chunks) {
+            this.chunks.addAll(Arrays.asList(chunks));
+        }
+
+        @Override
+        public boolean available() {
+            return !chunks.isEmpty();
+        }
+
+        @Override
+        public char[] read() {
+            return chunks.poll();
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() {
+            throw new UnsupportedOperationException("Only read() is used by these tests.");
+        }
+
+    }
+
+    /**
+     * The socket receiving each "ack" sent to the server.
+     */
+    private TestGuacamoleSocket socket;
+
+    /**
+     * Creates the socket used by each test.
+     */
+    @Before
+    public void setUp() {
+        socket = new TestGuacamoleSocket();
+    }
+
+    /**
+     * Creates a new AudioFilteringGuacamoleReader which filters the given
+     * chunks.
+     *
+     * @param chunks
+     *     The chunks to filter, in order.
+     *
+     * @return
+     *     A new AudioFilteringGuacamoleReader which filters the given chunks.
+     */
+    private GuacamoleReader filter(String... chunks) {
+
+        char[][] data = new char[chunks.length][];
+        for (int i = 0; i < chunks.length; i++)
+            data[i] = chunks[i].toCharArray();
+
+        return new AudioFilteringGuacamoleReader(new ChunkReader(data),
+                new SimpleGuacamoleTunnel(socket));
+
+    }
+
+    /**
+     * Reads the next chunk from the given reader as a string.
+     *
+     * @param reader
+     *     The reader to read from.
+     *
+     * @return
+     *     The next chunk, or null if no chunks remain.
+     *
+     * @throws GuacamoleException
+     *     If the chunk cannot be read.
+     */
+    private static String read(GuacamoleReader reader) throws GuacamoleException {
+        char[] chunk = reader.read();
+        return chunk != null ? new String(chunk) : null;
+    }
+
+    /**
+     * Verifies that the "audio", "blob", and "end" instructions of an audio
+     * stream are dropped when received in separate chunks, while data for
+     * other streams within the same chunks is kept.
+     */
+    @Test
+    public void testSplitAcrossChunks() throws Exception {
+
+        GuacamoleReader reader = filter(
+            "5.audio,1.1,9.audio/ogg;4.sync,1.0;",
+            "4.blob,1.1,4.AAAA;4.blob,1.2,4.BBBB;",
+            "4.blob,1.1,4.CCCC;3.end,1.1;3.end,1.2;"
+        );
+
+        assertEquals("4.sync,1.0;", read(reader));
+        assertEquals("4.blob,1.2,4.BBBB;", read(reader));
+        assertEquals("3.end,1.2;", read(reader));
+        assertNull(read(reader));
+
+        assertEquals(REFUSE_1, socket.getWritten());
+
+    }
+
+    /**
+     * Verifies that the index of a dropped audio stream may be reused by a
+     * non-audio stream once the audio stream ends, and by a later audio
+     * stream, which is refused in turn.
+     */
+    @Test
+    public void testStreamIndexReuse() throws Exception {
+
+        String image = "3.img,1.1,2.14,1.0,9.image/png,1.0,1.0;4.blob,1.1,4.AAAA;3.end,1.1;";
+
+        GuacamoleReader reader = filter(
+            "5.audio,1.1,9.audio/ogg;4.blob,1.1,4.AAAA;3.end,1.1;4.sync,1.0;",
+            image,
+            "5.audio,1.1,9.audio/ogg;4.blob,1.1,4.BBBB;3.end,1.1;4.sync,1.1;"
+        );
+
+        assertEquals("4.sync,1.0;", read(reader));
+        assertEquals(image, read(reader));
+        assertEquals("4.sync,1.1;", read(reader));
+
+        assertEquals(REFUSE_1 + REFUSE_1, socket.getWritten());
+
+    }
+
+    /**
+     * Verifies that chunks consisting entirely of audio are skipped rather
+     * than returned empty, and that the end of the data is still reported.
+     */
+    @Test
+    public void testAllAudioChunks() throws Exception {
+
+        GuacamoleReader reader = filter(
+            "5.audio,1.1,9.audio/ogg;",
+            "4.blob,1.1,4.AAAA;4.blob,1.1,4.BBBB;",
+            "4.sync,1.0;",
+            "3.end,1.1;"
+        );
+
+        assertEquals("4.sync,1.0;", read(reader));
+        assertNull(read(reader));
+
+    }
+
+    /**
+     * Verifies that exactly one "ack" is sent for each dropped audio stream,
+     * regardless of the amount of data received for that stream.
+     */
+    @Test
+    public void testOneAckPerStream() throws Exception {
+
+        GuacamoleReader reader = filter(
+            "5.audio,1.1,9.audio/ogg;5.audio,1.2,9.audio/ogg;"
+                + "4.blob,1.1,4.AAAA;4.blob,1.2,4.AAAA;4.blob,1.1,4.BBBB;"
+                + "4.blob,1.2,4.BBBB;3.end,1.1;3.end,1.2;4.sync,1.0;"
+        );
+
+        assertEquals("4.sync,1.0;", read(reader));
+        assertEquals(REFUSE_1 + REFUSE_2, socket.getWritten());
+
+    }
+
+    /**
+     * Verifies that chunks containing no audio are returned untouched, and
+     * that data for non-audio streams is kept while an audio stream is open.
+     */
+    @Test
+    public void testNonAudioPassthrough() throws Exception {
+
+        String chunk = "4.file,1.3,24.application/octet-stream,5.a.txt;"
+                + "4.blob,1.3,4.AAAA;3.end,1.3;4.sync,1.0;";
+
+        char[] data = chunk.toCharArray();
+        GuacamoleReader reader = new AudioFilteringGuacamoleReader(
+                new ChunkReader(data), new SimpleGuacamoleTunnel(socket));
+        assertSame(data, reader.read());
+
+        reader = filter(
+            "5.audio,1.1,9.audio/ogg;" + chunk,
+            "4.blob,1.1,4.AAAA;" + chunk + "3.end,1.1;"
+        );
+
+        assertEquals(chunk, read(reader));
+        assertEquals(chunk, read(reader));
+        assertEquals(REFUSE_1, socket.getWritten());
+
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import com.glyptodon.guacamole.auth.restrict.TestAuthenticationProvider;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.user.RestrictedExternalUserContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleResourceConflictException;
+import org.apache.guacamole.GuacamoleSecurityException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.apache.guacamole.protocol.GuacamoleClientInformation;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test which verifies that ConnectionManager hands the slots of connections
+ * blocked by concurrent access restrictions to waiting users without leaking
+ * slots.
+ */
+public class ConnectionManagerTest {
+
+    /**
+     * The AuthenticationProvider originating all users and connections.
+     */
+    private final AuthenticationProvider authProvider = new TestAuthenticationProvider();
+
+    /**
+     * The connection that all users connect to.
+     */
+    private final TestConnection connection = new TestConnection("connection");
+
+    /**
+     * The registry tracking usage of the connection.
+     */
+    private final InMemoryActiveConnectionRegistry registry = new InMemoryActiveConnectionRegistry();
+
+    /**
+     * The identifier of the connection within the registry.
+     */
+    private final GlobalConnectionIdentifier identifier = GlobalConnectionIdentifier.valueOf(
+            authProvider, GlobalConnectionIdentifier.Type.CONNECTION, connection.getIdentifier());
+
+    /**
+     * The ConnectionManager being tested, or null if not yet created.
+     */
+    private ConnectionManager manager;
+
+    @After
+    public void tearDown() {
+        if (manager != null)
+            manager.shutdown();
+    }
+
+    /**
+     * Returns a UserContext for a user who may not use the connection
+     * concurrently with any other user.
+     *
+     * @param username
+     *     The username of the user.
+     *
+     * @return
+     *     A new UserContext for the given user.
+     */
+    private RestrictedExternalUserContext getUserContext(String username) {
+        return new RestrictedExternalUserContext(manager,
+                Collections.singletonMap(Restriction.DISALLOW_CONCURRENT, Restriction.TRUTH_VALUE),
+                new SimpleUserContext(authProvider, username, Collections.emptyMap()));
+    }
+
+    /**
+     * Connects to the connection as the given user.
+     *
+     * @param username
+     *     The username of the user connecting.
+     *
+     * @return
+     *     The tunnel of the new connection.
+     *
+     * @throws GuacamoleException
+     *     If the connection cannot be established.
+     */
+    private GuacamoleTunnel connect(String username) throws GuacamoleException {
+        return manager.connect(getUserContext(username), connection,
+                new GuacamoleClientInformation(), Collections.emptyMap());
+    }
+
+    /**
+     * Runs the given connection attempt within a new thread, returning once
+     * the user connecting is waiting for the connection.
+     *
+     * @param attempt
+     *     The connection attempt to run.
+     *
+     * @return
+     *     The thread running the connection attempt.
+     *
+     * @throws InterruptedException
+     *     If the current thread is interrupted while waiting for the user to
+     *     begin waiting.
+     */
+    private Thread startWaiting(FutureTask<GuacamoleTunnel> attempt)
+            throws InterruptedException {
+
+        int waiting = manager.getWaitingCount();
+
+        Thread thread = new Thread(attempt);
+        thread.start();
+
+        while (manager.getWaitingCount() == waiting)
+            Thread.sleep(1);
+
+        return thread;
+
+    }
+
+    /**
+     * Verifies that the connection is not in use, such that no slot has
+     * been leaked.
+     */
+    private void assertNotInUse() {
+        assertEquals(0, manager.getWaitingCount());
+        assertTrue("A slot was leaked.", registry.acquire(identifier, 1));
+        registry.release(identifier);
+    }
+
+    /**
+     * Verifies that the slot freed when a user disconnects is handed to a
+     * user waiting for the connection.
+     */
+    @Test
+    public void testHandoff() throws Exception {
+
+        manager = new ConnectionManager(registry, 10, 0);
+
+        GuacamoleTunnel first = connect("first");
+        FutureTask<GuacamoleTunnel> waiting = new FutureTask<>(() -> connect("second"));
+        startWaiting(waiting);
+
+        first.close();
+
+        GuacamoleTunnel second = waiting.get(10, TimeUnit.SECONDS);
+        assertEquals(0, manager.getWaitingCount());
+        assertFalse("The slot was not handed to the waiting user.", registry.acquire(identifier, 1));
+        assertEquals(1, Arrays.stream(manager.getWaitTimes()).sum());
+
+        ConnectionUsageSnapshot snapshot = manager.getSnapshot();
+        assertEquals(1, snapshot.getTotalConnections());
+        assertEquals(Collections.singletonMap(identifier.getKey(), 1), snapshot.getConnectionCounts());
+        assertEquals(Collections.singletonMap("second", 1), snapshot.getSessionCounts());
+
+        second.close();
+        assertNotInUse();
+        assertEquals(0, manager.getSnapshot().getTotalConnections());
+
+    }
+
+    /**
+     * Verifies that activity is recorded for each write, even when the writer
+     * of the tunnel is acquired only once, as the WebSocket tunnel does.
+     */
+    @Test
+    public void testActivityRecordedPerWrite() throws Exception {
+
+        manager = new ConnectionManager(registry, 0, 0);
+
+        GuacamoleTunnel tunnel = connect("first");
+        ConnectionLease lease = ((LeasedGuacamoleTunnel) tunnel).getLease();
+        GuacamoleWriter writer = tunnel.acquireWriter();
+
+        // Wait for the clock of the timer to advance by at least one tick
+        long lastActivity = lease.getLastActivity();
+        Thread.sleep(1500);
+        assertEquals(lastActivity, lease.getLastActivity());
+
+        writer.write("3.nop;".toCharArray());
+        assertTrue("Write was not recorded as activity.", lease.getLastActivity() > lastActivity);
+
+        tunnel.releaseWriter();
+        tunnel.close();
+        assertNotInUse();
+
+    }
+
+    /**
+     * Verifies that a user which times out while waiting does not leak the
+     * slot that they were waiting for.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+
+        manager = new ConnectionManager(registry, 1, 0);
+
+        GuacamoleTunnel first = connect("first");
+        try {
+            connect("second");
+            fail("Connection was allowed despite concurrent access restrictions.");
+        }
+        catch (GuacamoleResourceConflictException e) {
+            // Expected
+        }
+
+        assertEquals(1, manager.getWaitTimeoutCount());
+        assertEquals(0, manager.getWaitingCount());
+
+        first.close();
+        assertNotInUse();
+
+    }
+
+    /**
+     * Verifies that no slot is leaked when a waiting user gives up at the
+     * same time as the slot is handed to them, repeating the race many
+     * times.
+     */
+    @Test
+    public void testCancelledHandoff() throws Exception {
+
+        manager = new ConnectionManager(registry, 10, 0);
+
+        for (int i = 0; i < 200; i++) {
+
+            GuacamoleTunnel first = connect("first");
+            FutureTask<GuacamoleTunnel> waiting = new FutureTask<>(() -> connect("second"));
+            Thread thread = startWaiting(waiting);
+
+            // Give up waiting while the slot is being handed over
+            thread.interrupt();
+            first.close();
+
+            try {
+                waiting.get(10, TimeUnit.SECONDS).close();
+            }
+            catch (ExecutionException e) {
+                if (!(e.getCause() instanceof GuacamoleResourceConflictException))
+                    throw e;
+            }
+
+            thread.join();
+            assertNotInUse();
+
+        }
+
+    }
+
+    /**
+     * Verifies that users are served in the order they began waiting, that a
+     * slot freed outside this ConnectionManager, as by another Guacamole
+     * instance sharing the same registry, is found by the longest-waiting
+     * user, and that a user which begins waiting later does not take that
+     * slot first.
+     */
+    @Test
+    public void testExternalReleaseServedInOrder() throws Exception {
+
+        manager = new ConnectionManager(registry, 10, 0);
+
+        // Hold the only slot as if from another instance
+        assertTrue(registry.acquire(identifier, 1));
+
+        FutureTask<GuacamoleTunnel> second = new FutureTask<>(() -> connect("second"));
+        startWaiting(second);
+
+        FutureTask<GuacamoleTunnel> third = new FutureTask<>(() -> connect("third"));
+        startWaiting(third);
+
+        // Free the slot without involving the ConnectionManager
+        registry.release(identifier);
+
+        GuacamoleTunnel secondTunnel = second.get(10, TimeUnit.SECONDS);
+        assertFalse("The slot was taken out of order.", third.isDone());
+        assertEquals(1, manager.getWaitingCount());
+
+        // The third user must still receive the slot once freed normally
+        secondTunnel.close();
+        third.get(10, TimeUnit.SECONDS).close();
+        assertNotInUse();
+
+    }
+
+    /**
+     * Verifies that a user connecting while others are waiting joins the
+     * queue rather than claiming a slot ahead of those users, even if a slot
+     * is available.
+     */
+    @Test
+    public void testNoBarging() throws Exception {
+
+        manager = new ConnectionManager(registry, 10, 0);
+
+        // Hold the only slot as if from another instance
+        assertTrue(registry.acquire(identifier, 1));
+
+        FutureTask<GuacamoleTunnel> second = new FutureTask<>(() -> connect("second"));
+        startWaiting(second);
+
+        // Free the slot and immediately attempt to connect as a new user
+        registry.release(identifier);
+        FutureTask<GuacamoleTunnel> third = new FutureTask<>(() -> connect("third"));
+        new Thread(third).start();
+
+        GuacamoleTunnel secondTunnel = second.get(10, TimeUnit.SECONDS);
+        secondTunnel.close();
+        third.get(10, TimeUnit.SECONDS).close();
+        assertNotInUse();
+
+    }
+
+    /**
+     * Verifies that a user whose opcode policies share no opcodes is refused
+     * the connection outright, rather than connected with a tunnel that
+     * drops every instruction, including "sync".
+     */
+    @Test
+    public void testDisjointOpcodePoliciesRejected() throws Exception {
+
+        manager = new ConnectionManager(registry, 0, 0);
+
+        Map<Restriction, String> restrictions = new EnumMap<>(Restriction.class);
+        restrictions.put(Restriction.FORCE_READ_ONLY, Restriction.TRUTH_VALUE);
+        restrictions.put(Restriction.ALLOWED_OPCODES, "key mouse");
+
+        RestrictedExternalUserContext userContext = new RestrictedExternalUserContext(manager,
+                restrictions, new SimpleUserContext(authProvider, "first", Collections.emptyMap()));
+
+        try {
+            manager.connect(userContext, connection,
+                    new GuacamoleClientInformation(), Collections.emptyMap());
+            fail("A connection was established with no usable opcodes.");
+        }
+        catch (GuacamoleSecurityException e) {
+            // Expected
+        }
+
+        assertNotInUse();
+
+    }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the streaming parser of InstructionBufferingGuacamoleWriter.
+ */
+public class InstructionBufferingGuacamoleWriterTest {
+
+    /**
+     * Instructions mixing "mouse" instructions, which are buffered, with
+     * other instructions, including an opcode having "mouse" as a prefix and
+     * elements containing the ',', ';' and '.' characters.
+     */
+    private static final String MIXED =
+              "4.sync,1.1;"
+            + "5.mouse,2.10,2.20,1.0;"
+            + "5.mouse,2.11,2.21,1.1;"
+            + "5.mouse,2.12,2.22,1.2;"
+            + "3.key,5.65307,1.1;"
+            + "6.mouses,1.0;"
+            + "5.mouse,1.x,2.,;,1.2;"
+            + "4.sync,1.2;"
+            + "5.mouse,2.13,2.23,1.1;";
+
+    /**
+     * The data forwarded when MIXED is written.
+     */
+    private static final String MIXED_FORWARDED =
+              "4.sync,1.1;"
+            + "5.mouse,2.11,2.21,1.1;"
+            + "5.mouse,2.12,2.22,1.2;"
+            + "3.key,5.65307,1.1;"
+            + "6.mouses,1.0;"
+            + "5.mouse,1.x,2.,;,1.2;"
+            + "4.sync,1.2;"
+            + "5.mouse,2.13,2.23,1.1;";
+
+    /**
+     * The numeric elements of each "mouse" instruction within MIXED, as
+     * recorded by RecordingWriter.
+     */
+    private static final List<String> MIXED_HANDLED = Arrays.asList(
+        "10,20,0",
+        "11,21,1",
+        "12,22,2",
+        "-1,-1,2",
+        "13,23,1"
+    );
+
+    /**
+     * A "mouse" instruction having an element too long to be buffered, and
+     * which would otherwise be dropped.
+     */
+    private static final String OVERSIZED =
+            "5.mouse,40.1234567890123456789012345678901234567890,1.0,1.0;";
+
+    /**
+     * A "mouse" instruction having too many elements to be buffered, and
+     * which would otherwise be dropped.
+     */
+    private static final String MANY_ELEMENTS =
+            "5.mouse,1.0,1.0,1.0,1.0,1.0,1.0,1.0,1.0;";
+
+    /**
+     * InstructionBufferingGuacamoleWriter which buffers "mouse" instructions,
+     * recording the numeric elements of each. Instructions without buttons
+     * pressed are dropped, instructions with only the middle button pressed
+     * are held until another instruction is forwarded, and all others are
+     * forwarded immediately.
+     */
+    private static class RecordingWriter extends InstructionBufferingGuacamoleWriter {
+
+        /**
+         * The numeric elements of each "mouse" instruction handled, as
+         * comma-separated strings.
+         */
+        private final List<String> handled = new ArrayList<>();
+
+        /**
+         * The instruction being held, or null if no instruction is held.
+         */
+        private String pending;
+
+        /**
+         * Creates a new RecordingWriter which forwards instructions to the
+         * given writer.
+         *
+         * @param writer
+         *     The GuacamoleWriter to forward instructions to.
+         */
+        public RecordingWriter(GuacamoleWriter writer) {
+            super(writer);
+        }
+
+        @Override
+        protected int classify(char[] opcode, int length) {
+            return new String(opcode, 0, length).equals("mouse") ? 0 : NOT_BUFFERED;
+        }
+
+        @Override
+        protected boolean hasPending() {
+            return pending != null;
+        }
+
+        @Override
+        protected void flushPending() throws GuacamoleException {
+            if (pending != null) {
+                writer.write(pending.toCharArray());
+                pending = null;
+            }
+        }
+
+        @Override
+        protected void handleInstruction(int type, char[] instruction, int length)
+                throws GuacamoleException {
+
+            handled.add(getNumericElement(1) + "," + getNumericElement(2)
+                    + "," + getNumericElement(3));
+
+            int mask = getNumericElement(3);
+            if (mask == 0)
+                return;
+
+            flushPending();
+            if (mask == 2)
+                pending = new String(instruction, 0, length);
+            else
+                writer.write(instruction, 0, length);
+
+        }
+
+    }
+
+    /**
+     * The result of writing data to a RecordingWriter.
+     */
+    private static class Result {
+
+        /**
+         * All data forwarded.
+         */
+        private final String forwarded;
+
+        /**
+         * The numeric elements of each "mouse" instruction handled.
+         */
+        private final List<String> handled;
+
+        /**
+         * Creates a new Result.
+         *
+         * @param forwarded
+         *     All data forwarded.
+         *
+         * @param handled
+         *     The numeric elements of each "mouse" instruction handled.
+         */
+        public Result(String forwarded, List<String> handled) {
+            this.forwarded = forwarded;
+            this.handled = handled;
+        }
+
+    }
+
+    /**
+     * Writes each of the given pieces to a new RecordingWriter with a
+     * separate call to write().
+     *
+     * @param pieces
+     *     The pieces of data to write, in order.
+     *
+     * @return
+     *     The data forwarded and instructions handled by the RecordingWriter.
+     *
+     * @throws GuacamoleException
+     *     If the data written is rejected as malformed.
+     */
+    private static Result write(String... pieces) throws GuacamoleException {
+
+        TestGuacamoleSocket socket = new TestGuacamoleSocket();
+        RecordingWriter writer = new RecordingWriter(socket.getWriter());
+
+        // Write each piece from the middle of a larger buffer, such that
+        // offsets are honored
+        for (String piece : pieces) {
+            char[] chunk = ("xx" + piece + "xx").toCharArray();
+            writer.write(chunk, 2, piece.length());
+        }
+
+        return new Result(socket.getWritten(), writer.handled);
+
+    }
+
+    /**
+     * Verifies that the given data produces the given result when split
+     * across two writes at every possible position, and when written one
+     * character at a time.
+     *
+     * @param data
+     *     The data to write.
+     *
+     * @param forwarded
+     *     The data which should be forwarded.
+     *
+     * @param handled
+     *     The numeric elements of each "mouse" instruction which should be
+     *     handled.
+     */
+    private static void assertSplitsIdentically(String data, String forwarded,
+            List<String> handled) throws GuacamoleException {
+
+        for (int i = 0; i <= data.length(); i++) {
+            Result result = write(data.substring(0, i), data.substring(i));
+            assertEquals("Split at " + i, forwarded, result.forwarded);
+            assertEquals("Split at " + i, handled, result.handled);
+        }
+
+        String[] pieces = new String[data.length()];
+        for (int i = 0; i < pieces.length; i++)
+            pieces[i] = data.substring(i, i + 1);
+
+        Result result = write(pieces);
+        assertEquals(forwarded, result.forwarded);
+        assertEquals(handled, result.handled);
+
+    }
+
+    /**
+     * Verifies that buffered instructions are forwarded, held, or dropped as
+     * dictated by handleInstruction(), that held instructions are written
+     * before the next instruction forwarded, and that numeric elements are
+     * parsed.
+     */
+    @Test
+    public void testMixed() throws Exception {
+        Result result = write(MIXED);
+        assertEquals(MIXED_FORWARDED, result.forwarded);
+        assertEquals(MIXED_HANDLED, result.handled);
+    }
+
+    /**
+     * Verifies that instructions split across writes at every possible
+     * position are handled identically to instructions received in a single
+     * write.
+     */
+    @Test
+    public void testSplit() throws Exception {
+        assertSplitsIdentically(MIXED, MIXED_FORWARDED, MIXED_HANDLED);
+    }
+
+    /**
+     * Verifies that elements which are absent or too large to parse are
+     * reported as non-numeric.
+     */
+    @Test
+    public void testNonNumeric() throws Exception {
+        assertEquals(Arrays.asList("-1,-1,-1"), write("5.mouse;").handled);
+        assertEquals(Arrays.asList("99999999,-1,1"),
+                write("5.mouse,8.99999999,9.100000000,1.1;").handled);
+    }
+
+    /**
+     * Verifies that instructions of interest having an unusually long
+     * element are forwarded untouched rather than buffered, after any held
+     * instruction, at every split position.
+     */
+    @Test
+    public void testOversizedBypassesBuffer() throws Exception {
+
+        assertSplitsIdentically(OVERSIZED, OVERSIZED, Collections.emptyList());
+
+        String held = "5.mouse,1.1,1.1,1.2;";
+        assertSplitsIdentically(held + OVERSIZED, held + OVERSIZED,
+                Arrays.asList("1,1,2"));
+
+    }
+
+    /**
+     * Verifies that instructions of interest having unusually many elements
+     * are forwarded untouched rather than buffered, after any held
+     * instruction, at every split position.
+     */
+    @Test
+    public void testManyElementsBypassBuffer() throws Exception {
+
+        assertSplitsIdentically(MANY_ELEMENTS, MANY_ELEMENTS, Collections.emptyList());
+
+        String held = "5.mouse,1.1,1.1,1.2;";
+        assertSplitsIdentically(held + MANY_ELEMENTS + "4.sync,1.0;",
+                held + MANY_ELEMENTS + "4.sync,1.0;", Arrays.asList("1,1,2"));
+
+    }
+
+}
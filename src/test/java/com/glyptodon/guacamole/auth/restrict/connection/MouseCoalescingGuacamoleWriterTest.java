@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.InputStatistics;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleTunnel;
+import org.apache.guacamole.net.SimpleGuacamoleTunnel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests MouseCoalescingGuacamoleWriter.
+ */
+public class MouseCoalescingGuacamoleWriterTest {
+
+    /**
+     * A coalescing window long enough that no window ends during a test, in
+     * milliseconds.
+     */
+    private static final int LONG_WINDOW = 60000;
+
+    /**
+     * The duration of each tick of the timer used by all tests, in
+     * milliseconds.
+     */
+    private static final long TICK_DURATION = 10;
+
+    /**
+     * A "mouse" instruction with no buttons pressed.
+     */
+    private static final String MOVE_A = "5.mouse,2.10,2.20,1.0;";
+
+    /**
+     * A second "mouse" instruction with no buttons pressed.
+     */
+    private static final String MOVE_B = "5.mouse,2.11,2.21,1.0;";
+
+    /**
+     * A third "mouse" instruction with no buttons pressed.
+     */
+    private static final String MOVE_C = "5.mouse,2.12,2.22,1.0;";
+
+    /**
+     * A "mouse" instruction with the left button pressed.
+     */
+    private static final String PRESS = "5.mouse,2.12,2.22,1.1;";
+
+    /**
+     * A "mouse" instruction with the left button pressed, at a different
+     * position than PRESS.
+     */
+    private static final String DRAG = "5.mouse,2.13,2.23,1.1;";
+
+    /**
+     * A "key" instruction.
+     */
+    private static final String KEY = "3.key,5.65307,1.1;";
+
+    /**
+     * The socket receiving all forwarded instructions.
+     */
+    private TestGuacamoleSocket socket;
+
+    /**
+     * The tunnel whose writer lock guards the writer being tested.
+     */
+    private GuacamoleTunnel tunnel;
+
+    /**
+     * The timer used to forward held instructions.
+     */
+    private HashedWheelTimer timer;
+
+    /**
+     * The statistics updated by the writer being tested.
+     */
+    private InputStatistics statistics;
+
+    /**
+     * The writer being tested.
+     */
+    private GuacamoleWriter writer;
+
+    /**
+     * Creates the socket, tunnel, and timer used by each test.
+     */
+    @Before
+    public void setUp() {
+        socket = new TestGuacamoleSocket();
+        tunnel = new SimpleGuacamoleTunnel(socket);
+        timer = new HashedWheelTimer("test-mouse-coalescing", TICK_DURATION, 64);
+        statistics = new InputStatistics();
+    }
+
+    /**
+     * Stops the timer created for the test.
+     */
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    /**
+     * Creates the writer being tested, coalescing within windows of the
+     * given length.
+     *
+     * @param window
+     *     The length of the coalescing window, in milliseconds.
+     */
+    private void createWriter(int window) {
+        writer = new MouseCoalescingGuacamoleWriter(socket.getWriter(), window,
+                statistics, tunnel, timer);
+    }
+
+    /**
+     * Writes the given instructions with separate calls to write(), holding
+     * the writer lock of the tunnel as a client would.
+     *
+     * @param instructions
+     *     The instructions to write, in order.
+     *
+     * @throws GuacamoleException
+     *     If the instructions cannot be written.
+     */
+    private void write(String... instructions) throws GuacamoleException {
+        tunnel.acquireWriter();
+        try {
+            for (String instruction : instructions)
+                writer.write(instruction.toCharArray());
+        }
+        finally {
+            tunnel.releaseWriter();
+        }
+    }
+
+    /**
+     * Verifies that held positions are forwarded before any other
+     * instruction written later, preserving the order of all forwarded
+     * instructions, and that each held position is replaced by the next.
+     */
+    @Test
+    public void testOrderPreserved() throws Exception {
+
+        createWriter(LONG_WINDOW);
+
+        write(MOVE_A, MOVE_B, MOVE_C, KEY, MOVE_A, MOVE_B, "4.sync,1.1;");
+        assertEquals(MOVE_A + MOVE_C + KEY + MOVE_B + "4.sync,1.1;", socket.getWritten());
+
+        assertEquals(3, statistics.getForwardedMouseEvents());
+        assertEquals(2, statistics.getCoalescedMouseEvents());
+
+    }
+
+    /**
+     * Verifies that instructions which change the button state are always
+     * forwarded immediately, superseding any held position.
+     */
+    @Test
+    public void testButtonTransitionsForwarded() throws Exception {
+
+        createWriter(LONG_WINDOW);
+
+        write(MOVE_A, MOVE_B, PRESS, DRAG, MOVE_C);
+        assertEquals(MOVE_A + PRESS + MOVE_C, socket.getWritten());
+
+        assertEquals(3, statistics.getForwardedMouseEvents());
+        assertEquals(2, statistics.getCoalescedMouseEvents());
+
+    }
+
+    /**
+     * Verifies that a held position is forwarded once its window ends, even
+     * if nothing else is written.
+     */
+    @Test
+    public void testFlushedAtWindowEnd() throws Exception {
+
+        createWriter(50);
+
+        write(MOVE_A, MOVE_B);
+        assertEquals(MOVE_A, socket.getWritten());
+
+        // Wait for the window to end and the timer to flush
+        long deadline = System.currentTimeMillis() + 5000;
+        while (socket.getWritten().equals(MOVE_A) && System.currentTimeMillis() < deadline)
+            Thread.sleep(TICK_DURATION);
+
+        assertEquals(MOVE_A + MOVE_B, socket.getWritten());
+        assertEquals(2, statistics.getForwardedMouseEvents());
+
+        // The flushed position must not be forwarded again
+        write(KEY);
+        assertEquals(MOVE_A + MOVE_B + KEY, socket.getWritten());
+
+    }
+
+    /**
+     * Verifies that a held position is not forwarded by the timer once it
+     * has been superseded by a forwarded instruction.
+     */
+    @Test
+    public void testSupersededNotFlushed() throws Exception {
+
+        createWriter(50);
+
+        write(MOVE_A, MOVE_B, PRESS);
+        Thread.sleep(500);
+
+        assertEquals(MOVE_A + PRESS, socket.getWritten());
+        assertEquals(1, statistics.getCoalescedMouseEvents());
+
+    }
+
+}
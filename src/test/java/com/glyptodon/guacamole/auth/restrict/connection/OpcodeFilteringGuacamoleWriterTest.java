@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import org.apache.guacamole.GuacamoleClientException;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the streaming parser of OpcodeFilteringGuacamoleWriter.
+ */
+public class OpcodeFilteringGuacamoleWriterTest {
+
+    /**
+     * The opcodes allowed by all tests.
+     */
+    private static final OpcodeSet ALLOWED = new OpcodeSet("sync", "nop", "size");
+
+    /**
+     * Instructions mixing allowed and blocked opcodes, including an opcode
+     * which is a prefix of an allowed opcode, an allowed opcode which is a
+     * prefix of a blocked opcode, and elements containing the ',', ';' and
+     * '.' characters.
+     */
+    private static final String MIXED =
+              "4.sync,8.12345678;"
+            + "5.mouse,2.10,2.20,1.1;"
+            + "3.nop;"
+            + "2.sy,3.a;b;"
+            + "5.syncs,3.,.,;"
+            + "4.size,1.0,4.1024,3.768;"
+            + "3.key,5.65307,1.1;"
+            + "4.sync,13.1234567890123;";
+
+    /**
+     * The instructions within MIXED whose opcodes are allowed.
+     */
+    private static final String MIXED_ALLOWED =
+              "4.sync,8.12345678;"
+            + "3.nop;"
+            + "4.size,1.0,4.1024,3.768;"
+            + "4.sync,13.1234567890123;";
+
+    /**
+     * Writes each of the given pieces to a new OpcodeFilteringGuacamoleWriter
+     * with a separate call to write(), returning all data forwarded.
+     *
+     * @param pieces
+     *     The pieces of data to write, in order.
+     *
+     * @return
+     *     All data forwarded by the OpcodeFilteringGuacamoleWriter.
+     *
+     * @throws GuacamoleException
+     *     If the data written is rejected as malformed.
+     */
+    private static String filter(String... pieces) throws GuacamoleException {
+
+        TestGuacamoleSocket socket = new TestGuacamoleSocket();
+        GuacamoleWriter writer = new OpcodeFilteringGuacamoleWriter(socket.getWriter(), ALLOWED);
+
+        // Write each piece from the middle of a larger buffer, such that
+        // offsets are honored
+        for (String piece : pieces) {
+            char[] chunk = ("xx" + piece + "xx").toCharArray();
+            writer.write(chunk, 2, piece.length());
+        }
+
+        return socket.getWritten();
+
+    }
+
+    /**
+     * Verifies that the given data is rejected as malformed.
+     *
+     * @param data
+     *     The data to write.
+     */
+    private static void assertRejected(String data) {
+        try {
+            filter(data);
+            fail("Malformed data was accepted: " + data);
+        }
+        catch (GuacamoleClientException e) {
+            // Expected
+        }
+        catch (GuacamoleException e) {
+            throw new AssertionError("Unexpected failure.", e);
+        }
+    }
+
+    /**
+     * Verifies that only allowed instructions are forwarded from a buffer
+     * containing many instructions.
+     */
+    @Test
+    public void testMixed() throws Exception {
+        assertEquals(MIXED_ALLOWED, filter(MIXED));
+        assertEquals("", filter("5.mouse,1.1,1.2,1.0;3.key,2.65,1.1;"));
+        assertEquals(MIXED_ALLOWED + MIXED_ALLOWED, filter(MIXED + MIXED));
+    }
+
+    /**
+     * Verifies that instructions split across two writes at every possible
+     * position, including within length prefixes, within opcodes, and within
+     * the values of other elements, are filtered identically to
+     * instructions received in a single write.
+     */
+    @Test
+    public void testSplit() throws Exception {
+
+        // Split within the length prefix of a long element
+        assertEquals("4.sync,13.1234567890123;", filter("4.sync,1", "3.1234567890123;"));
+        assertEquals("", filter("5.mouse,1", "3.1234567890123;"));
+
+        // Split within the value of an element after the opcode
+        assertEquals("4.sync,8.12345678;", filter("4.sync,8.1234", "5678;"));
+        assertEquals("", filter("5.mouse,8.1234", "5678;"));
+
+        // Split at every position
+        for (int i = 0; i <= MIXED.length(); i++)
+            assertEquals("Split at " + i, MIXED_ALLOWED,
+                    filter(MIXED.substring(0, i), MIXED.substring(i)));
+
+    }
+
+    /**
+     * Verifies that instructions written one character at a time are
+     * filtered identically to instructions received in a single write.
+     */
+    @Test
+    public void testSingleCharacters() throws Exception {
+
+        String[] pieces = new String[MIXED.length()];
+        for (int i = 0; i < pieces.length; i++)
+            pieces[i] = MIXED.substring(i, i + 1);
+
+        assertEquals(MIXED_ALLOWED, filter(pieces));
+
+    }
+
+    /**
+     * Verifies that malformed length prefixes and terminators are rejected,
+     * whether or not the instruction containing them is allowed.
+     */
+    @Test
+    public void testMalformed() throws Exception {
+
+        // Non-numeric length prefixes
+        assertRejected("x.sync;");
+        assertRejected("4x.sync;");
+        assertRejected("-4.sync;");
+        assertRejected("4.sync,1 .0;");
+        assertRejected("5.mouse,a.0;");
+
+        // Missing length prefix
+        assertRejected(".sync;");
+
+        // Lengths too large to be valid
+        assertRejected("4.sync,2147483648.0;");
+        assertRejected("99999999999999999999.sync;");
+
+        // Lengths which disagree with the element value
+        assertRejected("3.sync;");
+        assertRejected("4.sync,1.10;");
+
+        // Malformed data following an allowed instruction is still rejected
+        assertRejected("3.nop;4.sync,1.0,x.1;");
+
+    }
+
+}
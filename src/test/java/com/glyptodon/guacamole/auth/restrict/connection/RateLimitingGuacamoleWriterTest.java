@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import com.glyptodon.guacamole.auth.restrict.metrics.InputStatistics;
+import java.util.concurrent.TimeUnit;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests RateLimitingGuacamoleWriter.
+ */
+public class RateLimitingGuacamoleWriterTest {
+
+    /**
+     * A "key" instruction pressing a key.
+     */
+    private static final String PRESS = "3.key,5.65307,1.1;";
+
+    /**
+     * A "key" instruction releasing the key pressed by PRESS.
+     */
+    private static final String RELEASE = "3.key,5.65307,1.0;";
+
+    /**
+     * A "mouse" instruction with no buttons pressed.
+     */
+    private static final String MOVE = "5.mouse,2.10,2.20,1.0;";
+
+    /**
+     * A "mouse" instruction with the left button pressed.
+     */
+    private static final String BUTTON_DOWN = "5.mouse,2.10,2.20,1.1;";
+
+    /**
+     * The socket receiving all forwarded instructions.
+     */
+    private TestGuacamoleSocket socket;
+
+    /**
+     * The statistics updated by the writer being tested.
+     */
+    private InputStatistics statistics;
+
+    /**
+     * Creates the socket and statistics used by each test.
+     */
+    @Before
+    public void setUp() {
+        socket = new TestGuacamoleSocket();
+        statistics = new InputStatistics();
+    }
+
+    /**
+     * Returns the number of times the given instruction occurs within the
+     * data forwarded so far.
+     *
+     * @param instruction
+     *     The instruction to count.
+     *
+     * @return
+     *     The number of times the given instruction has been forwarded.
+     */
+    private int countForwarded(String instruction) {
+        String written = socket.getWritten();
+        return (written.length() - written.replace(instruction, "").length())
+                / instruction.length();
+    }
+
+    /**
+     * Writes the given instruction the given number of times.
+     *
+     * @param writer
+     *     The writer to write to.
+     *
+     * @param instruction
+     *     The instruction to write.
+     *
+     * @param count
+     *     The number of times to write the instruction.
+     *
+     * @throws GuacamoleException
+     *     If the instruction cannot be written.
+     */
+    private static void write(GuacamoleWriter writer, String instruction,
+            int count) throws GuacamoleException {
+        for (int i = 0; i < count; i++)
+            writer.write(instruction.toCharArray());
+    }
+
+    /**
+     * Verifies that a full bucket admits exactly one burst of key presses
+     * and drops the remainder, while forwarding other instructions
+     * untouched.
+     */
+    @Test
+    public void testBurstAdmitted() throws Exception {
+
+        GuacamoleWriter writer = new RateLimitingGuacamoleWriter(socket.getWriter(), 1, 5, statistics);
+
+        write(writer, PRESS, 20);
+        write(writer, "4.sync,1.0;", 3);
+
+        assertEquals(5, countForwarded(PRESS));
+        assertEquals(3, countForwarded("4.sync,1.0;"));
+        assertEquals(15, statistics.getThrottledInputEvents());
+
+    }
+
+    /**
+     * Verifies that, once the burst is spent, key presses are admitted at
+     * the configured rate and no faster.
+     */
+    @Test
+    public void testRefillRate() throws Exception {
+
+        int rate = 20;
+        int burst = 2;
+        GuacamoleWriter writer = new RateLimitingGuacamoleWriter(socket.getWriter(), rate, burst, statistics);
+
+        // Write presses continuously for half a second
+        long start = System.nanoTime();
+        long elapsed;
+        int written = 0;
+        do {
+            write(writer, PRESS, 1);
+            written++;
+            Thread.sleep(1);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < TimeUnit.MILLISECONDS.toNanos(500));
+
+        // The bucket can never admit more than its burst plus its refill
+        double refilled = (double) elapsed * rate / TimeUnit.SECONDS.toNanos(1);
+        int forwarded = countForwarded(PRESS);
+        assertTrue("Too many admitted: " + forwarded, forwarded <= burst + refilled + 1);
+
+        // Writing continuously, roughly every refilled token is used
+        assertTrue("Too few admitted: " + forwarded, forwarded >= refilled / 2);
+        assertEquals(written - forwarded, statistics.getThrottledInputEvents());
+
+    }
+
+    /**
+     * Verifies that key releases are forwarded even when the bucket is
+     * empty.
+     */
+    @Test
+    public void testKeyReleasesForwarded() throws Exception {
+
+        GuacamoleWriter writer = new RateLimitingGuacamoleWriter(socket.getWriter(), 1, 1, statistics);
+
+        write(writer, PRESS, 3);
+        write(writer, RELEASE, 3);
+
+        assertEquals(PRESS + RELEASE + RELEASE + RELEASE, socket.getWritten());
+        assertEquals(2, statistics.getThrottledInputEvents());
+
+    }
+
+    /**
+     * Verifies that mouse motion is dropped once the bucket is empty, but
+     * that changes in button state, and the first "mouse" instruction, are
+     * always forwarded.
+     */
+    @Test
+    public void testButtonChangesForwarded() throws Exception {
+
+        GuacamoleWriter writer = new RateLimitingGuacamoleWriter(socket.getWriter(), 1, 1, statistics);
+
+        // The bucket is emptied by key presses before any mouse motion
+        write(writer, PRESS, 1);
+        write(writer, MOVE, 2);
+        write(writer, BUTTON_DOWN, 2);
+        write(writer, MOVE, 2);
+
+        assertEquals(PRESS + MOVE + BUTTON_DOWN + MOVE, socket.getWritten());
+        assertEquals(3, statistics.getThrottledInputEvents());
+
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection;
+
+import org.apache.guacamole.io.GuacamoleReader;
+import org.apache.guacamole.io.GuacamoleWriter;
+import org.apache.guacamole.net.GuacamoleSocket;
+import org.apache.guacamole.protocol.GuacamoleInstruction;
+
+/**
+ * GuacamoleSocket implementation which records all data written and never
+ * has data available for reading.
+ */
+public class TestGuacamoleSocket implements GuacamoleSocket {
+
+    /**
+     * All data written to this socket.
+     */
+    private final StringBuffer written = new StringBuffer();
+
+    /**
+     * Whether this socket is still open.
+     */
+    private volatile boolean open = true;
+
+    /**
+     * GuacamoleReader which never has any data.
+     */
+    private final GuacamoleReader reader = new GuacamoleReader() {
+
+        @Override
+        public boolean available() {
+            return false;
+        }
+
+        @Override
+        public char[] read() {
+            return null;
+        }
+
+        @Override
+        public GuacamoleInstruction readInstruction() {
+            return null;
+        }
+
+    };
+
+    /**
+     * GuacamoleWriter which records all data written.
+     */
+    private final GuacamoleWriter writer = new GuacamoleWriter() {
+
+        @Override
+        public void write(char[] chunk, int off, int len) {
+            written.append(chunk, off, len);
+        }
+
+        @Override
+        public void write(char[] chunk) {
+            written.append(chunk);
+        }
+
+        @Override
+        public void writeInstruction(GuacamoleInstruction instruction) {
+            written.append(instruction.toString());
+        }
+
+    };
+
+    /**
+     * Returns all data written to this socket.
+     *
+     * @return
+     *     All data written to this socket, in the order written.
+     */
+    public String getWritten() {
+        return written.toString();
+    }
+
+    @Override
+    public GuacamoleReader getReader() {
+        return reader;
+    }
+
+    @Override
+    public GuacamoleWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+}
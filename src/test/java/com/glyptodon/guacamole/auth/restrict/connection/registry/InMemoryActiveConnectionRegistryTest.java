@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.guacamole.net.auth.AbstractAuthenticationProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which verifies that InMemoryActiveConnectionRegistry admits exactly
+ * as many concurrent users as allowed while many threads acquire and release
+ * the same connection.
+ */
+public class InMemoryActiveConnectionRegistryTest {
+
+    /**
+     * The number of times each thread acquires and releases the connection.
+     */
+    private static final int ITERATIONS = 50000;
+
+    /**
+     * The identifier of the connection being acquired and released by all
+     * threads.
+     */
+    private static final GlobalConnectionIdentifier CONNECTION = GlobalConnectionIdentifier.valueOf(
+            new AbstractAuthenticationProvider() {
+
+                @Override
+                public String getIdentifier() {
+                    return "test";
+                }
+
+            }, GlobalConnectionIdentifier.Type.CONNECTION, "connection");
+
+    /**
+     * The registry being tested.
+     */
+    private InMemoryActiveConnectionRegistry registry;
+
+    /**
+     * The executor running all threads which acquire and release the
+     * connection.
+     */
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        registry = new InMemoryActiveConnectionRegistry();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        registry.shutdown();
+    }
+
+    /**
+     * Runs the given task on the given number of threads at once, failing if
+     * the task fails on any thread.
+     *
+     * @param threads
+     *     The number of threads to run the task on.
+     *
+     * @param task
+     *     The task to run.
+     *
+     * @throws Exception
+     *     If the task fails on any thread.
+     */
+    private void runConcurrently(int threads, Callable<Void> task)
+            throws Exception {
+
+        CyclicBarrier start = new CyclicBarrier(threads);
+
+        List<Future<Void>> results = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+
+        // Rethrow the first failure, if any
+        for (Future<Void> result : results)
+            result.get(60, TimeUnit.SECONDS);
+
+    }
+
+    /**
+     * Verifies that exactly the given number of slots remain available for
+     * the connection, and then releases those slots.
+     *
+     * @param limit
+     *     The number of slots which should be available.
+     */
+    private void assertAvailable(int limit) {
+
+        for (int i = 0; i < limit; i++)
+            assertTrue("Slot " + i + " was leaked.", registry.acquire(CONNECTION, limit));
+
+        assertFalse("More slots than the limit are available.", registry.acquire(CONNECTION, limit));
+
+        for (int i = 0; i < limit; i++)
+            registry.release(CONNECTION);
+
+    }
+
+    /**
+     * Verifies that acquisition never fails while the connection is in use
+     * by fewer users than the limit. Each thread holds at most one slot and
+     * there are exactly as many threads as slots, so every acquisition must
+     * succeed, including those racing with the release of the final slot.
+     */
+    @Test
+    public void testNoFalseRejection() throws Exception {
+
+        final int limit = 8;
+        AtomicInteger rejected = new AtomicInteger();
+
+        runConcurrently(limit, () -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (registry.acquire(CONNECTION, limit))
+                    registry.release(CONNECTION);
+                else
+                    rejected.incrementAndGet();
+            }
+            return null;
+        });
+
+        assertEquals("Acquisition failed while under the limit.", 0, rejected.get());
+        assertAvailable(limit);
+
+    }
+
+    /**
+     * Verifies that the limit is never exceeded while more threads than
+     * allowed contend for the connection, and that every slot is available
+     * again once all threads have released their slots.
+     */
+    @Test
+    public void testLimitUnderContention() throws Exception {
+
+        final int limit = 3;
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+
+        runConcurrently(16, () -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+
+                if (!registry.acquire(CONNECTION, limit))
+                    continue;
+
+                acquired.incrementAndGet();
+                maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                Thread.yield();
+                holders.decrementAndGet();
+
+                registry.release(CONNECTION);
+
+            }
+            return null;
+        });
+
+        assertTrue("No acquisition succeeded.", acquired.get() > 0);
+        assertTrue("The limit was exceeded (" + maxHolders.get() + " concurrent users).",
+                maxHolders.get() <= limit);
+        assertAvailable(limit);
+
+    }
+
+    /**
+     * Verifies that the only slot of the connection is available again after
+     * threads repeatedly take and release it, such that its counter is
+     * repeatedly retired and recreated while other threads are acquiring.
+     */
+    @Test
+    public void testNoLeakAcrossRetirement() throws Exception {
+
+        final int limit = 1;
+
+        runConcurrently(8, () -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                if (registry.acquire(CONNECTION, limit)) {
+                    Thread.yield();
+                    registry.release(CONNECTION);
+                }
+            }
+            return null;
+        });
+
+        assertAvailable(limit);
+
+    }
+
+}
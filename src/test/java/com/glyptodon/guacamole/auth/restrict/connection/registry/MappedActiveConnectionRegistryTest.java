@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.TestAuthenticationProvider;
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import java.io.File;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.net.auth.AuthenticationProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test which verifies that MappedActiveConnectionRegistry validates the size
+ * of its table and fails cleanly once that table is saturated.
+ */
+public class MappedActiveConnectionRegistryTest {
+
+    /**
+     * The AuthenticationProvider originating all connections.
+     */
+    private static final AuthenticationProvider AUTH_PROVIDER = new TestAuthenticationProvider();
+
+    /**
+     * Folder containing the table files used by each test.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns the identifier of the connection having the given identifier.
+     *
+     * @param identifier
+     *     The identifier of the connection.
+     *
+     * @return
+     *     The GlobalConnectionIdentifier of the given connection.
+     */
+    private static GlobalConnectionIdentifier getConnection(String identifier) {
+        return GlobalConnectionIdentifier.valueOf(AUTH_PROVIDER,
+                GlobalConnectionIdentifier.Type.CONNECTION, identifier);
+    }
+
+    /**
+     * Verifies that creating a registry having the given number of table
+     * entries fails.
+     *
+     * @param entries
+     *     The number of table entries.
+     */
+    private void assertRejected(int entries) throws Exception {
+
+        File file = new File(folder.getRoot(), "table-" + entries);
+        try {
+            new MappedActiveConnectionRegistry(file, entries, 30000).shutdown();
+            fail("A table having " + entries + " entries was accepted.");
+        }
+        catch (GuacamoleServerException e) {
+            // Expected
+        }
+
+        assertFalse("The table file was created.", file.exists());
+
+    }
+
+    /**
+     * Verifies that table sizes which are zero, negative, or too large to be
+     * mapped are rejected.
+     */
+    @Test
+    public void testInvalidSize() throws Exception {
+        assertRejected(0);
+        assertRejected(-1);
+        assertRejected(Integer.MIN_VALUE);
+        assertRejected(MappedActiveConnectionRegistry.MAX_ENTRIES + 1);
+    }
+
+    /**
+     * Verifies that acquisition fails once every table entry is in use, and
+     * succeeds again once an entry is freed.
+     */
+    @Test
+    public void testSaturation() throws Exception {
+
+        MappedActiveConnectionRegistry registry = new MappedActiveConnectionRegistry(
+                folder.newFile(), 4, 30000);
+
+        try {
+
+            for (int i = 0; i < 4; i++)
+                assertTrue(registry.acquire(getConnection("connection-" + i), 1));
+
+            GlobalConnectionIdentifier extra = getConnection("extra");
+            try {
+                registry.acquire(extra, 1);
+                fail("A connection was tracked within a full table.");
+            }
+            catch (GuacamoleException e) {
+                // Expected
+            }
+
+            registry.release(getConnection("connection-0"));
+            assertTrue(registry.acquire(extra, 1));
+
+        }
+        finally {
+            registry.shutdown();
+        }
+
+    }
+
+}
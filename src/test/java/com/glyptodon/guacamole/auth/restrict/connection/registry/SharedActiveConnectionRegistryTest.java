@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.connection.registry;
+
+import com.glyptodon.guacamole.auth.restrict.TestAuthenticationProvider;
+import com.glyptodon.guacamole.auth.restrict.connection.GlobalConnectionIdentifier;
+import com.google.common.base.Ticker;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test which verifies that SharedActiveConnectionRegistry keeps the leases it
+ * holds alive through its batched renewal thread, and that leases which are
+ * no longer renewed expire, using a LocalConnectionLeaseStore whose clock is
+ * advanced manually.
+ */
+public class SharedActiveConnectionRegistryTest {
+
+    /**
+     * The number of milliseconds that each lease remains valid without being
+     * renewed. Leases are renewed by the registry every third of this
+     * period, in real time.
+     */
+    private static final long LEASE_DURATION = 300;
+
+    /**
+     * Ticker whose time advances only when advance() is invoked.
+     */
+    private static class FakeTicker extends Ticker {
+
+        /**
+         * The current time, in nanoseconds.
+         */
+        private final AtomicLong time = new AtomicLong();
+
+        /**
+         * Advances the time of this ticker by the given number of
+         * milliseconds.
+         *
+         * @param millis
+         *     The number of milliseconds to advance by.
+         */
+        public void advance(long millis) {
+            time.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        @Override
+        public long read() {
+            return time.get();
+        }
+
+    }
+
+    /**
+     * ConnectionLeaseStore which delegates to a LocalConnectionLeaseStore,
+     * counting calls to renew() and optionally failing those calls as if the
+     * shared store were unreachable.
+     */
+    private static class CountingLeaseStore implements ConnectionLeaseStore {
+
+        /**
+         * The store containing all leases.
+         */
+        private final LocalConnectionLeaseStore store;
+
+        /**
+         * The number of calls to renew() which have completed.
+         */
+        private int renewals;
+
+        /**
+         * Whether calls to renew() should fail.
+         */
+        private volatile boolean unreachable;
+
+        /**
+         * Creates a new CountingLeaseStore which uses the given Ticker to
+         * determine the current time.
+         *
+         * @param ticker
+         *     The Ticker to use to determine the current time.
+         */
+        public CountingLeaseStore(Ticker ticker) {
+            this.store = new LocalConnectionLeaseStore(ticker);
+        }
+
+        @Override
+        public boolean acquire(String key, String lease, int limit,
+                long duration) {
+            return store.acquire(key, lease, limit, duration);
+        }
+
+        @Override
+        public void renew(Collection<String> leases, long duration)
+                throws GuacamoleException {
+
+            try {
+                if (unreachable)
+                    throw new GuacamoleServerException("Store is unreachable.");
+                store.renew(leases, duration);
+            }
+            finally {
+                synchronized (this) {
+                    renewals++;
+                    notifyAll();
+                }
+            }
+
+        }
+
+        @Override
+        public void release(String key, String lease) {
+            store.release(key, lease);
+        }
+
+        /**
+         * Returns the number of unexpired leases of the object having the
+         * given key.
+         *
+         * @param key
+         *     The key of the object whose leases should be counted.
+         *
+         * @return
+         *     The number of unexpired leases of the given object.
+         */
+        public int getLeaseCount(String key) {
+            return store.getLeaseCount(key);
+        }
+
+        /**
+         * Waits until at least the given number of further calls to renew()
+         * have completed. As renewals are performed one at a time, waiting
+         * for two calls guarantees that a renewal began after this function
+         * was invoked.
+         *
+         * @param count
+         *     The number of calls to wait for.
+         *
+         * @throws InterruptedException
+         *     If the current thread is interrupted while waiting.
+         */
+        public synchronized void awaitRenewals(int count) throws InterruptedException {
+
+            long deadline = System.currentTimeMillis() + 10000;
+            int target = renewals + count;
+
+            while (renewals < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Leases were not renewed.", remaining > 0);
+                wait(remaining);
+            }
+
+        }
+
+    }
+
+    /**
+     * The identifier of the connection being leased.
+     */
+    private static final GlobalConnectionIdentifier CONNECTION = GlobalConnectionIdentifier.valueOf(
+            new TestAuthenticationProvider(), GlobalConnectionIdentifier.Type.CONNECTION, "connection");
+
+    /**
+     * The clock of the store.
+     */
+    private FakeTicker ticker;
+
+    /**
+     * The store containing all leases.
+     */
+    private CountingLeaseStore store;
+
+    /**
+     * The registry being tested.
+     */
+    private SharedActiveConnectionRegistry registry;
+
+    @Before
+    public void setUp() {
+        ticker = new FakeTicker();
+        store = new CountingLeaseStore(ticker);
+        registry = new SharedActiveConnectionRegistry(store, LEASE_DURATION);
+    }
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    /**
+     * Verifies that a held lease is renewed before it expires, such that it
+     * outlives its original expiration time.
+     */
+    @Test
+    public void testRenewal() throws Exception {
+
+        assertTrue(registry.acquire(CONNECTION, 1));
+
+        // Renewal after 200 ms extends the lease to 500 ms
+        ticker.advance(200);
+        store.awaitRenewals(2);
+        ticker.advance(200);
+
+        assertEquals(1, store.getLeaseCount(CONNECTION.getKey()));
+        assertFalse(registry.acquire(CONNECTION, 1));
+
+        // The renewed lease is released as normal
+        registry.release(CONNECTION);
+        assertEquals(0, store.getLeaseCount(CONNECTION.getKey()));
+
+    }
+
+    /**
+     * Verifies that a held lease expires once it can no longer be renewed.
+     */
+    @Test
+    public void testLeaseLost() throws Exception {
+
+        assertTrue(registry.acquire(CONNECTION, 1));
+
+        store.unreachable = true;
+        ticker.advance(200);
+        store.awaitRenewals(2);
+        ticker.advance(200);
+
+        assertEquals(0, store.getLeaseCount(CONNECTION.getKey()));
+
+        // Releasing a lost lease has no effect
+        registry.release(CONNECTION);
+        assertEquals(0, store.getLeaseCount(CONNECTION.getKey()));
+
+    }
+
+    /**
+     * Verifies that a slot held by an instance which stops renewing its
+     * leases becomes available to other instances once its lease expires.
+     */
+    @Test
+    public void testSlotRecoveredAfterExpiry() throws Exception {
+
+        SharedActiveConnectionRegistry other = new SharedActiveConnectionRegistry(store, LEASE_DURATION);
+        try {
+
+            // Simulate an instance which crashes while holding a slot
+            assertTrue(other.acquire(CONNECTION, 1));
+            other.shutdown();
+
+            assertFalse(registry.acquire(CONNECTION, 1));
+
+            ticker.advance(LEASE_DURATION);
+            assertTrue(registry.acquire(CONNECTION, 1));
+            assertEquals(1, store.getLeaseCount(CONNECTION.getKey()));
+
+        }
+        finally {
+            other.shutdown();
+        }
+
+    }
+
+}
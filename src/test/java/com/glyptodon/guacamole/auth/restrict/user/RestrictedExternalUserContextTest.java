@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user;
+
+import com.glyptodon.guacamole.auth.restrict.TestAuthenticationProvider;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.TestConnection;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.apache.guacamole.net.auth.Connection;
+import org.apache.guacamole.net.auth.Directory;
+import org.apache.guacamole.net.auth.simple.SimpleDirectory;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the caching of decorated connections by
+ * RestrictedExternalUserContext.
+ */
+public class RestrictedExternalUserContextTest {
+
+    /**
+     * The number of connections within each listing.
+     */
+    private static final int CONNECTIONS = 16;
+
+    /**
+     * The connection manager of the UserContext being tested.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * The UserContext being tested.
+     */
+    private RestrictedExternalUserContext userContext;
+
+    /**
+     * Directory which returns new connection objects each time connections
+     * are retrieved, as the JDBC authentication extension does.
+     */
+    private static class FreshConnectionDirectory extends SimpleDirectory<Connection> {
+
+        @Override
+        public Connection get(String identifier) {
+            return new TestConnection(identifier);
+        }
+
+        @Override
+        public Collection<Connection> getAll(Collection<String> identifiers) {
+            return identifiers.stream().map(this::get).collect(Collectors.toList());
+        }
+
+    }
+
+    /**
+     * Creates a new UserContext wrapping a UserContext whose connection
+     * directory returns new connection objects for every request.
+     */
+    @Before
+    public void setUp() throws Exception {
+
+        Directory<Connection> directory = new FreshConnectionDirectory();
+
+        manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+        userContext = new RestrictedExternalUserContext(manager, Collections.emptyMap(),
+                new SimpleUserContext(new TestAuthenticationProvider(), "user", Collections.emptyMap()) {
+
+            @Override
+            public Directory<Connection> getConnectionDirectory() {
+                return directory;
+            }
+
+        });
+
+    }
+
+    /**
+     * Stops the connection manager created for the test.
+     */
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Returns the identifiers of all connections within each listing.
+     *
+     * @return
+     *     The identifiers of all connections within each listing.
+     */
+    private static Collection<String> getIdentifiers() {
+        List<String> identifiers = new ArrayList<>(CONNECTIONS);
+        for (int i = 0; i < CONNECTIONS; i++)
+            identifiers.add("connection-" + i);
+        return identifiers;
+    }
+
+    /**
+     * Verifies that repeatedly listing connections whose objects are new for
+     * every listing does not grow the cache of decorated connections without
+     * bound, even while every decorated connection remains referenced.
+     */
+    @Test
+    public void testFreshDelegatesDoNotGrowCache() throws Exception {
+
+        Collection<String> identifiers = getIdentifiers();
+
+        // Retain every wrapper, such that only the size limit applies
+        List<Connection> retained = new ArrayList<>();
+        int listings = 4 * RestrictedExternalUserContext.DECORATED_CACHE_SIZE / CONNECTIONS;
+        for (int i = 0; i < listings; i++) {
+            retained.addAll(userContext.getConnectionDirectory().getAll(identifiers));
+            assertTrue("Cache grew beyond its limit.", userContext.getDecoratedObjectCount()
+                    <= RestrictedExternalUserContext.DECORATED_CACHE_SIZE);
+        }
+
+        assertTrue(retained.size() > RestrictedExternalUserContext.DECORATED_CACHE_SIZE);
+
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user;
+
+import com.glyptodon.guacamole.auth.restrict.TestAuthenticationProvider;
+import com.glyptodon.guacamole.auth.restrict.connection.ConnectionManager;
+import com.glyptodon.guacamole.auth.restrict.connection.registry.InMemoryActiveConnectionRegistry;
+import com.glyptodon.guacamole.auth.restrict.metrics.PermissionCacheStatistics;
+import java.util.Collections;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.net.auth.User;
+import org.apache.guacamole.net.auth.permission.ObjectPermission;
+import org.apache.guacamole.net.auth.permission.SystemPermission;
+import org.apache.guacamole.net.auth.simple.SimpleUserContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests invalidation of cached ADMINISTER permissions by
+ * RestrictedExternalUser.
+ */
+public class RestrictedExternalUserTest {
+
+    /**
+     * The username of the user accessing the UserContext.
+     */
+    private static final String USERNAME = "self";
+
+    /**
+     * A modification to the permissions of a user.
+     */
+    private interface Modification {
+
+        /**
+         * Applies this modification.
+         *
+         * @throws GuacamoleException
+         *     If the modification is rejected.
+         */
+        void apply() throws GuacamoleException;
+
+    }
+
+    /**
+     * The connection manager of the UserContext being tested.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * The UserContext being tested.
+     */
+    private RestrictedExternalUserContext userContext;
+
+    /**
+     * The user of the UserContext being tested, as retrieved through its
+     * user directory.
+     */
+    private User self;
+
+    /**
+     * Creates a new UserContext for the user having the username USERNAME.
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager = new ConnectionManager(new InMemoryActiveConnectionRegistry(), 0, 0);
+        userContext = new RestrictedExternalUserContext(manager, Collections.emptyMap(),
+                new SimpleUserContext(new TestAuthenticationProvider(), USERNAME, Collections.emptyMap()));
+        self = userContext.getUserDirectory().get(USERNAME);
+    }
+
+    /**
+     * Stops the connection manager created for the test.
+     */
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Verifies that the next permission check reads permissions anew after
+     * the given modification, whether or not that modification succeeds.
+     *
+     * @param modification
+     *     The modification to make to the permissions of the user.
+     */
+    private void assertInvalidatedBy(Modification modification) throws Exception {
+
+        PermissionCacheStatistics statistics = manager.getPermissionCacheStatistics();
+        AdministerPermissionCache permissions = userContext.getAdministerPermissions();
+
+        // Load permissions, such that the next check is a hit
+        permissions.canAdminister(USERNAME);
+        long misses = statistics.getMisses();
+        permissions.canAdminister(USERNAME);
+        assertEquals(misses, statistics.getMisses());
+
+        // The permissions of SimpleUserContext are read-only, so all
+        // modifications fail, yet must still invalidate
+        try {
+            modification.apply();
+        }
+        catch (GuacamoleException e) {
+            // Expected
+        }
+
+        permissions.canAdminister(USERNAME);
+        assertEquals(misses + 1, statistics.getMisses());
+
+    }
+
+    /**
+     * Verifies that modifying the system permissions, user permissions, or
+     * groups of the user accessing the UserContext invalidates the cached
+     * ADMINISTER permissions of that user.
+     */
+    @Test
+    public void testSelfModificationInvalidates() throws Exception {
+        assertInvalidatedBy(() -> self.getSystemPermissions().addPermission(SystemPermission.Type.ADMINISTER));
+        assertInvalidatedBy(() -> self.getSystemPermissions().removePermissions(Collections.emptySet()));
+        assertInvalidatedBy(() -> self.getUserPermissions().addPermission(ObjectPermission.Type.ADMINISTER, "other"));
+        assertInvalidatedBy(() -> self.getUserPermissions().removePermissions(Collections.emptySet()));
+        assertInvalidatedBy(() -> self.getUserGroups().addObjects(Collections.singleton("admins")));
+    }
+
+}
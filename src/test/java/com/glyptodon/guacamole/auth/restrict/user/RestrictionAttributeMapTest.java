@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Glyptodon, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.glyptodon.guacamole.auth.restrict.user;
+
+import com.glyptodon.guacamole.auth.restrict.Restriction;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that RestrictionAttributeMap never modifies the map it overlays.
+ */
+public class RestrictionAttributeMapTest {
+
+    /**
+     * Returns a new map containing one ordinary attribute and one restriction
+     * attribute.
+     *
+     * @return
+     *     A new map of attributes.
+     */
+    private static Map<String, String> getAttributes() {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("guac-full-name", "Test User");
+        attributes.put(Restriction.MAX_SESSIONS.getAttributeName(), "2");
+        return attributes;
+    }
+
+    /**
+     * Verifies that entries of the given map cannot be modified through
+     * Entry.setValue() and that the given original attributes are unchanged
+     * after all attempts.
+     *
+     * @param map
+     *     The RestrictionAttributeMap to test.
+     *
+     * @param attributes
+     *     The map overlaid by the RestrictionAttributeMap.
+     */
+    private static void assertEntriesImmutable(Map<String, String> map,
+            Map<String, String> attributes) {
+
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            try {
+                entry.setValue("modified");
+                fail("Entry \"" + entry.getKey() + "\" was modifiable.");
+            }
+            catch (UnsupportedOperationException e) {
+                // Expected
+            }
+        }
+
+        assertEquals(getAttributes(), attributes);
+
+    }
+
+    /**
+     * Verifies that the entries of a map exposing restriction attributes
+     * cannot be used to modify the underlying map.
+     */
+    @Test
+    public void testExposedEntries() throws Exception {
+        Map<String, String> attributes = getAttributes();
+        RestrictionAttributeMap map = new RestrictionAttributeMap(attributes, true);
+        assertEquals("2", map.get(Restriction.MAX_SESSIONS.getAttributeName()));
+        assertNull(map.get(Restriction.MAX_CONCURRENT.getAttributeName()));
+        assertEntriesImmutable(map, attributes);
+    }
+
+    /**
+     * Verifies that the entries of a map hiding restriction attributes
+     * cannot be used to modify the underlying map.
+     */
+    @Test
+    public void testHiddenEntries() throws Exception {
+        Map<String, String> attributes = getAttributes();
+        RestrictionAttributeMap map = new RestrictionAttributeMap(attributes, false);
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey(Restriction.MAX_SESSIONS.getAttributeName()));
+        assertEntriesImmutable(map, attributes);
+    }
+
+    /**
+     * Verifies that modifying the map itself modifies only a private copy.
+     */
+    @Test
+    public void testPut() throws Exception {
+        Map<String, String> attributes = getAttributes();
+        RestrictionAttributeMap map = new RestrictionAttributeMap(attributes, true);
+        map.put("guac-full-name", "modified");
+        assertEquals("modified", map.get("guac-full-name"));
+        assertEquals(getAttributes(), attributes);
+    }
+
+}